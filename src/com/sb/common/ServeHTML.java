@@ -223,6 +223,9 @@ public class ServeHTML {
             + " src=\"/templates/static/pidFunctions.js\">"
             + "</script>" + lineSep
             + "<script type=\"text/javascript\""
+            + " src=\"/templates/static/graphData.js\">"
+            + "</script>" + lineSep
+            + "<script type=\"text/javascript\""
             + " src=\"/templates/static/raphael.js\">"
             + "</script>" + lineSep
             + "<script type=\"text/javascript\""
@@ -4,20 +4,14 @@ import java.util.AbstractMap;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
-import java.io.IOException;
-import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-
 /**
  * A class to hold the information about the brew day for the timers.
  * 
@@ -265,60 +259,48 @@ public final class BrewDay {
     }
 
     /**
-     * Get the Status as a JSON Object.
-     * 
-     * @return A JSONObject representing the status
+     * Write the status of the timers as a JSON array.
+     *
+     * @param writer The writer to add the array to.
      */
     @SuppressWarnings("unchecked")
-    public JSONArray brewDayStatus() {
-        JSONArray status = new JSONArray();
-
-        Iterator<Entry<String, Object>> it = timers.entrySet().iterator();
-
-        Entry<String, Object> e = null;
-        Date currentDate = Calendar.getInstance().getTime();
-
-        while (it.hasNext()) {
-            e = it.next();
-            if (e.getValue() != null) {
-
-                // iterate the child hash map
-                HashMap<String, Date> valueEntry = (HashMap<String, Date>) e
-                        .getValue();
-                Iterator<Entry<String, Date>> dateIt = valueEntry.entrySet()
-                        .iterator();
-
-                // get the Timer Name Object
-                JSONObject timerJSON = new JSONObject();
-                timerJSON.put("name", e.getKey());
-
-                Date startDate = valueEntry.get("start");
-                Date endDate = valueEntry.get("end");
-                String mode = "none";
-                Long seconds = 0L;
-
-                if (startDate != null && endDate == null) {
-                    // Are we counting up?
-                    if (startDate.getTime() < currentDate.getTime()) {
-                        seconds = (currentDate.getTime() - startDate.getTime()) / 1000;
-                        mode = "up";
-                    } else {
-                        seconds = (startDate.getTime() - currentDate.getTime()) / 1000;
-                        mode = "down";
-                    }
-                } else if (startDate != null && endDate != null) {
-                    // Timer has stopped.
-                    seconds = (endDate.getTime() - startDate.getTime()) / 1000;
-                    mode = "stopped";
-                }
+    public void writeStatus(final JsonWriter writer) {
+        long currentTime = System.currentTimeMillis();
+        writer.beginArray();
 
-                timerJSON.put(mode, seconds);
+        for (Entry<String, Object> e : timers.entrySet()) {
+            if (e.getValue() == null) {
+                continue;
+            }
 
-                status.add(timerJSON);
+            Map<String, Date> valueEntry = (Map<String, Date>) e.getValue();
+            Date startDate = valueEntry.get("start");
+            Date endDate = valueEntry.get("end");
+            String mode = "none";
+            long seconds = 0;
+
+            if (startDate != null && endDate == null) {
+                // Are we counting up?
+                if (startDate.getTime() < currentTime) {
+                    seconds = (currentTime - startDate.getTime()) / 1000;
+                    mode = "up";
+                } else {
+                    seconds = (startDate.getTime() - currentTime) / 1000;
+                    mode = "down";
+                }
+            } else if (startDate != null && endDate != null) {
+                // Timer has stopped.
+                seconds = (endDate.getTime() - startDate.getTime()) / 1000;
+                mode = "stopped";
             }
+
+            writer.beginObject();
+            writer.name("name").value(e.getKey());
+            writer.name(mode).value(seconds);
+            writer.endObject();
         }
 
-        return status;
+        writer.endArray();
     }
 
     /**
@@ -327,14 +309,9 @@ public final class BrewDay {
      * @return The String representing the current timers.
      */
     public String getJSONDataString() {
-        StringWriter out = new StringWriter();
-        try {
-            brewDayStatus().writeJSONString(out);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return out.toString();
+        JsonWriter writer = new JsonWriter(256);
+        writeStatus(writer);
+        return writer.toString();
     }
 
 }
@@ -2,17 +2,20 @@ package com.sb.elsinore;
 
 import jGPIO.InvalidGPIOException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -20,20 +23,22 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.rendersnake.HtmlCanvas;
 
 import com.sb.elsinore.NanoHTTPD.Response.Status;
 import com.sb.elsinore.NanoHTTPD.Response;
-import com.sb.elsinore.html.RenderHTML;
+import com.sb.elsinore.devices.OutputEventLog;
+import com.sb.elsinore.devices.PowerScheduler;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -56,6 +61,38 @@ public class BrewServer extends NanoHTTPD {
      */
     public static final Logger LOG = Logger.getLogger("com.sb.manager.Server");
 
+    /**
+     * Default worker threads and queue size for the pool request runner.
+     */
+    private static final int DEFAULT_POOL_THREADS = 16;
+    private static final int DEFAULT_POOL_QUEUE = 32;
+
+    /**
+     * Responses smaller than this many bytes aren't worth compressing.
+     */
+    private static final int DEFAULT_GZIP_THRESHOLD = 1024;
+
+    /**
+     * The compression level for graph data downloads, -1 is zlib's default.
+     */
+    private static final int DEFAULT_ZIP_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The URLs served, and their request statistics.
+     */
+    private final RouteTable routes = new RouteTable();
+
+    /**
+     * The static files held in memory.
+     */
+    private StaticAssetCache assetCache;
+
+    /**
+     * The compression level for graph data downloads, checked by
+     * LaunchControl.
+     */
+    private final int zipLevel;
+
     /**
      * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE.
      */
@@ -92,6 +129,7 @@ public class BrewServer extends NanoHTTPD {
             put("exe", "application/octet-stream");
             put("class", "application/octet-stream");
             put("json", "application/json");
+            put("bin", "application/octet-stream");
         }
     };
 
@@ -170,6 +208,51 @@ public class BrewServer extends NanoHTTPD {
         BrewServer.LOG.info("Enabled logging at level:" + logLevel.toString());
         BrewServer.LOG.setLevel(logLevel);
 
+        String runner = System.getProperty("async_runner");
+        if (runner != null) {
+            setAsyncRunner(createAsyncRunner(runner));
+        }
+
+        String unixSocket = System.getProperty("unix_socket");
+        if (unixSocket != null) {
+            LOG.info("Also listening on " + unixSocket);
+            setUnixSocketPath(unixSocket);
+            String mode = System.getProperty("unix_socket_mode");
+            if (mode != null) {
+                try {
+                    setUnixSocketPermissions(
+                            toPermissions(Integer.parseInt(mode.trim(), 8)));
+                } catch (IllegalArgumentException e) {
+                    LOG.warning("Invalid Unix socket mode: " + mode
+                            + ", leaving the default permissions");
+                }
+            }
+        }
+
+        if (Boolean.getBoolean("nio_front_end")) {
+            LOG.info("Using the selector front end");
+            setSelectorFrontEnd(true);
+        }
+
+        setGzipThreshold(Integer.getInteger("gzip_threshold",
+                DEFAULT_GZIP_THRESHOLD));
+
+        AdmissionControl admission = createAdmissionControl(
+                System.getProperty("max_connections"),
+                System.getProperty("read_deadline"));
+        admission.addPriorityPaths("/updatepid", "/updatepump", "/updateday",
+                "/toggleaux", "/pumpprogram", "/togglemash", "/batch",
+                "/stop");
+        setAdmissionControl(admission);
+        setMaxBodySize(Long.getLong("max_body", DEFAULT_MAX_BODY_SIZE));
+        zipLevel = Integer.getInteger("zip_level", DEFAULT_ZIP_LEVEL);
+
+        // Direct buffers only save a copy when writing to a socket channel
+        assetCache = new StaticAssetCache(Long.getLong("asset_cache",
+                StaticAssetCache.DEFAULT_MAX_BYTES), isSelectorFrontEnd());
+
+        registerRoutes();
+
         this.rootDir = new File(BrewServer.class.getProtectionDomain()
                 .getCodeSource().getLocation().getPath()).getParentFile();
 
@@ -184,6 +267,106 @@ public class BrewServer extends NanoHTTPD {
         if (rootDir.exists() && rootDir.isDirectory()) {
             LOG.info("Root directory: " + rootDir.toString());
         }
+
+        if (getGzipThreshold() >= 0) {
+            GzipAssets.precompressInBackground(
+                    new File(rootDir, "templates/static"));
+        }
+    }
+
+    /**
+     * @param response A response, may be null.
+     * @return True if it has a 2xx status, so a change was made.
+     */
+    private static boolean isSuccess(final Response response) {
+        if (response == null || response.getStatus() == null) {
+            return false;
+        }
+        int code = response.getStatus().getRequestStatus();
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Create the connection limits from the command line specifications.
+     *
+     * @param connections
+     *            "total[:perclient]", or null for the defaults
+     * @param deadline
+     *            "header[:body]" in seconds, or null for the defaults
+     * @return The limits, the defaults if a specification isn't valid.
+     */
+    private static AdmissionControl createAdmissionControl(
+            final String connections, final String deadline) {
+        int total = AdmissionControl.DEFAULT_MAX_CONNECTIONS;
+        int perClient = AdmissionControl.DEFAULT_MAX_PER_CLIENT;
+        int header = AdmissionControl.DEFAULT_HEADER_TIMEOUT;
+        int body = AdmissionControl.DEFAULT_BODY_TIMEOUT;
+        try {
+            if (connections != null) {
+                String[] parts = connections.trim().split(":");
+                total = Integer.parseInt(parts[0]);
+                perClient = parts.length > 1
+                        ? Integer.parseInt(parts[1]) : Math.min(total, perClient);
+            }
+            if (deadline != null) {
+                String[] parts = deadline.trim().split(":");
+                header = Integer.parseInt(parts[0]) * 1000;
+                body = parts.length > 1
+                        ? Integer.parseInt(parts[1]) * 1000 : Math.max(header, body);
+            }
+            AdmissionControl admission =
+                    new AdmissionControl(total, perClient, header, body);
+            LOG.info("Allowing " + total + " connections, " + perClient
+                    + " per client, " + header / 1000 + "s to send a header and "
+                    + body / 1000 + "s to send a body");
+            return admission;
+        } catch (NumberFormatException e) {
+            LOG.warning("Couldn't parse connection limits: " + connections
+                    + ", " + deadline);
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Invalid connection limits: " + connections + ", "
+                    + deadline + ", " + e.getMessage());
+        }
+        return new AdmissionControl();
+    }
+
+    /**
+     * Create the request runner from the command line specification.
+     *
+     * @param spec
+     *            "thread", "pool[:threads[:queue]]" or "virtual"
+     * @return The runner, the default thread per connection runner if the
+     *         specification isn't valid.
+     */
+    private static AsyncRunner createAsyncRunner(final String spec) {
+        String[] parts = spec.trim().split(":");
+        String type = parts[0].toLowerCase();
+        try {
+            if (type.equals("pool")) {
+                int threads = parts.length > 1
+                        ? Integer.parseInt(parts[1]) : DEFAULT_POOL_THREADS;
+                int queue = parts.length > 2
+                        ? Integer.parseInt(parts[2]) : DEFAULT_POOL_QUEUE;
+                LOG.info("Using a pool of " + threads
+                        + " request threads, queue size " + queue);
+                return new BoundedAsyncRunner(threads, queue);
+            }
+            if (type.equals("virtual")) {
+                LOG.info("Using virtual threads for requests");
+                return new VirtualThreadAsyncRunner();
+            }
+            if (!type.equals("thread")) {
+                LOG.warning("Unknown request runner: " + spec);
+            }
+        } catch (NumberFormatException e) {
+            LOG.warning("Couldn't parse request runner: " + spec);
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Invalid request runner: " + spec + ", "
+                    + e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            LOG.warning(e.getMessage() + ", using a thread per connection");
+        }
+        return new DefaultAsyncRunner();
     }
 
     /**
@@ -934,10 +1117,13 @@ public class BrewServer extends NanoHTTPD {
      * 
      * @param params
      *            The parameters from the client
+     * @param apply
+     *            Update the PID, false to only check the parameters
      * @return True if success, false if failure
      */
     @SuppressWarnings("unchecked")
-    private Response updatePID(final Map<String, String> params) {
+    private Response updatePID(final Map<String, String> params,
+            final boolean apply) {
         String temp, mode = "off";
         BigDecimal dTemp = new BigDecimal(0), duty = new BigDecimal(0),
                 heatcycle = new BigDecimal(0), setpoint = new BigDecimal(0),
@@ -946,7 +1132,8 @@ public class BrewServer extends NanoHTTPD {
                 max = new BigDecimal(0), time = new BigDecimal(0),
                 coolcycle = new BigDecimal(0), coolp= new BigDecimal(0),
                 cooli = new BigDecimal(0), coold = new BigDecimal(0),
-                cooldelay = new BigDecimal(0), cycle = new BigDecimal(0);
+                cooldelay = new BigDecimal(0), cycle = new BigDecimal(0),
+                heatwatts = null, coolwatts = null, coolminon = null;
 
         JSONObject sub_usage = new JSONObject();
         Map<String, String> parms = ParseParams(params);
@@ -1049,6 +1236,21 @@ public class BrewServer extends NanoHTTPD {
             }
         }
 
+        sub_usage.put("heatwatts", "The power draw of the heat output in watts");
+        if (parms.containsKey("heatwatts")) {
+            temp = parms.get("heatwatts");
+            try {
+                dTemp = new BigDecimal(temp.replace(",", "."));
+                heatwatts = dTemp;
+                BrewServer.LOG.info("Heat watts: " + heatwatts);
+            } catch (NumberFormatException nfe) {
+                if (tPID.hasValidHeater()) {
+                    BrewServer.LOG.warning("Bad heat watts");
+                    errorValue = true;
+                }
+            }
+        }
+
         sub_usage.put("coolcycletime", "The new cool cycle time in seconds to set");
         if (parms.containsKey("coolcycletime")) {
             temp = parms.get("coolcycletime");
@@ -1094,6 +1296,36 @@ public class BrewServer extends NanoHTTPD {
             }
         }
 
+        sub_usage.put("coolminon", "The minimum compressor run time in minutes to set");
+        if (parms.containsKey("coolminon")) {
+            temp = parms.get("coolminon");
+            try {
+                dTemp = new BigDecimal(temp.replace(",", "."));
+                coolminon = dTemp;
+                BrewServer.LOG.info("Minimum on time: " + coolminon);
+            } catch (NumberFormatException nfe) {
+                if (tPID.hasValidCooler()) {
+                    BrewServer.LOG.warning("Bad cool minimum on time");
+                    errorValue = true;
+                }
+            }
+        }
+
+        sub_usage.put("coolwatts", "The power draw of the cool output in watts");
+        if (parms.containsKey("coolwatts")) {
+            temp = parms.get("coolwatts");
+            try {
+                dTemp = new BigDecimal(temp.replace(",", "."));
+                coolwatts = dTemp;
+                BrewServer.LOG.info("Cool watts: " + coolwatts);
+            } catch (NumberFormatException nfe) {
+                if (tPID.hasValidCooler()) {
+                    BrewServer.LOG.warning("Bad cool watts");
+                    errorValue = true;
+                }
+            }
+        }
+
         sub_usage.put("coolp", "The new proportional value to set");
         if (parms.containsKey("coolp")) {
             temp = parms.get("coolp");
@@ -1194,8 +1426,22 @@ public class BrewServer extends NanoHTTPD {
             return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
                     usage.toJSONString()); 
         }
-        
+
+        if (!apply) {
+            return new Response(Status.OK, MIME_HTML, "PID " + inputUnit
+                    + " checked");
+        }
+
         if (tPID != null) {
+            if (heatwatts != null) {
+                tPID.setHeatWatts(heatwatts);
+            }
+            if (coolwatts != null) {
+                tPID.setCoolWatts(coolwatts);
+            }
+            if (coolminon != null) {
+                tPID.setCoolMinOn(coolminon);
+            }
             if (mode.equalsIgnoreCase("hysteria")) {
                 tPID.setHysteria(min, max, time);
                 tPID.useHysteria();
@@ -1244,380 +1490,1004 @@ public class BrewServer extends NanoHTTPD {
             final Map<String, String> header, final Map<String, String> parms,
             final Map<String, String> files) {
 
-        BrewServer.LOG.info("URL : " + uri + " method: " + method);
-
-        if (uri.equalsIgnoreCase("/clearStatus")) {
-            LaunchControl.setMessage("");
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Status Cleared");
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("URL : " + uri + " method: " + method);
         }
 
-        // parms contains the properties here
-        if (uri.equalsIgnoreCase("/mashprofile")) {
-            if (updateMashProfile(parms)) {
-                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "Updated MashProfile");
-            }
-
-            return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
-                    "Failed to update Mashprofile");
+        long start = System.nanoTime();
+        RouteTable.Route route = routes.find(uri);
+        Response response = routes.dispatch(route, uri, method, header, parms,
+                files);
+        if (route != null && !route.isReadOnly() && isSuccess(response)) {
+            LaunchControl.statusChanged();
+            ControllerPage.invalidate();
         }
-
-        if (uri.equalsIgnoreCase("/addmashstep")) {
-            return addMashStep(parms);
+        if (response != null) {
+            route.count(header, response);
+            return response;
         }
 
-        if (uri.equalsIgnoreCase("/addsystem")) {
-            LaunchControl.addSystemTemp();
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Added system temperature");
-        }
-        
-        if (uri.equalsIgnoreCase("/delsystem")) {
-            LaunchControl.delSystemTemp();
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Deleted system temperature");
+        RouteTable.Route unrouted = routes.getUnrouted();
+        if (!uri.equals("") && new File(rootDir, uri).exists()) {
+            response = serveFile(uri, header, rootDir);
+            unrouted.getLatency().record(System.nanoTime() - start);
+            unrouted.count(header, response);
+            return response;
         }
 
-        if (uri.equalsIgnoreCase("/delmashstep")) {
-            return delMashStep(parms);
-        }
+        BrewServer.LOG.info("Unidentified URL: " + uri);
+        JSONObject usage = new JSONObject();
+        usage.put("controller", "Get the main controller page");
+        usage.put("getstatus", "Get the current status as a JSON object");
+        usage.put("timers", "Get the current timer status");
 
-        if (uri.equalsIgnoreCase("/togglemash")) {
-            if (toggleMashProfile(parms)) {
-                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "Toggled mash profile");
-            }
-            return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
-                    "Failed to toggle MashProfile");
-        }
+        usage.put("addpump", "Add a new pump");
+        usage.put("addtimer", "Add a new timer");
+        usage.put("addvolpoint", "Add a new volume point");
 
-        if (uri.equalsIgnoreCase("/reordermashprofile")) {
-            return reorderMashProfile(parms);
-        }
+        usage.put("toggleaux", "toggle an aux output");
+        usage.put("mashprofile", "Set a mash profile for the output");
+        usage.put("editdevice", "Edit the settings on a device");
 
-        if (uri.equalsIgnoreCase("/editdevice")) {
-            return editVessel(parms);
-        }
-        if (uri.equalsIgnoreCase("/updatepid")) {
-            // parse the values if possible
-            return updatePID(parms);
-        }
+        usage.put("updatepid", "Update the PID Settings");
+        usage.put("updateday", "Update the brewday information");
+        usage.put("updatepump", "Change the pump status off/on");
+        usage.put("batch", "Run several update commands at once");
+        usage.put("metrics", "Get the server metrics for Prometheus");
 
-        if (uri.equalsIgnoreCase("/updateday")) {
-            // we're storing the data for the brew day
-            String tempDateStamp;
-            BrewDay brewDay = LaunchControl.getBrewDay();
+        BrewServer.LOG.info("Invalid URI: " + uri);
+        response = new NanoHTTPD.Response(Status.NOT_FOUND,
+                MIME_TYPES.get("json"), usage.toJSONString());
+        unrouted.getLatency().record(System.nanoTime() - start);
+        unrouted.count(header, response);
+        return response;
+    }
 
-            // updated date
-            if (parms.containsKey("updated")) {
-                tempDateStamp = parms.get("updated");
-                brewDay.setUpdated(tempDateStamp);
-            } else {
-                // we don't have an updated datestamp
+    /**
+     * Add the handlers for every URL served by Elsinore. A handler that
+     * returns null falls through to the files under the root directory.
+     */
+    private void registerRoutes() {
+        routes.add("/clearStatus", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.setMessage("");
                 return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "No update datestamp, not updating a thang! YA HOSER!");
-            }
-
-            Iterator<Entry<String, String>> it = parms.entrySet().iterator();
-            Entry<String, String> e = null;
-
-            while (it.hasNext()) {
-                e = it.next();
-
-                if (e.getKey().endsWith("Start")) {
-                    int trimEnd = e.getKey().length() - "Start".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.startTimer(name, e.getValue());
-                } else if (e.getKey().endsWith("End")) {
-                    int trimEnd = e.getKey().length() - "End".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.stopTimer(name, e.getValue());
-                } else if (e.getKey().endsWith("Reset")) {
-                    int trimEnd = e.getKey().length() - "Reset".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.resetTimer(name);
+                        "Status Cleared");
+            }
+        });
+
+        // parms contains the properties here
+        routes.add("/mashprofile", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (updateMashProfile(parms)) {
+                    return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                            "Updated MashProfile");
                 }
+
+                return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
+                        "Failed to update Mashprofile");
             }
+        });
 
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Updated Brewday");
-        }
+        routes.add("/addmashstep", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addMashStep(parms);
+            }
+        });
 
-        if (uri.equalsIgnoreCase("/updatepump")) {
-            if (parms.containsKey("toggle")) {
-                String pumpname = parms.get("toggle");
-                Pump tempPump = LaunchControl.findPump(pumpname.replaceAll("_", " "));
-                if (tempPump != null) {
-                    if (tempPump.getStatus()) {
-                        tempPump.turnOff();
-                    } else {
-                        tempPump.turnOn();
-                    }
+        routes.add("/addsystem", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.addSystemTemp();
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        "Added system temperature");
+            }
+        });
 
+        routes.add("/delsystem", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.delSystemTemp();
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        "Deleted system temperature");
+            }
+        });
+
+        routes.add("/delmashstep", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return delMashStep(parms);
+            }
+        });
+
+        routes.add("/togglemash", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (toggleMashProfile(parms)) {
                     return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                            "Updated Pump");
-                } else {
-                    JSONObject usage = new JSONObject();
-                    usage.put("Error", "Invalid name supplied: " + pumpname);
-                    usage.put("toggle", "The name of the Pump to toggle on/off");
-                    return new Response(Status.BAD_REQUEST,
-                            MIME_TYPES.get("txt"), "Invalid pump: " + pumpname
-                                    + " provided.");
+                            "Toggled mash profile");
                 }
+                return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
+                        "Failed to toggle MashProfile");
+            }
+        });
+
+        routes.add("/reordermashprofile", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return reorderMashProfile(parms);
+            }
+        });
+
+        routes.add("/editdevice", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return editVessel(parms);
+            }
+        });
+
+        routes.add("/updatepid", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // parse the values if possible
+                return updatePID(parms, true);
+            }
+        });
+
+        routes.add("/updateday", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateDay(parms, true);
+            }
+        });
+
+        routes.add("/updatepump", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return togglePump(parms, true);
+            }
+        });
+
+        routes.add("/batch", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return runBatch(parms);
+            }
+        }, Method.POST);
+
+        routes.add("/pumpprogram", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updatePumpProgram(parms);
+            }
+        });
+
+        routes.add("/toggleaux", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return toggleAux(parms);
+            }
+        });
+
+        routes.add("/getstatus", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getStatus(header, parms);
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/events", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getStatusEvents(header);
+            }
+        }, Method.GET);
+
+        routes.add("/outputevents", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getOutputEvents(parms);
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/serverstatus", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getServerStatus();
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/metrics", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                StringBuilder metrics = new StringBuilder(16 * 1024);
+                Metrics.write(metrics, routes.getRoutes());
+                return new Response(Status.OK,
+                        "text/plain; version=0.0.4; charset=utf-8",
+                        metrics.toString());
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/energy", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"),
+                        LaunchControl.getEnergyStatus());
             }
-        }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/getsystemsettings", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"),
+                        LaunchControl.getSystemStatus());
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/updatesystemsettings", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), updateSystemSettings(parms));
+            }
+        });
+
+        routes.add("/oldcontroller", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        LaunchControl.getControlPage());
+            }
+        }, Method.GET, Method.HEAD);
 
-        if (uri.equalsIgnoreCase("/toggleaux")) {
-            if (parms.containsKey("toggle")) {
-                String pidname = parms.get("toggle");
-                PID tempPID = LaunchControl.findPID(pidname);
-                if (tempPID != null) {
-                    tempPID.toggleAux();
+        routes.add("/controller", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                try {
+                    Response response = sendCached(header, MIME_HTML,
+                            ControllerPage.get());
+                    // Check with the server every time, the page changes
+                    // with the devices
+                    response.addHeader("Cache-Control", "no-cache");
+                    return response;
+                } catch (IOException e) {
+                    e.printStackTrace();
                     return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                            "Updated Aux for " + pidname);
-                } else {
-                    LOG.warning("Invalid PID: " + pidname + " provided.");
-                    JSONObject usage = new JSONObject();
-                    usage.put("Error", "Invalid name supplied: " + pidname);
-                    usage.put("toggle",
-                            "The name of the PID to toggle the aux output for");
-                    return new Response(usage.toJSONString());
+                            e.getMessage());
                 }
             }
-        }
-
-        if (uri.equalsIgnoreCase("/getstatus")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    LaunchControl.getJSONStatus());
-        }
-
-        if (uri.equalsIgnoreCase("/getsystemsettings")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    LaunchControl.getSystemStatus());
-        }
+        }, Method.GET, Method.HEAD);
 
-        if (uri.equalsIgnoreCase("/updatesystemsettings")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    updateSystemSettings(parms));
-        }
+        routes.add("/timers", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        LaunchControl.getBrewDay().getJSONDataString());
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/graph", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return serveFile("/templates/static/graph/graph.html", header,
+                        rootDir);
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.addPrefix("/graph-data", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getGraphData(parms);
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/addpump", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addPump(parms);
+            }
+        });
+
+        routes.add("/addtimer", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addTimer(parms);
+            }
+        });
+
+        routes.add("/addvolpoint", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addVolumePoint(parms);
+            }
+        });
+
+        routes.add("/checkgit", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.checkForUpdates();
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), "{Status:'OK'}");
+            }
+        });
+
+        routes.add("/restartupdate", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.updateFromGit();
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), "{Status:'OK'}");
+            }
+        });
+
+        routes.add("/setbreweryname", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                updateBreweryName(parms);
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), "{Status:'OK'}");
+            }
+        });
+
+        routes.add("/settheme", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return setTheme(parms);
+            }
+        });
+
+        routes.add("/favicon.ico", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // Has the favicon been overridden?
+                // Check to see if there's a theme set.
+                if (LaunchControl.theme != null
+                        && !LaunchControl.theme.equals("")) {
+                    if (new File(rootDir,
+                            "/logos/" + LaunchControl.theme + ".ico").exists()) {
+                        return serveFile("/logos/" + LaunchControl.theme
+                                + ".ico", header, rootDir);
+                    }
+                }
+                return null;
+            }
+        }, Method.GET, Method.HEAD);
 
-        if (uri.equalsIgnoreCase("/oldcontroller")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    LaunchControl.getControlPage());
-        }
+        // NLS Support
+        routes.addPrefix("/nls/", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return serveFile("/src/com/sb/elsinore/nls/"
+                        + uri.substring("/nls/".length()), header, rootDir);
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/brewerImage.gif", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // Has the user uploaded a file?
+                if (new File(rootDir, uri).exists()) {
+                    return serveFile(uri, header, rootDir);
+                }
+                // Check to see if there's a theme set.
+                if (LaunchControl.theme != null
+                        && !LaunchControl.theme.equals("")) {
+                    if (new File(rootDir,
+                            "/logos/" + LaunchControl.theme + ".gif").exists()) {
+                        return serveFile("/logos/" + LaunchControl.theme
+                                + ".gif", header, rootDir);
+                    }
+                }
+                return null;
+            }
+        }, Method.GET, Method.HEAD);
+
+        routes.add("/uploadimage", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateBreweryImage(files);
+            }
+        }, Method.POST, Method.PUT);
+
+        routes.add("/updatepumporder", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updatePumpOrder(parms);
+            }
+        });
+
+        routes.add("/deletepump", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return deletePump(parms);
+            }
+        });
+
+        routes.add("/unlockpage", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.unlockPage();
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), "{status: 'unlocked'}");
+            }
+        });
+
+        routes.add("/lockpage", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.lockPage();
+                return new NanoHTTPD.Response(Status.OK,
+                        MIME_TYPES.get("json"), "{status: 'locked'}");
+            }
+        });
+
+        routes.add("/updatetimerorder", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateTimerOrder(parms);
+            }
+        });
+
+        routes.add("/deletetimer", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return deleteTimer(parms);
+            }
+        });
+
+        routes.add("/setscale", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return setScale(parms);
+            }
+        });
+
+        routes.add("/toggledevice", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return toggleDevice(parms);
+            }
+        });
+
+        routes.add("/stop", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                System.exit(128);
+                return null;
+            }
+        });
+
+        routes.add("/setgravity", new RouteTable.Handler() {
+            @Override
+            public Response handle(final String uri, final Method method,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return setGravity(parms);
+            }
+        });
+
+        routes.freeze();
+    }
 
-        if (uri.equalsIgnoreCase("/controller")) {
-            RenderHTML renderController = new RenderHTML();
-            HtmlCanvas html = new HtmlCanvas();
-            String result = "";
+    /**
+     * Serve the cached status snapshot. Clients that send the current ETag in
+     * If-None-Match get a 304 without the body. With since=version only the
+     * fields changed since that version are sent, adding wait=ms holds the
+     * request until there's a newer version or the wait runs out.
+     * @param header The request headers.
+     * @param parms The request parameters.
+     * @return The response to send back.
+     */
+    private Response getStatus(final Map<String, String> header,
+            final Map<String, String> parms) {
+        if (parms.containsKey("since")) {
+            long since = 0;
             try {
-                renderController.renderOn(html);
-                result = html.toHtml();
-            } catch (IOException e) {
-                e.printStackTrace();
-                result = e.getMessage();
+                since = Long.parseLong(parms.get("since"));
+            } catch (NumberFormatException e) {
+                // Send the full status
             }
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    result);
-        }
-
-        if (uri.equalsIgnoreCase("/timers")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML, LaunchControl
-                    .getBrewDay().brewDayStatus().toString());
+            if (parms.containsKey("wait")) {
+                long wait = 0;
+                try {
+                    wait = Long.parseLong(parms.get("wait"));
+                } catch (NumberFormatException e) {
+                    // Don't wait
+                }
+                return StatusEvents.getInstance().waitForChange(since, wait);
+            }
+            Response response = new Response(Status.OK,
+                    MIME_TYPES.get("json"), new ByteArrayInputStream(
+                            LaunchControl.getStatusDelta(since)));
+            response.addHeader("Cache-Control", "no-cache");
+            return response;
         }
 
-        if (uri.equalsIgnoreCase("/graph")) {
-            return serveFile("/templates/static/graph/graph.html", header,
-                    rootDir);
-        }
+        Response response = sendCached(header, MIME_TYPES.get("json"),
+                LaunchControl.getStatusSnapshot());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
 
-        if (uri.toLowerCase().startsWith("/graph-data")) {
-            return getGraphData(parms);
+    /**
+     * Send a body that's built once for many clients.
+     * @param header The request headers.
+     * @param mime The MIME type of the body.
+     * @param body The body and its ETag.
+     * @return 304 if the client has the body already, otherwise the body,
+     *         gzipped if the client accepts it.
+     */
+    private Response sendCached(final Map<String, String> header,
+            final String mime, final CachedBody body) {
+        boolean compressible = getGzipThreshold() >= 0
+                && body.getLength() >= getGzipThreshold();
+        String etag = body.getETag();
+        Response response;
+        if (body.matches(header.get("if-none-match"))) {
+            response = new Response(Status.NOT_MODIFIED, mime, (String) null);
+        } else if (compressible
+                && NanoHTTPD.acceptsGzip(header.get("accept-encoding"))) {
+            // Compressed once per body rather than once per request
+            response = new Response(Status.OK, mime,
+                    new ByteArrayInputStream(body.getGzipped()));
+            response.addHeader("Content-Encoding", "gzip");
+            etag = "W/" + etag;
+        } else {
+            response = new Response(Status.OK, mime, body.openStream());
         }
-
-        if (uri.equalsIgnoreCase("/addpump")) {
-            return addPump(parms);
+        if (compressible) {
+            response.addHeader("Vary", "Accept-Encoding");
         }
+        response.addHeader("ETag", etag);
+        return response;
+    }
 
-        if (uri.equalsIgnoreCase("/addtimer")) {
-            return addTimer(parms);
-        }
+    /**
+     * Open a Server-Sent Events stream of the status.
+     * @param header The request headers.
+     * @return The chunked event stream.
+     */
+    private Response getStatusEvents(final Map<String, String> header) {
+        Response response = new Response(Status.OK, "text/event-stream",
+                StatusEvents.getInstance().openStream(
+                        header.get("last-event-id")));
+        response.addHeader("Cache-Control", "no-cache");
+        response.setChunkedTransfer(true);
+        return response;
+    }
 
-        if (uri.equalsIgnoreCase("/addvolpoint")) {
-            return addVolumePoint(parms);
+    /**
+     * Store the timers for the brew day.
+     * @param parms The timer Start/End/Reset values and the updated time.
+     * @param apply Store the timers, false to only check the parameters.
+     * @return The response to send back.
+     */
+    private Response updateDay(final Map<String, String> parms,
+            final boolean apply) {
+        // we're storing the data for the brew day
+        String tempDateStamp;
+        BrewDay brewDay = LaunchControl.getBrewDay();
+
+        // updated date
+        if (!parms.containsKey("updated")) {
+            // we don't have an updated datestamp
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "No update datestamp, not updating a thang! YA HOSER!");
+        } else if (!apply) {
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "Checked Brewday");
         }
+        tempDateStamp = parms.get("updated");
+        brewDay.setUpdated(tempDateStamp);
 
-        if (uri.equalsIgnoreCase("/checkgit")) {
-            LaunchControl.checkForUpdates();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
-        }
+        Iterator<Entry<String, String>> it = parms.entrySet().iterator();
+        Entry<String, String> e = null;
 
-        if (uri.equalsIgnoreCase("/restartupdate")) {
-            LaunchControl.updateFromGit();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
-        }
+        while (it.hasNext()) {
+            e = it.next();
 
-        if (uri.equalsIgnoreCase("/setbreweryname")) {
-            updateBreweryName(parms);
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
+            if (e.getKey().endsWith("Start")) {
+                int trimEnd = e.getKey().length() - "Start".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.startTimer(name, e.getValue());
+            } else if (e.getKey().endsWith("End")) {
+                int trimEnd = e.getKey().length() - "End".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.stopTimer(name, e.getValue());
+            } else if (e.getKey().endsWith("Reset")) {
+                int trimEnd = e.getKey().length() - "Reset".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.resetTimer(name);
+            }
         }
 
-        if (uri.equalsIgnoreCase("/settheme")) {
-            String newTheme = parms.get("name");
-
-            if (newTheme == null) {
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'No name provided'}");
-            }
+        return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                "Updated Brewday");
+    }
 
-            String fileName = "/logos/" + newTheme + ".ico";
-            if (!(new File(rootDir, fileName).exists())) {
-                // It doesn't exist
-                LaunchControl.setMessage("Favicon for the new theme: "
-                        + newTheme + ", doesn't exist."
-                        + " Please add: " + fileName + " and try again");
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'Favicon doesn\'t exist'}");
+    /**
+     * Toggle a pump on or off.
+     * @param parms The toggle parameter with the pump name.
+     * @param apply Toggle the pump, false to only check it exists.
+     * @return The response, or null if there's no pump to toggle.
+     */
+    @SuppressWarnings("unchecked")
+    private Response togglePump(final Map<String, String> parms,
+            final boolean apply) {
+        if (!parms.containsKey("toggle")) {
+            return null;
+        }
+        String pumpname = parms.get("toggle");
+        Pump tempPump = LaunchControl.findPump(pumpname.replaceAll("_", " "));
+        if (tempPump != null && !apply) {
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "Checked Pump");
+        } else if (tempPump != null) {
+            // A manual toggle overrides the program
+            tempPump.stopProgram();
+            if (tempPump.getStatus()) {
+                tempPump.turnOff();
+            } else {
+                tempPump.turnOn();
             }
 
-            fileName = "/logos/" + newTheme + ".gif";
-            if (!(new File(rootDir, fileName).exists())) {
-                // It doesn't exist
-                LaunchControl.setMessage("Brewry image for the new theme: "
-                        + newTheme + ", doesn't exist."
-                        + " Please add: " + fileName + " and try again");
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'Brewery Image doesn\'t exist'}");
-            }
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "Updated Pump");
+        } else {
+            JSONObject usage = new JSONObject();
+            usage.put("Error", "Invalid name supplied: " + pumpname);
+            usage.put("toggle", "The name of the Pump to toggle on/off");
+            return new Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("txt"), "Invalid pump: " + pumpname
+                            + " provided.");
+        }
+    }
 
-            LaunchControl.theme = newTheme;
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
+    /**
+     * Run a list of commands together. Every command is checked before any
+     * is applied, then they're applied as one batch: the status doesn't show
+     * part of the batch and the config file is written once.
+     * @param parms The commands parameter, a JSON array of objects with the
+     *          command name and the same parameters as its own URL, e.g.
+     *          [{"command":"updatepid","inputunit":"Kettle","setpoint":152},
+     *          {"command":"updatepump","toggle":"Main"}]
+     * @return The response to send back.
+     */
+    @SuppressWarnings("unchecked")
+    private Response runBatch(final Map<String, String> parms) {
+        JSONObject usage = new JSONObject();
+        usage.put("commands", "A JSON array of commands, each an object with"
+                + " a command of updatepid, updatepump or updateday and its"
+                + " parameters");
 
+        if (!parms.containsKey("commands")) {
+            return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
+                    usage.toJSONString());
         }
 
-        if (uri.equalsIgnoreCase("/favicon.ico")) {
-            // Has the favicon been overridden?
-            // Check to see if there's a theme set.
-            if (LaunchControl.theme != null
-                    && !LaunchControl.theme.equals("")) {
-                if (new File(rootDir,
-                        "/logos/" + LaunchControl.theme + ".ico").exists()) {
-                    return serveFile("/logos/" + LaunchControl.theme + ".ico",
-                            header, rootDir);
-                }
+        final List<String> names = new ArrayList<String>();
+        final List<Map<String, String>> commands =
+                new ArrayList<Map<String, String>>();
+        try {
+            Object parsed = new JSONParser().parse(parms.get("commands"));
+            if (!(parsed instanceof JSONArray)) {
+                throw new ClassCastException("Not an array: " + parsed);
             }
-
-            if (new File(rootDir, uri).exists()) {
-                return serveFile(uri, header, rootDir);
+            for (Object o : (JSONArray) parsed) {
+                if (!(o instanceof JSONObject)) {
+                    throw new ClassCastException("Not a command: " + o);
+                }
+                Map<String, String> params = new HashMap<String, String>();
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+                    if (e.getValue() != null) {
+                        params.put(e.getKey().toString(),
+                                e.getValue().toString());
+                    }
+                }
+                String name = params.remove("command");
+                names.add(name == null ? "" : name.replace("/", "")
+                        .toLowerCase());
+                commands.add(params);
             }
-
+        } catch (ParseException | ClassCastException e) {
+            usage.put("Error", "Couldn't read the commands: " + e);
+            return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
+                    usage.toJSONString());
         }
 
-        // NLS Support
-        if (uri.startsWith("/nls/")) {
-            return serveFile(uri.replace("/nls/", "/src/com/sb/elsinore/nls/"),
-                header, rootDir);
-        }
-
-        if (uri.equalsIgnoreCase("/brewerImage.gif")) {
-            // Has the user uploaded a file?
-            if (new File(rootDir, uri).exists()) {
-                return serveFile(uri, header, rootDir);
-            }
-            // Check to see if there's a theme set.
-            if (LaunchControl.theme != null
-                    && !LaunchControl.theme.equals("")) {
-                if (new File(rootDir,
-                        "/logos/" + LaunchControl.theme + ".gif").exists()) {
-                    return serveFile("/logos/" + LaunchControl.theme + ".gif",
-                            header, rootDir);
+        final Response[] failed = new Response[1];
+        final int[] failedAt = {-1};
+        LaunchControl.runBatch(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < commands.size(); i++) {
+                    Response r = runCommand(names.get(i), commands.get(i),
+                            false);
+                    if (r == null || r.getStatus() != Status.OK) {
+                        failed[0] = r;
+                        failedAt[0] = i;
+                        return;
+                    }
+                }
+                for (int i = 0; i < commands.size(); i++) {
+                    runCommand(names.get(i), commands.get(i), true);
                 }
             }
+        });
 
-
-        }
-
-        if (!uri.equals("") && new File(rootDir, uri).exists()) {
-            return serveFile(uri, header, rootDir);
-        }
-
-        if (uri.equalsIgnoreCase("/uploadimage")) {
-            return updateBreweryImage(files);
-        }
-
-        if (uri.equalsIgnoreCase("/updatepumporder")) {
-            return updatePumpOrder(parms);
-        }
-
-        if (uri.equalsIgnoreCase("/deletepump")) {
-            return deletePump(parms);
-        }
-
-        if (uri.equalsIgnoreCase("/unlockpage")) {
-            LaunchControl.unlockPage();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{status: 'unlocked'}");
-        }
-
-        if (uri.equalsIgnoreCase("/lockpage")) {
-            LaunchControl.lockPage();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{status: 'locked'}");
-        }
-
-        if (uri.equalsIgnoreCase("/updatetimerorder")) {
-            return updateTimerOrder(parms);
+        if (failedAt[0] >= 0) {
+            BrewServer.LOG.warning("Batch command " + failedAt[0] + " ("
+                    + names.get(failedAt[0]) + ") failed, nothing applied");
+            usage.put("Error", "Command " + failedAt[0] + " ("
+                    + names.get(failedAt[0]) + ") failed, nothing was applied");
+            usage.put("index", failedAt[0]);
+            if (failed[0] == null) {
+                usage.put("detail", "Unknown command or missing parameters");
+            } else {
+                usage.put("detail", responseText(failed[0]));
+            }
+            return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
+                    usage.toJSONString());
         }
 
-        if (uri.equalsIgnoreCase("/deletetimer")) {
-            return deleteTimer(parms);
-        }
+        JSONObject result = new JSONObject();
+        result.put("applied", commands.size());
+        return new Response(Status.OK, MIME_TYPES.get("json"),
+                result.toJSONString());
+    }
 
-        if (uri.equalsIgnoreCase("/setscale")) {
-            return setScale(parms);
-        }
+    /**
+     * Run one command from a batch.
+     * @param name The command name.
+     * @param params The command parameters.
+     * @param apply Make the change, false to only check the parameters.
+     * @return The response, or null for an unknown command.
+     */
+    private Response runCommand(final String name,
+            final Map<String, String> params, final boolean apply) {
+        if (name.equals("updatepid")) {
+            return updatePID(params, apply);
+        } else if (name.equals("updatepump")) {
+            return togglePump(params, apply);
+        } else if (name.equals("updateday")) {
+            return updateDay(params, apply);
+        }
+        return null;
+    }
 
-        if (uri.equalsIgnoreCase("/toggledevice")) {
-            return toggleDevice(parms);
+    /**
+     * @param response A response with a body in memory.
+     * @return The body as text, empty if it's streamed.
+     */
+    private static String responseText(final Response response) {
+        if (!(response.getData() instanceof ByteArrayInputStream)) {
+            return "";
         }
-
-        if (uri.equalsIgnoreCase("/stop")) {
-            System.exit(128);
+        ByteArrayInputStream data = (ByteArrayInputStream) response.getData();
+        byte[] body = new byte[data.available()];
+        data.read(body, 0, body.length);
+        try {
+            return new String(body, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return "";
         }
+    }
 
-        if (uri.equalsIgnoreCase("/setgravity")) {
-            return setGravity(parms);
+    /**
+     * Toggle the aux output of a PID.
+     * @param parms The toggle parameter with the PID name.
+     * @return The response, or null if there's no PID to toggle.
+     */
+    @SuppressWarnings("unchecked")
+    private Response toggleAux(final Map<String, String> parms) {
+        if (!parms.containsKey("toggle")) {
+            return null;
+        }
+        String pidname = parms.get("toggle");
+        PID tempPID = LaunchControl.findPID(pidname);
+        if (tempPID != null) {
+            tempPID.toggleAux();
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "Updated Aux for " + pidname);
+        } else {
+            LOG.warning("Invalid PID: " + pidname + " provided.");
+            JSONObject usage = new JSONObject();
+            usage.put("Error", "Invalid name supplied: " + pidname);
+            usage.put("toggle",
+                    "The name of the PID to toggle the aux output for");
+            return new Response(usage.toJSONString());
         }
+    }
 
-        BrewServer.LOG.info("Unidentified URL: " + uri);
-        JSONObject usage = new JSONObject();
-        usage.put("controller", "Get the main controller page");
-        usage.put("getstatus", "Get the current status as a JSON object");
-        usage.put("timers", "Get the current timer status");
-
-        usage.put("addpump", "Add a new pump");
-        usage.put("addtimer", "Add a new timer");
-        usage.put("addvolpoint", "Add a new volume point");
-
-        usage.put("toggleaux", "toggle an aux output");
-        usage.put("mashprofile", "Set a mash profile for the output");
-        usage.put("editdevice", "Edit the settings on a device");
-
-        usage.put("updatepid", "Update the PID Settings");
-        usage.put("updateday", "Update the brewday information");
-        usage.put("updatepump", "Change the pump status off/on");
-
-        BrewServer.LOG.info("Invalid URI: " + uri);
-        return new NanoHTTPD.Response(Status.NOT_FOUND, MIME_TYPES.get("json"),
-                usage.toJSONString());
+    /**
+     * Change the theme, the favicon and brewery image for it must exist.
+     * @param parms The name parameter with the theme name.
+     * @return The response to send back.
+     */
+    private Response setTheme(final Map<String, String> parms) {
+        String newTheme = parms.get("name");
+
+        if (newTheme == null) {
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'No name provided'}");
+        }
+
+        String fileName = "/logos/" + newTheme + ".ico";
+        if (!(new File(rootDir, fileName).exists())) {
+            // It doesn't exist
+            LaunchControl.setMessage("Favicon for the new theme: "
+                    + newTheme + ", doesn't exist."
+                    + " Please add: " + fileName + " and try again");
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'Favicon doesn\'t exist'}");
+        }
+
+        fileName = "/logos/" + newTheme + ".gif";
+        if (!(new File(rootDir, fileName).exists())) {
+            // It doesn't exist
+            LaunchControl.setMessage("Brewry image for the new theme: "
+                    + newTheme + ", doesn't exist."
+                    + " Please add: " + fileName + " and try again");
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'Brewery Image doesn\'t exist'}");
+        }
+
+        LaunchControl.theme = newTheme;
+        return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                "{Status:'OK'}");
     }
 
     /**
@@ -1747,17 +2617,14 @@ public class BrewServer extends NanoHTTPD {
             if (res == null) {
                 // Get MIME type from file name extension, if possible
                 String mime = null;
-                int dot = f.getCanonicalPath().lastIndexOf('.');
+                int dot = f.getName().lastIndexOf('.');
                 if (dot >= 0) {
-                    mime = MIME_TYPES.get(f.getCanonicalPath()
+                    mime = MIME_TYPES.get(f.getName()
                             .substring(dot + 1).toLowerCase());
                 }
                 if (mime == null) {
                     mime = NanoHTTPD.MIME_HTML;
                 }
-                // Calculate etag
-                String etag = Integer.toHexString((f.getAbsolutePath()
-                        + f.lastModified() + "" + f.length()).hashCode());
 
                 // Support (simple) skipping:
                 long startFrom = 0;
@@ -1784,6 +2651,7 @@ public class BrewServer extends NanoHTTPD {
                 // when skipping is requested
                 long fileLen = f.length();
                 if (range != null && startFrom >= 0) {
+                    String etag = StaticAssetCache.etagFor(f);
                     if (startFrom >= fileLen) {
                         res = new Response(
                                 Response.Status.RANGE_NOT_SATISFIABLE,
@@ -1816,14 +2684,44 @@ public class BrewServer extends NanoHTTPD {
                         res.addHeader("ETag", etag);
                     }
                 } else {
+                    // Send the precompressed copy if there is one, ranges
+                    // are always served from the original
+                    File gz = null;
+                    if (NanoHTTPD.acceptsGzip(header.get("accept-encoding"))) {
+                        gz = GzipAssets.getCompressed(f);
+                    }
+                    File source = gz != null ? gz : f;
+
+                    // Small files come from memory, the rest are sent
+                    // straight from the file
+                    StaticAssetCache.Asset asset = assetCache.get(source);
+                    String etag = asset != null ? asset.getETag()
+                            : StaticAssetCache.etagFor(source);
+
                     if (etag.equals(header.get("if-none-match"))) {
                         res = new Response(Response.Status.NOT_MODIFIED, mime,
                                 "");
+                    } else if (asset != null) {
+                        res = new Response(Response.Status.OK, mime,
+                                asset.openStream());
+                        res.addHeader("Content-Length",
+                                "" + asset.getLength());
                     } else {
                         res = new Response(Response.Status.OK, mime,
-                                new FileInputStream(f));
-                        res.addHeader("Content-Length", "" + fileLen);
-                        res.addHeader("ETag", etag);
+                                new FileInputStream(source));
+                        res.addHeader("Content-Length", "" + source.length());
+                    }
+                    res.addHeader("ETag", etag);
+                    if (gz != null
+                            && res.getStatus() == Response.Status.OK) {
+                        res.addHeader("Content-Encoding", "gzip");
+                    }
+                    if (GzipAssets.isCompressible(f.getName())) {
+                        res.addHeader("Vary", "Accept-Encoding");
+                    }
+                    if (StaticAssetCache.isFingerprinted(uri)) {
+                        res.addHeader("Cache-Control",
+                                StaticAssetCache.IMMUTABLE);
                     }
                 }
             }
@@ -2013,12 +2911,9 @@ public class BrewServer extends NanoHTTPD {
 
         // Read CSV files and make a JSON Response
 
-        // Assume live for now until we can build a UI to deal with this
-        boolean live = true;
-
-        // If Live - read newest set
-        String directory = null;
-        if (live) {
+        // Read the newest session, unless another one is asked for
+        String directory = parms.get("session");
+        if (directory == null) {
 
             long newest = 0;
             File file = new File("graph-data/");
@@ -2037,104 +2932,88 @@ public class BrewServer extends NanoHTTPD {
                 }
             }
             directory = String.valueOf(newest);
+        } else if (!directory.matches("\\d+")) {
+            return new Response(Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT,
+                    "Invalid session: " + directory);
         }
 
-        // Else Read based on time
-
         // Get files from directory
         File directoryFile = new File("graph-data/" + directory);
 
         File[] contents = directoryFile.listFiles();
-        JSONObject xsData = new JSONObject();
-        JSONObject axes = new JSONObject();
-        JSONObject columns = new JSONObject();
-        JSONArray dataBuffer = new JSONArray();
+        if (contents == null) {
+            return new Response(Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
+                    "No graph data for session " + directory);
+        }
+        Arrays.sort(contents);
         long currentTime = System.currentTimeMillis();
 
         // Are we downloading the files?
-        if (params.containsKey("download")
-                && params.get("download").equalsIgnoreCase("true")) {
-            String zipFileName = "graph-data/zipdownload-"
-                + currentTime + ".zip";
-            ZipFile zipFile = null;
-            try {
-                zipFile = new ZipFile(zipFileName);
-            } catch (FileNotFoundException ioe) {
-                BrewServer.LOG.warning(
-                        "Couldn't create zip file at: " + zipFileName);
-                BrewServer.LOG.warning(ioe.getLocalizedMessage());
-            }
-
-            for (File content : contents) {
-                try {
-                    if (content.getName().endsWith(".csv")
-                            && content.getName().toLowerCase()
-                                    .startsWith(vessel.toLowerCase())) {
-                        zipFile.addToZipFile(content.getAbsolutePath());
-                    }
-                } catch (IOException ioe) {
-                    BrewServer.LOG.warning(
-                            "Couldn't add " + content.getAbsolutePath()
-                            + " to zipfile");
-                }
-            }
-            return serveFile(zipFileName, params, rootDir);
+        if (parms.containsKey("download")
+                && parms.get("download").equalsIgnoreCase("true")) {
+            return getGraphDownload(parms, directory, contents, vessel);
         }
 
+        String bindto = "#chart";
+        if (parms.containsKey("bindto")) {
+            bindto = "#" + parms.get("bindto");
+        }
+        boolean shortNames = bindto.endsWith("-graph_body");
+
+        String format = parms.get("format");
+        if ("compact".equalsIgnoreCase(format)
+                || "binary".equalsIgnoreCase(format)) {
+            return getCompactGraphData(contents, vessel, shortNames,
+                    currentTime, "binary".equalsIgnoreCase(format));
+        }
+
+        // The columns are written straight from the CSV files, each file is
+        // written to the scratch writers first so one that can't be read is
+        // left out completely
+        JsonWriter writer = new JsonWriter(16 * 1024);
+        JsonWriter xWriter = new JsonWriter(8 * 1024);
+        JsonWriter dataWriter = new JsonWriter(8 * 1024);
+        StringBuilder time = new StringBuilder(8);
+        TimeZone timeZone = TimeZone.getDefault();
+        List<String> names = new ArrayList<String>();
+
+        writer.beginObject();
+        writer.name("data").beginObject();
+        writer.name("columns").beginArray();
         for (File content : contents) {
-            if (content.getName().endsWith(".csv")
-                    && content.getName().toLowerCase()
-                            .startsWith(vessel.toLowerCase())) {
-                String name = content.getName();
-
-                // Strip off .csv
-                name = name.substring(0, name.length() - 4);
-                name = name.replace('-', ' ');
+            String name = graphSeriesName(content, vessel, shortNames);
+            if (name != null) {
+                names.add(name);
 
-                if (parms.containsKey("bindto")
-                        && ((String)parms.get("bindto"))
-                        .endsWith("-graph_body")) {
-                    name = name.substring(name.lastIndexOf(" ") + 1);
-                }
-
-                xsData.put(name, "x" + name);
+                xWriter.reset().beginArray().value("x" + name);
+                dataWriter.reset().beginArray().value(name);
 
-                if (name.endsWith("duty")) {
-                    axes.put(name, "y2");
-                } else {
-                    axes.put(name, "y");
-                }
-
-                JSONArray xArray = new JSONArray();
-                JSONArray dataArray = new JSONArray();
-
-                xArray.add("x" + name);
-                dataArray.add(name);
-
-                String lastLine = null;
                 BufferedReader reader = null;
                 try {
                     reader = new BufferedReader(new FileReader(content));
                     String line;
-                    String[] lArray = null;
+                    String lastLine = null;
+                    long lastTime = 0;
 
                     while ((line = reader.readLine()) != null) {
                         // Each line contains the timestamp and the value
-                        lArray = line.split(",");
-                        xArray.add(BrewDay.sFormat
-                                .format(new Date(Long.parseLong(lArray[0])))
-                                );
-                        dataArray.add(lArray[1].trim());
+                        int comma = line.indexOf(',');
+                        lastTime = parseTimestamp(line, comma);
+                        lastLine = line;
+                        formatTime(time, lastTime, timeZone);
+                        xWriter.value(time, 0, time.length());
+                        writeValue(dataWriter, line, comma);
                     }
 
-                    if (lArray != null && Long.parseLong(lArray[0]) != currentTime) {
-                        xArray.add(BrewDay.sFormat
-                                .format(new Date(currentTime)));
-                        dataArray.add(lArray[1].trim());
+                    if (lastLine != null && lastTime != currentTime) {
+                        formatTime(time, currentTime, timeZone);
+                        xWriter.value(time, 0, time.length());
+                        writeValue(dataWriter, lastLine,
+                                lastLine.indexOf(','));
                     }
 
-                    dataBuffer.add(xArray);
-                    dataBuffer.add(dataArray);
+                    writer.rawValue(xWriter.endArray());
+                    writer.rawValue(dataWriter.endArray());
                 } catch (Exception e) {
                     // Do nothing
                 } finally {
@@ -2150,67 +3029,384 @@ public class BrewServer extends NanoHTTPD {
 
             }
         }
+        writer.endArray();
 
-        JSONObject dataContent = new JSONObject();
-        dataContent.put("columns", dataBuffer);
         if (parms.containsKey("updates")
                 && Boolean.parseBoolean(parms.get("updates"))) {
+            writer.endObject().endObject();
             return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    dataContent.toJSONString());
-        }
-
-        dataContent.put("xs", xsData);
-        dataContent.put("axes", axes);
-        dataContent.put("xFormat", "%H:%M:%S");
-
-        JSONObject axisContent = new JSONObject();
-        JSONObject y2Label = new JSONObject();
-        y2Label.put("text", "Duty Cycle %");
-        y2Label.put("position", "outer-middle");
-        JSONObject y2 = new JSONObject();
-        y2.put("show", "true");
-        y2.put("label", y2Label);
-
-        JSONObject y1Label = new JSONObject();
-        y1Label.put("text", "Temperature");
-        y1Label.put("position", "outer-middle");
-        JSONObject y1 = new JSONObject();
-        y1.put("show",  "true");
-        y1.put("label", y1Label);
-        
-        JSONObject padding = new JSONObject();
-        padding.put("top", 0);
-        padding.put("bottom", 0);
-        y1.put("padding", padding);
-
-        JSONObject formatJSON = new JSONObject();
-        formatJSON.put("format", "%H:%M:%S");
-        JSONObject xContent = new JSONObject();
-        xContent.put("type", "timeseries");
-        xContent.put("tick", formatJSON);
-        axisContent.put("x", xContent);
-        axisContent.put("y", y1);
-        axisContent.put("y2", y2);
-
-        JSONObject finalJSON = new JSONObject();
-        finalJSON.put("data", dataContent);
-        finalJSON.put("axis", axisContent);
+                    writer.toInputStream());
+        }
+
+        writer.name("xs").beginObject();
+        for (String name : names) {
+            writer.name(name).value("x" + name);
+        }
+        writer.endObject();
+        writer.name("axes").beginObject();
+        for (String name : names) {
+            writer.name(name).value(name.endsWith("duty") ? "y2" : "y");
+        }
+        writer.endObject();
+        writer.name("xFormat").value("%H:%M:%S");
+        writer.endObject();
+
+        writer.name("axis").beginObject();
+        writer.name("x").beginObject();
+        writer.name("type").value("timeseries");
+        writer.name("tick").beginObject().name("format").value("%H:%M:%S")
+                .endObject();
+        writer.endObject();
+        writer.name("y").beginObject();
+        writer.name("show").value("true");
+        writer.name("label").beginObject();
+        writer.name("text").value("Temperature");
+        writer.name("position").value("outer-middle");
+        writer.endObject();
+        writer.name("padding").beginObject();
+        writer.name("top").value(0);
+        writer.name("bottom").value(0);
+        writer.endObject();
+        writer.endObject();
+        writer.name("y2").beginObject();
+        writer.name("show").value("true");
+        writer.name("label").beginObject();
+        writer.name("text").value("Duty Cycle %");
+        writer.name("position").value("outer-middle");
+        writer.endObject();
+        writer.endObject();
+        writer.endObject();
+
+        writer.name("bindto").value(bindto);
+        if (!bindto.endsWith("_body")) {
+            writer.name("zoom").beginObject().name("enabled").value(true)
+                    .endObject();
+        }
+        writer.endObject();
 
-        if (parms.containsKey("bindto")) {
-            finalJSON.put("bindto", "#" + parms.get("bindto"));
-        } else {
-            finalJSON.put("bindto", "#chart");
+        return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                writer.toInputStream());
+
+    }
+
+    /**
+     * Stream a zip of the recorded files for a session, made as it's sent.
+     *
+     * @param parms The parameters, "from" and "to" limit the lines to a time
+     *            range in milliseconds.
+     * @param session The session directory name.
+     * @param contents The files in the session.
+     * @param vessel Only include the files for this vessel, "" for all.
+     * @return The chunked zip response.
+     */
+    @SuppressWarnings("unchecked")
+    private Response getGraphDownload(final Map<String, String> parms,
+            final String session, final File[] contents, final String vessel) {
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        try {
+            if (parms.containsKey("from")) {
+                from = Long.parseLong(parms.get("from"));
+            }
+            if (parms.containsKey("to")) {
+                to = Long.parseLong(parms.get("to"));
+            }
+        } catch (NumberFormatException nfe) {
+            JSONObject usage = new JSONObject();
+            usage.put("Usage", "Download the recorded graph data as a zip");
+            usage.put("session", "The recording to download, default newest");
+            usage.put("vessel", "Only include the files for this vessel");
+            usage.put("from", "Only include readings at or after this time, "
+                    + "in milliseconds");
+            usage.put("to", "Only include readings at or before this time, "
+                    + "in milliseconds");
+            return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
+                    usage.toJSONString());
         }
 
-        if (!((String) finalJSON.get("bindto")).endsWith("_body")) {
-            JSONObject enabledJSON = new JSONObject();
-            enabledJSON.put("enabled", true);
-            finalJSON.put("zoom", enabledJSON);
+        List<File> files = new ArrayList<File>();
+        for (File content : contents) {
+            // Nothing's been written to a file since it was last modified
+            if (content.getName().endsWith(".csv")
+                    && content.getName().toLowerCase()
+                            .startsWith(vessel.toLowerCase())
+                    && content.lastModified() >= from) {
+                files.add(content);
+            }
         }
 
-        return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                finalJSON.toJSONString());
+        Response response = new Response(Status.OK, MIME_TYPES.get("zip"),
+                new GraphDataArchive(files.toArray(new File[files.size()]),
+                        session, zipLevel, from, to));
+        response.addHeader("Content-Disposition",
+                "attachment; filename=\"graph-data-" + session + ".zip\"");
+        response.setChunkedTransfer(true);
+        return response;
+    }
 
+    /**
+     * Get the graph data as numbers, for the browser to format and lay out.
+     *
+     * As JSON, each series has the time of its first point in "start", "t"
+     * holds the milliseconds since the point before, so most are a few
+     * digits, and "v" holds the values:
+     * <pre>
+     * {"now":1400000010000,"series":[{"name":"kettle temp","axis":"y",
+     *         "start":1400000000000,"t":[0,5000,5000],"v":[65.5,66.0,66.0]}]}
+     * </pre>
+     * The binary form holds the same columns, little-endian: "ELSG", a
+     * version byte, a zero byte, the series count as a short and now as a
+     * long. Then for each series the length of its UTF-8 name as a short,
+     * the name, the axis as a byte (0 for y, 1 for y2), the point count as
+     * an int, the start as a long, the time deltas as ints and the values as
+     * floats.
+     *
+     * @param contents The files in the session.
+     * @param vessel Only include the files starting with this.
+     * @param shortNames True to name each series by its last word.
+     * @param currentTime The time now, the last value of each series is
+     *          repeated at this time.
+     * @param binary True for the binary form.
+     * @return The graph data.
+     */
+    private Response getCompactGraphData(final File[] contents,
+            final String vessel, final boolean shortNames,
+            final long currentTime, final boolean binary) {
+        List<GraphSeries> series = new ArrayList<GraphSeries>();
+        for (File content : contents) {
+            String name = graphSeriesName(content, vessel, shortNames);
+            if (name == null) {
+                continue;
+            }
+            try {
+                series.add(readGraphSeries(content, name, currentTime));
+            } catch (IOException | NumberFormatException e) {
+                // Left out, like the full format does
+                BrewServer.LOG.warning("Couldn't read graph data: "
+                        + content.getAbsolutePath());
+            }
+        }
+
+        if (binary) {
+            int length = 16;
+            for (GraphSeries s : series) {
+                length += 2 + s.nameBytes.length + 1 + 4 + 8 + s.count * 8;
+            }
+            ByteBuffer blob = ByteBuffer.allocate(length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            blob.put(GRAPH_MAGIC).put((byte) 1).put((byte) 0)
+                    .putShort((short) series.size()).putLong(currentTime);
+            for (GraphSeries s : series) {
+                blob.putShort((short) s.nameBytes.length).put(s.nameBytes);
+                blob.put((byte) (s.isDuty() ? 1 : 0)).putInt(s.count);
+                blob.putLong(s.count > 0 ? s.times[0] : currentTime);
+                for (int i = 0; i < s.count; i++) {
+                    blob.putInt(s.delta(i));
+                }
+                for (int i = 0; i < s.count; i++) {
+                    blob.putFloat((float) s.values[i]);
+                }
+            }
+            blob.flip();
+            return new Response(Status.OK, MIME_TYPES.get("bin"),
+                    new NanoHTTPD.ByteBufferInputStream(blob));
+        }
+
+        JsonWriter writer = new JsonWriter(16 * 1024);
+        writer.beginObject().name("now").value(currentTime);
+        writer.name("series").beginArray();
+        for (GraphSeries s : series) {
+            writer.beginObject();
+            writer.name("name").value(s.name);
+            writer.name("axis").value(s.isDuty() ? "y2" : "y");
+            writer.name("start").value(s.count > 0 ? s.times[0] : currentTime);
+            writer.name("t").beginArray();
+            for (int i = 0; i < s.count; i++) {
+                writer.value(s.delta(i));
+            }
+            writer.endArray();
+            writer.name("v").beginArray();
+            for (int i = 0; i < s.count; i++) {
+                writer.value(s.values[i]);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray().endObject();
+        return new Response(Status.OK, MIME_TYPES.get("json"),
+                writer.toInputStream());
+    }
+
+    /**
+     * The magic number starting the binary graph data.
+     */
+    private static final byte[] GRAPH_MAGIC = {'E', 'L', 'S', 'G'};
+
+    /**
+     * One series of graph data, held as primitives.
+     */
+    private static final class GraphSeries {
+        private final String name;
+        private final byte[] nameBytes;
+        private long[] times = new long[256];
+        private double[] values = new double[256];
+        private int count = 0;
+
+        GraphSeries(final String name) {
+            this.name = name;
+            byte[] bytes = name.getBytes(Charset.forName("UTF-8"));
+            this.nameBytes = bytes.length > Short.MAX_VALUE
+                    ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+        }
+
+        void add(final long time, final double value) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            times[count] = time;
+            values[count++] = value;
+        }
+
+        boolean isDuty() {
+            return name.endsWith("duty");
+        }
+
+        /**
+         * @return The milliseconds since the point before, 0 for the first.
+         */
+        int delta(final int i) {
+            if (i == 0) {
+                return 0;
+            }
+            long delta = times[i] - times[i - 1];
+            return (int) Math.max(Integer.MIN_VALUE,
+                    Math.min(Integer.MAX_VALUE, delta));
+        }
+    }
+
+    /**
+     * @param content A file in a graph data session.
+     * @param vessel Only include the files starting with this.
+     * @param shortNames True to name the series by its last word.
+     * @return The name of the series in the file, null if it isn't graphed.
+     */
+    private static String graphSeriesName(final File content,
+            final String vessel, final boolean shortNames) {
+        String name = content.getName();
+        if (!name.endsWith(".csv")
+                || !name.toLowerCase().startsWith(vessel.toLowerCase())) {
+            return null;
+        }
+
+        // Strip off .csv
+        name = name.substring(0, name.length() - 4);
+        name = name.replace('-', ' ');
+
+        // Energy is recorded for the download, not the live graph
+        if (name.endsWith("energy")) {
+            return null;
+        }
+
+        if (shortNames) {
+            name = name.substring(name.lastIndexOf(" ") + 1);
+        }
+        return name;
+    }
+
+    /**
+     * Read a graph data file, repeating the last value at the current time.
+     * @throws NumberFormatException If a line has no valid timestamp.
+     */
+    private static GraphSeries readGraphSeries(final File content,
+            final String name, final long currentTime) throws IOException {
+        GraphSeries series = new GraphSeries(name);
+        BufferedReader reader = new BufferedReader(new FileReader(content));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                double value;
+                try {
+                    value = Double.parseDouble(line.substring(comma + 1));
+                } catch (NumberFormatException e) {
+                    value = Double.NaN;
+                }
+                series.add(parseTimestamp(line, comma), value);
+            }
+        } finally {
+            reader.close();
+        }
+        if (series.count > 0 && series.times[series.count - 1] != currentTime) {
+            series.add(currentTime, series.values[series.count - 1]);
+        }
+        return series;
+    }
+
+    /**
+     * Read the timestamp at the start of a graph data line.
+     * @param line The line, "timestamp,value".
+     * @param comma The index of the comma.
+     * @return The timestamp in milliseconds.
+     */
+    static long parseTimestamp(final String line, final int comma) {
+        if (comma <= 0) {
+            throw new NumberFormatException("No timestamp in: " + line);
+        }
+        long value = 0;
+        for (int i = 0; i < comma; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Bad timestamp in: " + line);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Write the trimmed value after the comma of a graph data line.
+     */
+    private static void writeValue(final JsonWriter writer, final String line,
+            final int comma) {
+        int start = comma + 1;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        writer.value(line, start, end);
+    }
+
+    /**
+     * Format a time as HH:mm:ss in a time zone, without a DateFormat, which
+     * is slow and can't be shared between threads.
+     * @param out Cleared and filled with the time.
+     * @param millis The time.
+     * @param timeZone The time zone to show the time in.
+     */
+    private static void formatTime(final StringBuilder out, final long millis,
+            final TimeZone timeZone) {
+        long local = millis + timeZone.getOffset(millis);
+        long epochSeconds = local / 1000;
+        if (local % 1000 < 0) {
+            epochSeconds--;
+        }
+        int seconds = (int) ((epochSeconds % 86400 + 86400) % 86400);
+        out.setLength(0);
+        appendTwoDigits(out, seconds / 3600);
+        out.append(':');
+        appendTwoDigits(out, (seconds / 60) % 60);
+        out.append(':');
+        appendTwoDigits(out, seconds % 60);
+    }
+
+    private static void appendTwoDigits(final StringBuilder out,
+            final int value) {
+        out.append((char) ('0' + value / 10));
+        out.append((char) ('0' + value % 10));
     }
 
     /**
@@ -2318,6 +3514,166 @@ public class BrewServer extends NanoHTTPD {
                 MIME_TYPES.get("json"), usage.toJSONString());
     }
 
+    /**
+     * Get the load on the web server's request runner.
+     * @return The runner name and its active, queued and rejected counts.
+     */
+    @SuppressWarnings("unchecked")
+    private Response getServerStatus() {
+        JSONObject status = new JSONObject();
+        AsyncRunner runner = getAsyncRunner();
+        status.put("runner", runner.getClass().getSimpleName());
+        status.put("selector", isSelectorFrontEnd());
+        status.put("routes", routes.getStats());
+        status.put("assetcache", assetCache.getStats());
+        status.put("statusbuild", LaunchControl.getStatusBuildStats());
+        status.put("eventclients", StatusEvents.getInstance().getClientCount());
+        status.put("eventsdropped",
+                StatusEvents.getInstance().getDroppedCount());
+        status.put("longpolls", StatusEvents.getInstance().getWaitingCount());
+        AdmissionControl admission = getAdmissionControl();
+        if (admission != null) {
+            JSONObject limits = new JSONObject();
+            limits.put("open", admission.getOpenCount());
+            limits.put("refused", admission.getRefusedCount());
+            limits.put("refusedclient", admission.getRefusedClientCount());
+            limits.put("timedout", admission.getTimedOutCount());
+            limits.put("bulkwaits", admission.getBulkWaitCount());
+            status.put("admission", limits);
+        }
+        if (runner instanceof MonitoredAsyncRunner) {
+            MonitoredAsyncRunner monitored = (MonitoredAsyncRunner) runner;
+            status.put("active", monitored.getActiveCount());
+            status.put("queued", monitored.getQueuedCount());
+            status.put("rejected", monitored.getRejectedCount());
+        }
+        return new Response(Status.OK, MIME_TYPES.get("json"),
+                status.toJSONString());
+    }
+
+    /**
+     * Dump or stream the output transition log.
+     * @param parms The incoming parameters.
+     * @return The events as JSON, or a live stream of JSON lines.
+     */
+    @SuppressWarnings("unchecked")
+    private Response getOutputEvents(Map<String, String> parms) {
+        Map<String, String> params = ParseParams(parms);
+        OutputEventLog eventLog = OutputEventLog.getInstance();
+        long since = 0;
+        int limit = 0;
+
+        try {
+            if (params.containsKey("since")) {
+                since = Long.parseLong(params.get("since"));
+            }
+            if (params.containsKey("limit")) {
+                limit = Integer.parseInt(params.get("limit"));
+            }
+        } catch (NumberFormatException nfe) {
+            JSONObject usage = new JSONObject();
+            usage.put("Usage", "Get the output transition log");
+            usage.put("since", "The first event sequence number to return");
+            usage.put("limit", "The maximum number of recent events to return");
+            usage.put("stream", "true to keep streaming events as JSON lines");
+            return new Response(Status.BAD_REQUEST, MIME_TYPES.get("json"),
+                    usage.toJSONString());
+        }
+
+        if ("true".equalsIgnoreCase(params.get("stream"))) {
+            if (!params.containsKey("since")) {
+                since = eventLog.getNext();
+            }
+            Response response = new Response(Status.OK,
+                    MIME_TYPES.get("txt"), eventLog.openStream(since));
+            response.setChunkedTransfer(true);
+            return response;
+        }
+
+        JSONObject events = new JSONObject();
+        events.put("next", eventLog.getNext());
+        events.put("events", eventLog.getEvents(since, limit));
+        return new Response(Status.OK, MIME_TYPES.get("json"),
+                events.toJSONString());
+    }
+
+    /**
+     * Set, start or stop the program for a pump.
+     * @param parms The incoming parameters.
+     * @return The usage response.
+     */
+    private Response updatePumpProgram(Map<String, String> parms) {
+        Map<String, String> params = ParseParams(parms);
+        JSONObject usage = new JSONObject();
+        usage.put("Usage", "Set the program for the specified pump");
+        usage.put("name", "The pump to set the program for");
+        usage.put("on", "The time in seconds to run the pump for");
+        usage.put("off", "The time in seconds to stop the pump for");
+        usage.put("duty", "The percentage of the cycle to run, instead of on/off");
+        usage.put("cycle", "The cycle time in seconds when using the duty");
+        usage.put("pid", "Only run while this PID is heating");
+        usage.put("enabled", "on/off to start or stop the program");
+        Status status = Response.Status.OK;
+
+        String pumpName = params.get("name");
+        Pump pump = null;
+        if (pumpName != null) {
+            pump = LaunchControl.findPump(pumpName.replaceAll("_", " "));
+        }
+
+        if (pump == null) {
+            LaunchControl.addMessage("Invalid pump: " + pumpName);
+            return new Response(Response.Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"), usage.toJSONString());
+        }
+
+        if (params.containsKey("duty") && params.get("cycle") == null) {
+            LaunchControl.addMessage("A cycle time is needed with the duty");
+            return new Response(Response.Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"), usage.toJSONString());
+        }
+
+        try {
+            String pid = params.get("pid");
+            if (params.containsKey("duty")) {
+                double duty = Double.parseDouble(
+                        params.get("duty").replace(",", "."));
+                double cycle = Double.parseDouble(
+                        params.get("cycle").replace(",", "."));
+                pump.setProgramDuty(duty, Math.round(cycle * 1000), pid);
+            } else if (params.containsKey("on")) {
+                double on = Double.parseDouble(
+                        params.get("on").replace(",", "."));
+                double off = 0;
+                if (params.containsKey("off")) {
+                    off = Double.parseDouble(
+                            params.get("off").replace(",", "."));
+                }
+                pump.setProgram(Math.round(on * 1000), Math.round(off * 1000),
+                        pid);
+            }
+        } catch (NumberFormatException nfe) {
+            LaunchControl.addMessage("Could not parse the pump program: "
+                    + nfe.getMessage());
+            status = Response.Status.BAD_REQUEST;
+        } catch (IllegalArgumentException iae) {
+            LaunchControl.addMessage(iae.getMessage());
+            status = Response.Status.BAD_REQUEST;
+        }
+
+        if (status == Response.Status.OK && params.containsKey("enabled")) {
+            String enabled = params.get("enabled");
+            if (enabled.equals("on") || enabled.equalsIgnoreCase("true")) {
+                pump.startProgram();
+            } else {
+                pump.stopProgram();
+            }
+        }
+
+        return new Response(status, MIME_TYPES.get("json"),
+                usage.toJSONString());
+    }
+
     /**
      * Delete a pump.
      * @param parms
@@ -2440,6 +3796,8 @@ public class BrewServer extends NanoHTTPD {
         usage.put("recorderDiff", "The tolerance to record data changes.");
         usage.put("recorderTime",
                 "The time between sampling the data for recording.");
+        usage.put("powerBudget",
+                "The maximum combined draw of all the outputs in watts.");
 
         if (params.containsKey("recorder")) {
             boolean recorderOn = params.get("recorder").equals("on");
@@ -2474,6 +3832,17 @@ public class BrewServer extends NanoHTTPD {
                             + LaunchControl.getMessage());
             }
         }
+
+        if (params.containsKey("powerBudget")) {
+            try {
+                PowerScheduler.getInstance().setBudget(
+                    Long.parseLong(params.get("powerBudget")));
+            } catch (NumberFormatException e) {
+                LaunchControl.setMessage(
+                    "Failed to parse the power budget as a long\n"
+                            + e.getMessage() + LaunchControl.getMessage());
+            }
+        }
         return usage.toJSONString();
     }
 
@@ -0,0 +1,93 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response body that's built once and sent to many clients.
+ *
+ * The body is kept with its ETag, and gzipped the first time a client that
+ * accepts gzip asks for it, so serving it again costs no more than copying
+ * the bytes to the socket.
+ */
+public class CachedBody {
+
+    private final byte[] body;
+    private final String etag;
+    private volatile byte[] gzipped = null;
+
+    /**
+     * @param body The body, this isn't copied.
+     * @param etag The ETag for the body, including the quotes.
+     */
+    public CachedBody(final byte[] body, final String etag) {
+        this.body = body;
+        this.etag = etag;
+    }
+
+    /**
+     * @return The body, this isn't a copy and mustn't be changed.
+     */
+    protected final byte[] bytes() {
+        return body;
+    }
+
+    /**
+     * @return The length of the body in bytes.
+     */
+    public final int getLength() {
+        return body.length;
+    }
+
+    /**
+     * @return The ETag, including the quotes.
+     */
+    public final String getETag() {
+        return etag;
+    }
+
+    /**
+     * Check an If-None-Match header against this body.
+     * @param ifNoneMatch The header value, may be null.
+     * @return True if the client already has this body.
+     */
+    public final boolean matches(final String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The body as an input stream, without copying it.
+     */
+    public final InputStream openStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * @return The gzipped body, compressed on the first call.
+     */
+    public final byte[] getGzipped() {
+        byte[] result = gzipped;
+        if (result == null) {
+            try {
+                result = NanoHTTPD.gzip(body, 0, body.length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            gzipped = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+package com.sb.elsinore;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.rendersnake.HtmlCanvas;
+
+import com.sb.elsinore.html.RenderHTML;
+
+/**
+ * The rendered /controller page.
+ *
+ * The page only shows the devices and settings, the readings are filled in
+ * by the browser from /getstatus, so it's rendered once and served from
+ * memory until something it shows changes. The locked and unlocked pages are
+ * kept separately, locking the page doesn't throw either away.
+ */
+public final class ControllerPage {
+
+    /**
+     * Goes up every time the devices or settings on the page change.
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private static final Object LOCK = new Object();
+    private static CachedBody lockedPage = null;
+    private static long lockedGeneration = -1;
+    private static CachedBody unlockedPage = null;
+    private static long unlockedGeneration = -1;
+
+    private ControllerPage() {
+    }
+
+    /**
+     * Mark the page as out of date, it's rendered again on the next request.
+     */
+    public static void invalidate() {
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Get the page for the current lock state, rendering it if it's out of
+     * date.
+     * @return The page and its ETag.
+     * @throws IOException If the page couldn't be rendered.
+     */
+    public static CachedBody get() throws IOException {
+        boolean locked = LaunchControl.isLocked();
+        long generation = GENERATION.get();
+        synchronized (LOCK) {
+            CachedBody page = locked ? lockedPage : unlockedPage;
+            long pageGeneration = locked ? lockedGeneration
+                    : unlockedGeneration;
+            if (page != null && pageGeneration == generation) {
+                return page;
+            }
+
+            // Rendered under the lock, everyone else waiting gets this copy
+            page = render();
+            if (locked) {
+                lockedPage = page;
+                lockedGeneration = generation;
+            } else {
+                unlockedPage = page;
+                unlockedGeneration = generation;
+            }
+            return page;
+        }
+    }
+
+    private static CachedBody render() throws IOException {
+        HtmlCanvas html = new HtmlCanvas();
+        new RenderHTML().renderOn(html);
+        byte[] body;
+        try {
+            body = html.toHtml().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Based on the content, so a page rendered again after a change that
+        // didn't affect it keeps its ETag
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return new CachedBody(body, "\"" + Long.toHexString(crc.getValue())
+                + "-" + Integer.toHexString(body.length) + "\"");
+    }
+}
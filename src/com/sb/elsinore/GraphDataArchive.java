@@ -0,0 +1,203 @@
+package com.sb.elsinore;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip of recorded graph data, made while it's being read.
+ *
+ * Each read compresses the next piece of the current file into memory and
+ * hands it back, so the archive is sent as it's made, with no temporary file
+ * and never more than one piece held. A time range only includes the lines
+ * recorded within it.
+ */
+public final class GraphDataArchive extends InputStream {
+
+    /**
+     * How much of a file is read and compressed at a time.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Holds the compressed bytes until they're read.
+     */
+    private static final class Pending extends ByteArrayOutputStream {
+        private int position = 0;
+
+        Pending() {
+            super(BUFFER_SIZE);
+        }
+
+        int remaining() {
+            return count - position;
+        }
+
+        int read(final byte[] b, final int off, final int len) {
+            int n = Math.min(len, remaining());
+            System.arraycopy(buf, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            position = 0;
+        }
+    }
+
+    private final File[] files;
+    private final String folder;
+    private final long from;
+    private final long to;
+    private final boolean filtered;
+
+    private final Pending pending = new Pending();
+    private final ZipOutputStream zip = new ZipOutputStream(pending);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int next = 0;
+    private Closeable current = null;
+    private boolean finished = false;
+
+    /**
+     * @param files The files to include.
+     * @param folder The folder to put the files in inside the archive.
+     * @param level The compression level, 0-9 or -1 for the default.
+     * @param from Only include lines recorded at or after this time,
+     *          0 for all.
+     * @param to Only include lines recorded at or before this time,
+     *          Long.MAX_VALUE for all.
+     */
+    public GraphDataArchive(final File[] files, final String folder,
+            final int level, final long from, final long to) {
+        this.files = files;
+        this.folder = folder;
+        this.from = from;
+        this.to = to;
+        this.filtered = from > 0 || to < Long.MAX_VALUE;
+        zip.setLevel(level);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        if (read(one, 0, 1) < 0) {
+            return -1;
+        }
+        return one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (pending.remaining() == 0) {
+            if (finished) {
+                return -1;
+            }
+            pending.reset();
+            fill();
+        }
+        return pending.read(b, off, len);
+    }
+
+    @Override
+    public int available() {
+        return pending.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Compress the next piece of the archive: the start of the next file,
+     * the next part of the current one, or the end of the archive.
+     */
+    private void fill() throws IOException {
+        if (current == null) {
+            if (next == files.length) {
+                zip.finish();
+                finished = true;
+                return;
+            }
+            File file = files[next++];
+            ZipEntry entry = new ZipEntry(folder + "/" + file.getName());
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            if (filtered) {
+                current = new BufferedReader(new FileReader(file),
+                        BUFFER_SIZE);
+            } else {
+                current = new FileInputStream(file);
+            }
+            return;
+        }
+
+        boolean more;
+        if (filtered) {
+            more = copyLines((BufferedReader) current);
+        } else {
+            int read = ((InputStream) current).read(buffer);
+            more = read >= 0;
+            if (more) {
+                zip.write(buffer, 0, read);
+            }
+        }
+
+        if (!more) {
+            current.close();
+            current = null;
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Copy the lines in the time range from the next part of a file.
+     * @return False at the end of the file.
+     */
+    private boolean copyLines(final BufferedReader reader) throws IOException {
+        int length = 0;
+        String line = null;
+        while (length < BUFFER_SIZE / 2 && (line = reader.readLine()) != null) {
+            long time;
+            try {
+                time = BrewServer.parseTimestamp(line, line.indexOf(','));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (time < from || time > to) {
+                continue;
+            }
+
+            if (line.length() >= BUFFER_SIZE - length) {
+                zip.write(buffer, 0, length);
+                length = 0;
+                zip.write((line + "\n").getBytes("US-ASCII"));
+                continue;
+            }
+            // The recorder only writes numbers
+            for (int i = 0; i < line.length(); i++) {
+                buffer[length++] = (byte) line.charAt(i);
+            }
+            buffer[length++] = '\n';
+        }
+        zip.write(buffer, 0, length);
+        return line != null;
+    }
+}
@@ -0,0 +1,157 @@
+package com.sb.elsinore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps gzipped copies of the static files next to the originals.
+ *
+ * Each text file under the static directory gets a ".gz" sibling, compressed
+ * once at the best level, which serveFile() sends as is to clients that
+ * accept gzip. A copy older than its original is rebuilt on the next start
+ * and ignored until then.
+ */
+public final class GzipAssets {
+
+    /**
+     * Files smaller than this aren't worth a compressed copy.
+     */
+    private static final long MIN_SIZE = 1024;
+
+    private static final String SUFFIX = ".gz";
+
+    private GzipAssets() {
+    }
+
+    /**
+     * @param name A file name.
+     * @return True if the file is text that's worth compressing.
+     */
+    public static boolean isCompressible(final String name) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        return lower.endsWith(".js") || lower.endsWith(".css")
+                || lower.endsWith(".html") || lower.endsWith(".htm")
+                || lower.endsWith(".json") || lower.endsWith(".svg")
+                || lower.endsWith(".txt") || lower.endsWith(".xml")
+                || lower.endsWith(".map") || lower.endsWith(".properties");
+    }
+
+    /**
+     * @param file A static file.
+     * @return The gzipped copy of the file, or null if there isn't an up to
+     *         date one.
+     */
+    public static File getCompressed(final File file) {
+        File gz = new File(file.getPath() + SUFFIX);
+        if (gz.isFile() && gz.lastModified() >= file.lastModified()) {
+            return gz;
+        }
+        return null;
+    }
+
+    /**
+     * Compress the static files on a background thread, so the server can
+     * start straight away.
+     * @param dir The static files directory.
+     */
+    public static void precompressInBackground(final File dir) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                int count = precompress(dir);
+                BrewServer.LOG.info("Compressed " + count + " static files in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        });
+        thread.setName("Precompress " + dir.getName());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Make a gzipped copy of every text file under a directory that doesn't
+     * have an up to date one.
+     * @param dir The directory to compress.
+     * @return The number of files compressed.
+     */
+    public static int precompress(final File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += precompress(file);
+            } else if (isCompressible(file.getName())
+                    && file.length() >= MIN_SIZE
+                    && getCompressed(file) == null) {
+                try {
+                    if (compress(file)) {
+                        count++;
+                    }
+                } catch (IOException e) {
+                    // Most likely a read only install, send the originals
+                    BrewServer.LOG.warning("Couldn't compress "
+                            + file.getPath() + ": " + e.getMessage());
+                    return count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write the gzipped copy of a file, replacing any old copy in one step so
+     * a request never sees half a file.
+     * @return False if compressing didn't make the file any smaller.
+     */
+    private static boolean compress(final File file) throws IOException {
+        File gz = new File(file.getPath() + SUFFIX);
+        File temp = new File(file.getPath() + SUFFIX + ".tmp");
+        InputStream in = new FileInputStream(file);
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new FileOutputStream(temp)) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        if (temp.length() >= file.length()) {
+            Files.deleteIfExists(temp.toPath());
+            Files.deleteIfExists(gz.toPath());
+            return false;
+        }
+        Files.move(temp.toPath(), gz.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+}
@@ -0,0 +1,481 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes JSON straight into a byte buffer as UTF-8.
+ *
+ * This replaces building a tree of JSONObjects and JSONArrays, which are hash
+ * maps and array lists of boxed values, only to turn it into a String and
+ * then into bytes. Numbers are written from primitives, and the buffer can be
+ * reset and reused. Strings are escaped the same way json-simple does it, so
+ * the output can be read back with JSONParser.
+ *
+ * Commas are added automatically:
+ * <pre>
+ * w.beginObject().name("temp").value(65.5).name("mode").value("auto")
+ *         .endObject();
+ * </pre>
+ */
+public final class JsonWriter {
+
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private byte[] buf;
+    private int count = 0;
+
+    /**
+     * Whether the container at each depth already has a value, so the next
+     * one needs a comma.
+     */
+    private boolean[] hasValue = new boolean[16];
+    private int depth = 0;
+
+    /**
+     * Set after a name, the value that follows doesn't take a comma.
+     */
+    private boolean afterName = false;
+
+    public JsonWriter() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity The initial size of the buffer in bytes.
+     */
+    public JsonWriter(final int capacity) {
+        this.buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Empty the writer, keeping the buffer to reuse.
+     * @return This writer.
+     */
+    public JsonWriter reset() {
+        count = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        write('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        write('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        write('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        write(']');
+        return this;
+    }
+
+    /**
+     * Write the name of the next member of an object.
+     * @param name The member name.
+     * @return This writer.
+     */
+    public JsonWriter name(final String name) {
+        beforeValue();
+        writeString(name, 0, name.length());
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * @param value A string, null is written as null.
+     * @return This writer.
+     */
+    public JsonWriter value(final String value) {
+        beforeValue();
+        if (value == null) {
+            write(NULL);
+        } else {
+            writeString(value, 0, value.length());
+        }
+        return this;
+    }
+
+    /**
+     * Write part of some characters as a string, without copying them out
+     * first.
+     * @param chars The characters, for example a line read from a file.
+     * @param start The first character to write.
+     * @param end The character after the last one to write.
+     * @return This writer.
+     */
+    public JsonWriter value(final CharSequence chars, final int start,
+            final int end) {
+        beforeValue();
+        writeString(chars, start, end);
+        return this;
+    }
+
+    public JsonWriter value(final boolean value) {
+        beforeValue();
+        write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter value(final long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    /**
+     * @param value A number, written the way Double.toString() does, NaN and
+     *          the infinities are written as null.
+     * @return This writer.
+     */
+    public JsonWriter value(final double value) {
+        beforeValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            write(NULL);
+        } else if (value == (long) value && Math.abs(value) < 1e7
+                && (value != 0 || 1 / value > 0)) {
+            // Whole numbers are common, and written without a String
+            writeLong((long) value);
+            write('.');
+            write('0');
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    /**
+     * @param value A number, null is written as null.
+     * @return This writer.
+     */
+    public JsonWriter value(final BigDecimal value) {
+        beforeValue();
+        if (value == null) {
+            write(NULL);
+        } else {
+            // BigDecimal keeps the String it makes, so this is free after
+            // the first time
+            writeAscii(value.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Write any value json-simple could write: null, a String, Number,
+     * Boolean, Map or Collection.
+     * @param value The value.
+     * @return This writer.
+     */
+    public JsonWriter value(final Object value) {
+        if (value == null || value instanceof String) {
+            return value((String) value);
+        }
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return value(((Number) value).doubleValue());
+        }
+        if (value instanceof BigDecimal) {
+            return value((BigDecimal) value);
+        }
+        if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(e.getKey()));
+                value(e.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof Collection) {
+            beginArray();
+            for (Object o : (Collection<?>) value) {
+                value(o);
+            }
+            return endArray();
+        }
+        if (value instanceof Number) {
+            beforeValue();
+            writeAscii(value.toString());
+            return this;
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Write a value that's already JSON, for example from another writer.
+     * @param json The UTF-8 encoded JSON value.
+     * @param offset The start of the value.
+     * @param length The length of the value.
+     * @return This writer.
+     */
+    public JsonWriter rawValue(final byte[] json, final int offset,
+            final int length) {
+        beforeValue();
+        ensure(length);
+        System.arraycopy(json, offset, buf, count, length);
+        count += length;
+        return this;
+    }
+
+    /**
+     * Write everything in another writer as a value.
+     * @param other The writer holding a complete JSON value.
+     * @return This writer.
+     */
+    public JsonWriter rawValue(final JsonWriter other) {
+        return rawValue(other.buf, 0, other.count);
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param other Some bytes.
+     * @return True if this writer holds exactly these bytes.
+     */
+    public boolean contentEquals(final byte[] other) {
+        if (other == null || other.length != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (buf[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A copy of the bytes written.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * @return A stream of the bytes written, sharing the buffer, so the
+     *         writer mustn't be used again until the stream has been read.
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * @param out The stream to write the bytes written to.
+     * @throws IOException If the stream fails.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(buf, 0, count, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void push() {
+        if (depth == hasValue.length) {
+            hasValue = Arrays.copyOf(hasValue, depth * 2);
+        }
+        hasValue[depth++] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasValue[depth - 1]) {
+                write(',');
+            }
+            hasValue[depth - 1] = true;
+        }
+    }
+
+    private void writeLong(final long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        long v = value;
+        if (v < 0) {
+            write('-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long p = 10; p <= v && digits < 19; p *= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Write a string in quotes, escaped like json-simple's JSONValue.escape.
+     */
+    private void writeString(final CharSequence s, final int start,
+            final int end) {
+        ensure(end - start + 2);
+        buf[count++] = '"';
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                write('\\');
+                write('"');
+                break;
+            case '\\':
+                write('\\');
+                write('\\');
+                break;
+            case '/':
+                write('\\');
+                write('/');
+                break;
+            case '\b':
+                write('\\');
+                write('b');
+                break;
+            case '\f':
+                write('\\');
+                write('f');
+                break;
+            case '\n':
+                write('\\');
+                write('n');
+                break;
+            case '\r':
+                write('\\');
+                write('r');
+                break;
+            case '\t':
+                write('\\');
+                write('t');
+                break;
+            default:
+                if (c <= '\u001F' || (c >= '\u007F' && c <= '\u009F')
+                        || (c >= '\u2000' && c <= '\u20FF')) {
+                    ensure(6);
+                    buf[count++] = '\\';
+                    buf[count++] = 'u';
+                    buf[count++] = HEX[(c >> 12) & 0xf];
+                    buf[count++] = HEX[(c >> 8) & 0xf];
+                    buf[count++] = HEX[(c >> 4) & 0xf];
+                    buf[count++] = HEX[c & 0xf];
+                } else if (c < 0x80) {
+                    write(c);
+                } else {
+                    writeUtf8(s, i, end, c);
+                    if (Character.isHighSurrogate(c) && i + 1 < end
+                            && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        i++;
+                    }
+                }
+            }
+        }
+        write('"');
+    }
+
+    private void writeUtf8(final CharSequence s, final int i, final int end,
+            final char c) {
+        ensure(4);
+        if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < end
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buf[count++] = (byte) (0xf0 | (cp >> 18));
+            buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            // An unpaired surrogate can't be encoded
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Write a string that's known to be ASCII, such as a number.
+     */
+    private void writeAscii(final String s) {
+        int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void write(final char c) {
+        ensure(1);
+        buf[count++] = (byte) c;
+    }
+
+    private void write(final byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensure(final int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+        }
+    }
+
+    private static byte[] ascii(final String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.sb.elsinore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A lock free histogram of request latencies.
+ *
+ * Latencies are counted in microseconds, in the same layout as an HDR
+ * histogram: each power of two is split into eight equal buckets, so
+ * recording is a couple of atomic increments and the percentiles are
+ * accurate to within 12.5%.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Each power of two is split into 2^SUB_BITS buckets.
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Latencies up to 2^MAX_EXPONENT microseconds, about 36 minutes, are
+     * counted exactly, the last bucket holds everything longer.
+     */
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(final long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of the latencies recorded, in microseconds.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @param quantile The quantile between 0 and 1.
+     * @return The upper bound of the bucket holding the quantile, in
+     *         microseconds.
+     */
+    public long getPercentile(final double quantile) {
+        long target = (long) Math.ceil(count.get() * quantile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param exponent A power of two, 0 to 63.
+     * @return The number of latencies below 2^exponent microseconds, exact
+     *         because bucket edges fall on every power of two.
+     */
+    public long getCountBelow(final int exponent) {
+        int end;
+        if (exponent < SUB_BITS) {
+            end = 1 << exponent;
+        } else {
+            end = Math.min((exponent - SUB_BITS + 1) * SUB_BUCKETS, BUCKETS);
+        }
+        long seen = 0;
+        for (int i = 0; i < end; i++) {
+            seen += buckets.get(i);
+        }
+        return seen;
+    }
+
+    /**
+     * @return The count, mean, percentiles and maximum as JSON, times in
+     *         microseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject stats = new JSONObject();
+        long n = count.get();
+        stats.put("count", n);
+        stats.put("mean", n == 0 ? 0 : total.get() / n);
+        stats.put("p50", getPercentile(0.5));
+        stats.put("p90", getPercentile(0.9));
+        stats.put("p99", getPercentile(0.99));
+        stats.put("max", max.get());
+        return stats;
+    }
+
+    /**
+     * @param micros A latency in microseconds.
+     * @return The bucket counting it.
+     */
+    private static int bucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket A bucket.
+     * @return The smallest latency above the bucket, in microseconds.
+     */
+    private static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+    }
+}
@@ -10,6 +10,9 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -26,14 +29,25 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -64,6 +78,7 @@ import org.ini4j.ConfigParser.NoOptionException;
 import org.ini4j.ConfigParser.NoSectionException;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.owfs.jowfsclient.Enums.OwPersistence;
 import org.owfs.jowfsclient.OwfsConnection;
 import org.owfs.jowfsclient.OwfsConnectionConfig;
@@ -83,6 +98,7 @@ import Cosm.Unit;
 
 import com.sb.common.CollectionsUtil;
 import com.sb.common.ServeHTML;
+import com.sb.elsinore.devices.PowerScheduler;
 
 /**
  * LaunchControl is the core class of Elsinore. It reads the config file,
@@ -114,6 +130,12 @@ public final class LaunchControl {
      * The Minimum number of volume data points.
      */
     private static final int MIN_VOLUME_SIZE = 3;
+    /**
+     * Shutdown phase deadlines in milliseconds.
+     */
+    private static final long SHUTDOWN_OUTPUT_DEADLINE = 2000;
+    private static final long SHUTDOWN_SAVE_DEADLINE = 10000;
+    private static final long SHUTDOWN_RELEASE_DEADLINE = 2000;
     public static final String RepoURL = "http://dougedey.github.io/SB_Elsinore_Server/";
     private static String baseUser = null;
 
@@ -195,6 +217,11 @@ public final class LaunchControl {
      * The BrewDay object to manage timers.
      */
     private static BrewDay brewDay = null;
+    /**
+     * When the server started, the energy session runs from here rather than
+     * from the start of a brew or a recorder session.
+     */
+    private static final long sessionStart = System.currentTimeMillis();
     /**
      * One Wire File System Connection.
      */
@@ -243,6 +270,43 @@ public final class LaunchControl {
     private static boolean pageLock = false;
     private static boolean allDevicesListed = false;
 
+    /**
+     * The cached /getstatus document, rebuilt when the status has changed.
+     */
+    private static volatile StatusSnapshot statusSnapshot = null;
+    private static volatile boolean statusDirty = true;
+    private static final Object statusLock = new Object();
+    /**
+     * Reused for every status build, only touched under statusLock.
+     */
+    private static final JsonWriter statusWriter = new JsonWriter(8192);
+    /**
+     * The size of the last status build, and the bytes it allocated, or -1
+     * if the JVM can't count them.
+     */
+    private static volatile int statusBuildSize = 0;
+    private static volatile long statusBuildAllocated = -1;
+    private static final Method threadAllocatedBytes =
+            findThreadAllocatedBytes();
+    /**
+     * Versions start from the boot time, so a version a client got before a
+     * restart won't be mistaken for a current one.
+     */
+    private static final AtomicLong statusVersion =
+            new AtomicLong(System.currentTimeMillis());
+    /**
+     * The number of old status versions kept to send deltas from.
+     */
+    private static final int STATUS_HISTORY = 64;
+    /**
+     * Set while runBatch is making changes, saving the config file is put
+     * off until the batch is done.
+     */
+    private static volatile boolean batchRunning = false;
+    private static volatile boolean configSavePending = false;
+    private static final LinkedHashMap<Long, StatusSnapshot> statusHistory =
+            new LinkedHashMap<Long, StatusSnapshot>();
+
     /*****
      * Main method to launch the brewery.
      * 
@@ -323,6 +387,67 @@ public final class LaunchControl {
                     }
                 }
 
+                if (startupCommand.hasOption("runner")) {
+                    System.setProperty("async_runner",
+                            startupCommand.getOptionValue("runner"));
+                }
+
+                if (startupCommand.hasOption("nio")) {
+                    System.setProperty("nio_front_end", "true");
+                }
+
+                if (startupCommand.hasOption("unixsocket")) {
+                    System.setProperty("unix_socket",
+                            startupCommand.getOptionValue("unixsocket"));
+                }
+
+                if (startupCommand.hasOption("unixsocketmode")) {
+                    System.setProperty("unix_socket_mode",
+                            startupCommand.getOptionValue("unixsocketmode"));
+                }
+
+                if (startupCommand.hasOption("gzip")) {
+                    System.setProperty("gzip_threshold",
+                            startupCommand.getOptionValue("gzip"));
+                }
+
+                if (startupCommand.hasOption("assetcache")) {
+                    System.setProperty("asset_cache",
+                            startupCommand.getOptionValue("assetcache"));
+                }
+
+                if (startupCommand.hasOption("ziplevel")) {
+                    String level = startupCommand.getOptionValue("ziplevel");
+                    int t = Integer.MIN_VALUE;
+                    try {
+                        t = Integer.parseInt(level.trim());
+                    } catch (NumberFormatException e) {
+                        // Reported below
+                    }
+                    if (t >= Deflater.DEFAULT_COMPRESSION
+                            && t <= Deflater.BEST_COMPRESSION) {
+                        System.setProperty("zip_level", Integer.toString(t));
+                    } else {
+                        BrewServer.LOG.warning("Invalid zip level: " + level
+                                + ", it must be -1 to 9. Using the default");
+                    }
+                }
+
+                if (startupCommand.hasOption("maxconnections")) {
+                    System.setProperty("max_connections",
+                            startupCommand.getOptionValue("maxconnections"));
+                }
+
+                if (startupCommand.hasOption("maxbody")) {
+                    System.setProperty("max_body",
+                            startupCommand.getOptionValue("maxbody"));
+                }
+
+                if (startupCommand.hasOption("readdeadline")) {
+                    System.setProperty("read_deadline",
+                            startupCommand.getOptionValue("readdeadline"));
+                }
+
                 if (startupCommand.hasOption("rdirectory")) {
                     recorderDirectory = startupCommand
                             .getOptionValue("rdirectory");
@@ -388,6 +513,36 @@ public final class LaunchControl {
         startupOptions.addOption("rdirectory",
                 StatusRecorder.DIRECTORY_PROPERTY, true,
                 "Set the recorder directory output, default: graph-data/");
+        startupOptions.addOption("runner", true,
+                "Set how web requests are run: thread (default), "
+                        + "pool[:threads[:queue]] or virtual (Java 21+)");
+        startupOptions.addOption("nio", false,
+                "Wait for web requests on a selector, idle connections "
+                        + "don't use a thread");
+        startupOptions.addOption("unixsocket", true,
+                "Also serve on a Unix domain socket at this path, for a "
+                        + "reverse proxy on the same machine (Java 16+)");
+        startupOptions.addOption("unixsocketmode", true,
+                "Octal permissions for the Unix domain socket, for example "
+                        + "660 to let the proxy's group connect. Default: as "
+                        + "the umask leaves it, usually owner only");
+        startupOptions.addOption("gzip", true,
+                "Gzip JSON and text responses of at least this many bytes, "
+                        + "-1 to never compress. Default 1024");
+        startupOptions.addOption("assetcache", true,
+                "Bytes of static files to hold in memory, 0 to read them "
+                        + "every time. Default 8MB");
+        startupOptions.addOption("ziplevel", true,
+                "Compression level for graph data downloads, 0 (fastest) "
+                        + "to 9 (smallest). Default 6");
+        startupOptions.addOption("maxconnections", true,
+                "Web connections allowed at once, total[:perclient]. "
+                        + "Default 64:16");
+        startupOptions.addOption("maxbody", true,
+                "Largest web request body accepted in bytes. Default 16MB");
+        startupOptions.addOption("readdeadline", true,
+                "Seconds a client has to send a request, header[:body]. "
+                        + "Default 10:30");
     }
 
     /**
@@ -402,52 +557,110 @@ public final class LaunchControl {
         // to make sure we close off the GPIO connections
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-                BrewServer.LOG.warning("Shutting down. Saving configuration");
-                saveSettings();
-                BrewServer.LOG.warning("Configuration saved.");
-                
-                BrewServer.LOG.warning("Shutting down temperature probe threads.");
-                synchronized (tempList) {
-                    for (Temp t : tempList) {
-                        if (t != null) {
-                            t.save();
+                BrewServer.LOG.warning("Shutting down.");
+                ExecutorService shutdownPool = Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(r);
+                            thread.setName("Shutdown");
+                            thread.setDaemon(true);
+                            return thread;
                         }
-                    }
-                }
+                    });
 
-                BrewServer.LOG.warning("Shutting down PID threads.");
+                // Phase 1: Every output goes to a safe state, concurrently
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
                 synchronized (pidList) {
-                    for (PID n : pidList) {
+                    for (final PID n : pidList) {
                         if (n != null) {
-                            n.shutdown();
+                            tasks.add(new Callable<Object>() {
+                                @Override
+                                public Object call() {
+                                    n.stopOutputs();
+                                    return null;
+                                }
+                            });
                         }
                     }
                 }
 
+                synchronized (pumpList) {
+                    for (final Pump p : pumpList) {
+                        tasks.add(new Callable<Object>() {
+                            @Override
+                            public Object call() {
+                                p.stopProgram();
+                                p.turnOff();
+                                return null;
+                            }
+                        });
+                    }
+                }
+
                 synchronized (mashList) {
-                    if (mashList.size() > 0) {
-                        BrewServer.LOG.warning("Shutting down MashControl threads.");
-                        for (MashControl m : mashList) {
-                            m.setShutdownFlag(true);
-                        }
+                    for (MashControl m : mashList) {
+                        m.setShutdownFlag(true);
                     }
                 }
-                // Close off all the Pump GPIOs properly.
-                synchronized (pumpList) {
-                    if (pumpList.size() > 0) {
-                        BrewServer.LOG.warning("Shutting down pumps.");
-                        for (Pump p : pumpList) {
-                            p.shutdown();
+                runShutdownPhase(shutdownPool, "Outputs off", tasks,
+                        SHUTDOWN_OUTPUT_DEADLINE);
+
+                // Phase 2: Persist the state, the config DOM isn't thread
+                // safe so this is a single task.
+                tasks = new ArrayList<Callable<Object>>();
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        saveSettings();
+                        saveConfigFile();
+                        return null;
+                    }
+                });
+                runShutdownPhase(shutdownPool, "Configuration saved", tasks,
+                        SHUTDOWN_SAVE_DEADLINE);
+
+                // Phase 3: Release the GPIOs and threads
+                tasks = new ArrayList<Callable<Object>>();
+                synchronized (pidList) {
+                    for (final PID n : pidList) {
+                        if (n != null) {
+                            tasks.add(new Callable<Object>() {
+                                @Override
+                                public Object call() {
+                                    n.release();
+                                    return null;
+                                }
+                            });
                         }
                     }
                 }
 
-                saveConfigFile();
+                synchronized (pumpList) {
+                    for (final Pump p : pumpList) {
+                        tasks.add(new Callable<Object>() {
+                            @Override
+                            public Object call() {
+                                p.shutdown();
+                                return null;
+                            }
+                        });
+                    }
+                }
 
                 if (recorder != null) {
-                    BrewServer.LOG.warning("Shutting down recorder threads.");
-                    recorder.stop();
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            recorder.stop();
+                            return null;
+                        }
+                    });
                 }
+                runShutdownPhase(shutdownPool, "Resources released", tasks,
+                        SHUTDOWN_RELEASE_DEADLINE);
+
+                shutdownPool.shutdownNow();
                 BrewServer.LOG.warning("Goodbye!");
             }
         });
@@ -647,18 +860,28 @@ public final class LaunchControl {
      * 
      * @return The JSON String of the current status.
      */
-    @SuppressWarnings("unchecked")
     public static String getJSONStatus() {
+        JsonWriter writer = new JsonWriter(4096);
+        writeJSONStatus(writer);
+        return writer.toString();
+    }
+
+    /******
+     * Write the current Status of the PIDs, Temps, Pumps, etc... as a JSON
+     * object.
+     * 
+     * @param writer The writer to add the status to.
+     */
+    public static void writeJSONStatus(final JsonWriter writer) {
 
         // get each setting add it to the JSON
-        JSONObject rObj = new JSONObject();
-        JSONObject tJSON = null;
-        rObj.put("locked", LaunchControl.pageLock);
-        rObj.put("breweryName", LaunchControl.getName());
+        writer.beginObject();
+        writer.name("locked").value(LaunchControl.pageLock);
+        writer.name("breweryName").value(LaunchControl.getName());
 
         // iterate the thread lists
         // use the temp list to determine if we have a PID to go with
-        JSONArray vesselJSON = new JSONArray();
+        writer.name("vessels").beginArray();
         synchronized (tempList) {
             for (Temp t : tempList) {
                 if (LaunchControl.pageLock && t.getName().equals(t.getProbe())) {
@@ -667,38 +890,34 @@ public final class LaunchControl {
 
                 /* Check for a PID */
                 PID tPid = findPID(t.getName());
-                tJSON = new JSONObject();
+                writer.beginObject();
 
                 // Add the temp to the JSON Map
-                JSONObject tJSONTemp = new JSONObject();
-                tJSONTemp.putAll(t.getMapStatus());
-                tJSON.put("name", t.getName().replaceAll(" ", "_"));
-                tJSON.put("deviceaddr", t.getProbe());
-                tJSON.put("tempprobe", tJSONTemp);
+                writer.name("name").value(t.getName().replaceAll(" ", "_"));
+                writer.name("deviceaddr").value(t.getProbe());
+                writer.name("tempprobe");
+                t.writeStatus(writer);
 
                 if (t.hasVolume()) {
-                    JSONObject volumeJSON = new JSONObject();
-                    volumeJSON.put("volume", t.getVolume());
-                    volumeJSON.put("units", t.getVolumeUnit());
+                    writer.name("volume").beginObject();
+                    writer.name("volume").value(t.getVolume());
+                    writer.name("units").value(t.getVolumeUnit());
                     if (t.getVolumeAIN() >= 0) {
-                        volumeJSON.put("ain", t.getVolumeAIN());
+                        writer.name("ain").value(t.getVolumeAIN());
                     } else {
-                        volumeJSON.put("address", t.getVolumeAddress());
-                        volumeJSON.put("offset", t.getVolumeOffset());
+                        writer.name("address").value(t.getVolumeAddress());
+                        writer.name("offset").value(t.getVolumeOffset());
                     }
-                    volumeJSON.put("gravity", t.getGravity());
-
-                    tJSON.put("volume", volumeJSON);
+                    writer.name("gravity").value(t.getGravity());
+                    writer.endObject();
                 }
 
                 if (tPid != null) {
-                    JSONObject tJSONPID = new JSONObject();
-                    tJSONPID.putAll(tPid.getMapStatus());
-                    tJSON.put("pidstatus", tJSONPID);
+                    writer.name("pidstatus");
+                    tPid.writeStatus(writer);
                 }
 
-                // Add the JSON object with the PID Name
-                vesselJSON.add(tJSON);
+                writer.endObject();
 
                 // update COSM
                 if (cosmFeed != null) {
@@ -720,40 +939,250 @@ public final class LaunchControl {
                 }
             }
         }
-        rObj.put("vessels", vesselJSON);
+        writer.endArray();
 
         if (brewDay != null) {
-            rObj.put("brewday", brewDay.brewDayStatus());
+            writer.name("brewday");
+            brewDay.writeStatus(writer);
         }
 
         // generate the list of pumps
         if (pumpList != null && pumpList.size() > 0) {
-            tJSON = new JSONObject();
-
+            writer.name("pumps").beginObject();
+            boolean hasProgram = false;
             for (Pump p : pumpList) {
-                tJSON.put(p.getName().replaceAll(" ", "_"), p.getStatus());
+                writer.name(p.getName().replaceAll(" ", "_"))
+                        .value(p.getStatus());
+                hasProgram |= p.hasProgram();
+            }
+            writer.endObject();
+
+            if (hasProgram) {
+                writer.name("pumpprograms").beginObject();
+                for (Pump p : pumpList) {
+                    if (p.hasProgram()) {
+                        writer.name(p.getName().replaceAll(" ", "_"));
+                        p.writeProgramStatus(writer);
+                    }
+                }
+                writer.endObject();
             }
-
-            rObj.put("pumps", tJSON);
         }
 
         // Check for mash steps
         if (mashList.size() > 0) {
-            tJSON = new JSONObject();
+            writer.name("mash").beginObject();
             for (MashControl m : mashList) {
-                tJSON.put(m.getOutputControl(), m.getJSONData());
+                writer.name(m.getOutputControl());
+                m.writeJSONData(writer);
             }
-            rObj.put("mash", tJSON);
+            writer.endObject();
         } else {
-            rObj.put("mash", "Unset");
+            writer.name("mash").value("Unset");
+        }
+
+        String message = LaunchControl.getMessage();
+        if (message != null) {
+            writer.name("message").value(message);
+        }
+
+        writer.name("language").value(Locale.getDefault().toString());
+        writer.endObject();
+    }
+
+    /**
+     * Mark the status as changed, the next request for the status rebuilds
+     * the snapshot. Called on every sensor reading and configuration change.
+     */
+    public static void statusChanged() {
+        statusDirty = true;
+        StatusEvents.getInstance().signal();
+    }
+
+    /**
+     * Run a set of changes as one batch. The status isn't rebuilt while
+     * they're made, so no client sees part of the batch, and the config file
+     * is written once at the end instead of after every change.
+     *
+     * @param changes The changes to make.
+     */
+    public static void runBatch(final Runnable changes) {
+        boolean save;
+        synchronized (statusLock) {
+            batchRunning = true;
+            try {
+                changes.run();
+            } finally {
+                batchRunning = false;
+                save = configSavePending;
+                configSavePending = false;
+            }
+        }
+        if (save) {
+            saveConfigFile();
+        }
+        statusChanged();
+    }
+
+    /**
+     * Get the current status, only building it if it has changed since the
+     * last call. Concurrent callers share the same build.
+     *
+     * @return The snapshot of the status document.
+     */
+    public static StatusSnapshot getStatusSnapshot() {
+        StatusSnapshot current = statusSnapshot;
+        if (current != null && !statusDirty) {
+            return current;
+        }
+
+        synchronized (statusLock) {
+            if (statusSnapshot != null && !statusDirty) {
+                return statusSnapshot;
+            }
+            // Clear first, so a change during the build marks it dirty again
+            statusDirty = false;
+            long allocated = getThreadAllocatedBytes();
+            statusWriter.reset();
+            writeJSONStatus(statusWriter);
+
+            // Only copy and parse the status if it's actually changed
+            if (statusSnapshot == null
+                    || !statusSnapshot.sameBody(statusWriter)) {
+                byte[] body = statusWriter.toByteArray();
+                Object tree = null;
+                try {
+                    tree = new JSONParser().parse(
+                            new InputStreamReader(statusWriter.toInputStream(),
+                                    "UTF-8"));
+                } catch (org.json.simple.parser.ParseException e) {
+                    BrewServer.LOG.warning("Couldn't parse the status: "
+                            + e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                statusSnapshot = new StatusSnapshot(
+                        statusVersion.incrementAndGet(), body, tree);
+                statusHistory.put(statusSnapshot.getVersion(), statusSnapshot);
+                Iterator<Long> oldest = statusHistory.keySet().iterator();
+                while (statusHistory.size() > STATUS_HISTORY) {
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+
+            statusBuildSize = statusWriter.size();
+            if (allocated >= 0) {
+                statusBuildAllocated = getThreadAllocatedBytes() - allocated;
+            }
+            return statusSnapshot;
+        }
+    }
+
+    /**
+     * @return The size of the last status build and the bytes it allocated.
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject getStatusBuildStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("bytes", statusBuildSize);
+        stats.put("allocated", statusBuildAllocated);
+        return stats;
+    }
+
+    /**
+     * Look up the HotSpot call to count the bytes allocated by a thread,
+     * other JVMs don't have it.
+     */
+    private static Method findThreadAllocatedBytes() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            method.invoke(bean, Thread.currentThread().getId());
+            return method;
+        } catch (Exception e) {
+            BrewServer.LOG.info("Can't count allocated bytes: " + e);
+            return null;
         }
+    }
 
-        if (LaunchControl.getMessage() != null) {
-            rObj.put("message", LaunchControl.getMessage());
+    /**
+     * @return The bytes allocated by this thread so far, or -1 if the JVM
+     *         can't count them.
+     */
+    private static long getThreadAllocatedBytes() {
+        if (threadAllocatedBytes == null) {
+            return -1;
         }
+        try {
+            Object result = threadAllocatedBytes.invoke(
+                    ManagementFactory.getThreadMXBean(),
+                    Thread.currentThread().getId());
+            return ((Long) result).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
 
-        rObj.put("language", Locale.getDefault().toString());
-        return rObj.toString();
+    /**
+     * Get the fields of the status that changed since an older version.
+     *
+     * @param since The version the client has.
+     * @return The delta as UTF-8 encoded JSON, or the full status if the
+     *         version is too old. See StatusDelta for the format.
+     */
+    public static byte[] getStatusDelta(final long since) {
+        StatusSnapshot current = getStatusSnapshot();
+        StatusSnapshot old;
+        synchronized (statusLock) {
+            old = statusHistory.get(since);
+        }
+        return current.getDelta(since, old);
+    }
+
+    /**
+     * Get the energy used by the outputs, for the session, each vessel and
+     * each mash step. The session is the time since the server started, it
+     * isn't reset for a new brew or recorder session.
+     *
+     * @return a JSON Object representing the energy used
+     */
+    @SuppressWarnings("unchecked")
+    public static String getEnergyStatus() {
+        JSONObject retVal = new JSONObject();
+        JSONObject vessels = new JSONObject();
+        double total = 0;
+
+        synchronized (pidList) {
+            for (PID p : pidList) {
+                JSONObject vessel = new JSONObject();
+                vessel.putAll(p.getEnergyStatus());
+                total += p.getEnergy();
+
+                MashControl m = findMashControl(p.getName());
+                if (m != null) {
+                    JSONArray steps = new JSONArray();
+                    for (int i = 0; i < m.getMashStepSize(); i++) {
+                        MashStep step = m.getMashStep(i);
+                        JSONObject stepJSON = new JSONObject();
+                        stepJSON.put("index", step.getPosition());
+                        stepJSON.put("energy", PID.roundEnergy(step.getEnergy()));
+                        steps.add(stepJSON);
+                    }
+                    vessel.put("mash", steps);
+                }
+                vessels.put(p.getName().replaceAll(" ", "_"), vessel);
+            }
+        }
+
+        JSONObject session = new JSONObject();
+        session.put("start", sessionStart);
+        session.put("since", "server start");
+        session.put("energy", PID.roundEnergy(total));
+        retVal.put("session", session);
+        retVal.put("vessels", vessels);
+        return retVal.toJSONString();
     }
 
     /**
@@ -766,9 +1195,57 @@ public final class LaunchControl {
         retVal.put("recorder", LaunchControl.recorder != null);
         retVal.put("recorderTime", StatusRecorder.SLEEP);
         retVal.put("recorderDiff", StatusRecorder.THRESHOLD);
+        retVal.put("powerBudget", PowerScheduler.getInstance().getBudget());
         return retVal.toJSONString();
     }
 
+    /**
+     * Run one phase of the shutdown, all the tasks run in parallel and the
+     * phase ends when they're done or the deadline passes.
+     *
+     * @param pool
+     *            The pool to run the tasks in
+     * @param phase
+     *            The name of the phase for the log
+     * @param tasks
+     *            The tasks to run
+     * @param deadline
+     *            The deadline for the phase in milliseconds
+     */
+    private static void runShutdownPhase(final ExecutorService pool,
+            final String phase, final List<Callable<Object>> tasks,
+            final long deadline) {
+        long start = System.nanoTime();
+        int failed = 0;
+        try {
+            List<Future<Object>> results =
+                pool.invokeAll(tasks, deadline, TimeUnit.MILLISECONDS);
+            for (Future<Object> result : results) {
+                try {
+                    result.get();
+                } catch (CancellationException e) {
+                    failed++;
+                } catch (ExecutionException e) {
+                    failed++;
+                    BrewServer.LOG.warning(phase + ": "
+                            + e.getCause().getMessage());
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            BrewServer.LOG.warning(phase + " interrupted");
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (failed > 0) {
+            BrewServer.LOG.warning(phase + ": " + failed + " of "
+                    + tasks.size() + " tasks failed or missed the "
+                    + deadline + "ms deadline, took " + elapsed + "ms");
+        } else {
+            BrewServer.LOG.warning(phase + " in " + elapsed + "ms");
+        }
+    }
+
     /**
      * Read the configuration file.
      */
@@ -870,6 +1347,18 @@ public final class LaunchControl {
                             + e.getMessage());
                 }
             }
+
+            tElement = getFirstElement(config, "power_budget");
+            if (tElement != null) {
+                try {
+                    PowerScheduler.getInstance().setBudget(Long.parseLong(
+                            tElement.getTextContent()));
+                } catch (NumberFormatException e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse power budget as a long.\n"
+                            + e.getMessage());
+                }
+            }
             String cosmAPIKey = null;
             Integer cosmFeedID = null;
 
@@ -1001,10 +1490,59 @@ public final class LaunchControl {
                 LaunchControl.findPump(pumpName).setInverted(
                     Boolean.parseBoolean(invert.getTextContent()));
             }
+
+            Element program = getFirstElement(curPump, "program");
+            if (program != null) {
+                parsePumpProgram(LaunchControl.findPump(pumpName), program);
+            }
         }
 
     }
 
+    /**
+     * Parse the program for a pump.
+     *
+     * @param pump
+     *            The pump to set the program on
+     * @param program
+     *            The program element
+     */
+    private void parsePumpProgram(final Pump pump, final Element program) {
+        try {
+            long onTime = 0, offTime = 0;
+            String pidName = null;
+
+            Element tElement = getFirstElement(program, "on_time");
+            if (tElement != null) {
+                onTime = Long.parseLong(tElement.getTextContent());
+            }
+
+            tElement = getFirstElement(program, "off_time");
+            if (tElement != null) {
+                offTime = Long.parseLong(tElement.getTextContent());
+            }
+
+            tElement = getFirstElement(program, "pid");
+            if (tElement != null) {
+                pidName = tElement.getTextContent();
+            }
+
+            pump.setProgram(onTime, offTime, pidName);
+
+            tElement = getFirstElement(program, "enabled");
+            if (tElement != null
+                    && Boolean.parseBoolean(tElement.getTextContent())) {
+                pump.startProgram();
+            }
+        } catch (NumberFormatException nfe) {
+            BrewServer.LOG.warning("Couldn't parse the program for pump "
+                    + pump.getName() + ": " + nfe.getMessage());
+        } catch (IllegalArgumentException iae) {
+            BrewServer.LOG.warning("Invalid program for pump "
+                    + pump.getName() + ": " + iae.getMessage());
+        }
+    }
+
     /**
      * Parse the list of timers in an XML Element.
      * 
@@ -1058,6 +1596,7 @@ public final class LaunchControl {
 
                 pumpList.add(p);
             }
+            ControllerPage.invalidate();
         } catch (Exception g) {
             BrewServer.LOG.warning("Could not add pump: " + g.getMessage());
             g.printStackTrace();
@@ -1080,6 +1619,7 @@ public final class LaunchControl {
         tThread.setName("Temp_system");
         tempThreads.add(tThread);
         tThread.start();
+        ControllerPage.invalidate();
     }
 
     public static void delSystemTemp() {
@@ -1088,6 +1628,7 @@ public final class LaunchControl {
         if (tTemp != null) {
             tTemp.shutdown();
             tempList.remove(tTemp);
+            ControllerPage.invalidate();
         }
     }
 
@@ -1126,6 +1667,7 @@ public final class LaunchControl {
             }
             CollectionsUtil.addInOrder(timerList, new Timer(name));
         }
+        ControllerPage.invalidate();
 
         return true;
     }
@@ -1175,6 +1717,7 @@ public final class LaunchControl {
             pidThreads.add(pThread);
             pThread.start();
         }
+        ControllerPage.invalidate();
 
         return tTemp;
     }
@@ -1280,6 +1823,7 @@ public final class LaunchControl {
         synchronized (pidList) {
             pidList.add(newPID);
         }
+        ControllerPage.invalidate();
         Thread pThread = new Thread(newPID);
         pThread.start();
         pidThreads.add(pThread);
@@ -1322,7 +1866,9 @@ public final class LaunchControl {
             while (iterator.hasNext()) {
                 tPump = iterator.next();
                 if (tPump.getName().equalsIgnoreCase(name)) {
+                    tPump.stopProgram();
                     iterator.remove();
+                    ControllerPage.invalidate();
                     return;
                 }
             }
@@ -1370,6 +1916,7 @@ public final class LaunchControl {
                 }
             }
         }
+        ControllerPage.invalidate();
     }
 
     /********
@@ -1459,6 +2006,7 @@ public final class LaunchControl {
                 synchronized (tempList) {
                     tempList.add(currentTemp);
                 }
+                ControllerPage.invalidate();
                 // setup the scale for each temp probe
                 currentTemp.setScale(scale);
                 // setup the threads
@@ -1548,6 +2096,11 @@ public final class LaunchControl {
         if (!LaunchControl.loadCompleted) {
             return;
         }
+        if (batchRunning) {
+            // Written once when the batch is done
+            configSavePending = true;
+            return;
+        }
         File configOut = new File(configFileName);
         LaunchControl.setFileOwner(configOut);
 
@@ -1599,6 +2152,15 @@ public final class LaunchControl {
 
         tempElement.setTextContent(Long.toString(StatusRecorder.SLEEP));
 
+        tempElement = getFirstElement(generalElement, "power_budget");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "power_budget");
+        }
+
+        tempElement.setTextContent(Long.toString(
+                PowerScheduler.getInstance().getBudget()));
+
         if (breweryName != null && !breweryName.equals("")) {
             tempElement = getFirstElement(generalElement, "brewery_name");
 
@@ -1758,6 +2320,7 @@ public final class LaunchControl {
                     BrewServer.LOG.info("Checking for " + dir);
                     Temp currentTemp = new Temp(dir, dir);
                     tempList.add(currentTemp);
+                    ControllerPage.invalidate();
                     // setup the scale for each temp probe
                     currentTemp.setScale(scale);
                     // setup the threads
@@ -1898,7 +2461,7 @@ public final class LaunchControl {
                 deletePIDConfig(fTemp.getName());
             } else if (!n.getName().equals(fTemp.getProbe())) {
                 BrewServer.LOG.info("Saving PID " + n.getName());
-                savePID(n);
+                savePID(n, false);
             }
 
             if (fTemp.getVolumeBase() != null) {
@@ -1984,6 +2547,20 @@ public final class LaunchControl {
                 invertElement.setTextContent(
                         Boolean.toString(tPump.getInverted()));
                 newPump.appendChild(invertElement);
+
+                if (tPump.hasProgram()) {
+                    Element programElement = addNewElement(newPump, "program");
+                    setElementText(programElement, "on_time",
+                            Long.toString(tPump.getProgramOn()));
+                    setElementText(programElement, "off_time",
+                            Long.toString(tPump.getProgramOff()));
+                    if (tPump.getProgramPID() != null) {
+                        setElementText(programElement, "pid",
+                                tPump.getProgramPID());
+                    }
+                    setElementText(programElement, "enabled",
+                            Boolean.toString(tPump.isProgramEnabled()));
+                }
             }
         }
     }
@@ -2016,6 +2593,18 @@ public final class LaunchControl {
      *            The PID to save
      */
     public static void savePID(final PID pid) {
+        savePID(pid, true);
+    }
+
+    /******
+     * Save the PID to the config doc.
+     * 
+     * @param pid
+     *            The PID to save
+     * @param writeFile
+     *            Write the config file out after, false when saving a batch
+     */
+    private static void savePID(final PID pid, final boolean writeFile) {
 
         if (pid.getName() == null || pid.getName().equals("")) {
             new Throwable().printStackTrace();
@@ -2057,6 +2646,8 @@ public final class LaunchControl {
             setElementText(heatElement, "gpio", pid.getHeatGPIO());
             setElementText(heatElement, "invert",
                     Boolean.toString(pid.getHeatInverted()));
+            setElementText(heatElement, "watts", pid.getHeatWatts()
+                    .toString());
         }
 
         if (pid.getCoolSetting() != null) {
@@ -2064,6 +2655,7 @@ public final class LaunchControl {
             setElementText(coolElement, "cycle_time", pid.getCoolCycle()
                     .toString());
             setElementText(coolElement, "delay", pid.getCoolDelay().toString());
+            setElementText(coolElement, "min_on", pid.getCoolMinOn().toString());
             setElementText(coolElement, "proportional", pid.getCoolP()
                     .toString());
             setElementText(coolElement, "integral", pid.getCoolI().toString());
@@ -2072,6 +2664,8 @@ public final class LaunchControl {
             setElementText(coolElement, "gpio", pid.getCoolGPIO());
             setElementText(coolElement, "invert",
                     Boolean.toString(pid.getCoolInverted()));
+            setElementText(coolElement, "watts", pid.getCoolWatts()
+                    .toString());
         }
 
         setElementText(device, "min", pid.getMin().toString());
@@ -2082,7 +2676,9 @@ public final class LaunchControl {
             setElementText(device, "aux", pid.getAuxGPIO());
         }
 
-        saveConfigFile();
+        if (writeFile) {
+            saveConfigFile();
+        }
     }
 
     /*******
@@ -2387,7 +2983,9 @@ public final class LaunchControl {
                 time = new BigDecimal(0.0), coolP = new BigDecimal(0.0),
                 coolI = new BigDecimal(0.0), coolD = new BigDecimal(0.0),
                 coolCycle = new BigDecimal(0.0),
-                coolDelay = new BigDecimal(0.0);
+                coolDelay = new BigDecimal(0.0),
+                heatWatts = new BigDecimal(0), coolWatts = new BigDecimal(0),
+                coolMinOn = new BigDecimal(0);
         boolean coolInvert = false, heatInvert = false;
         int analoguePin = -1;
 
@@ -2441,6 +3039,11 @@ public final class LaunchControl {
                 heatD = new BigDecimal(tElement.getTextContent());
             }
 
+            tElement = getFirstElement(heatElement, "watts");
+            if (tElement != null) {
+                heatWatts = new BigDecimal(tElement.getTextContent());
+            }
+
             tElement = getFirstElement(config, "invert");
             if (tElement != null) {
                 heatInvert = Boolean.parseBoolean(tElement.getTextContent());
@@ -2480,6 +3083,16 @@ public final class LaunchControl {
                     coolDelay = new BigDecimal(tElement.getTextContent());
                 }
 
+                tElement = getFirstElement(coolElement, "watts");
+                if (tElement != null) {
+                    coolWatts = new BigDecimal(tElement.getTextContent());
+                }
+
+                tElement = getFirstElement(coolElement, "min_on");
+                if (tElement != null) {
+                    coolMinOn = new BigDecimal(tElement.getTextContent());
+                }
+
                 tElement = getFirstElement(coolElement, "inverted");
                 if (tElement != null) {
                     coolInvert = Boolean.parseBoolean(tElement.getTextContent());
@@ -2606,6 +3219,7 @@ public final class LaunchControl {
                 tPID.updateValues("off", duty, heatCycle, setpoint, heatP,
                         heatI, heatD);
                 tPID.setCoolDelay(coolDelay);
+                tPID.setCoolMinOn(coolMinOn);
                 tPID.setCoolCycle(coolCycle);
                 tPID.setCoolP(coolP);
                 tPID.setCoolI(coolI);
@@ -2613,6 +3227,8 @@ public final class LaunchControl {
                 tPID.setCoolGPIO(coolGPIO);
                 tPID.setCoolInverted(coolInvert);
                 tPID.setHeatInverted(heatInvert);
+                tPID.setHeatWatts(heatWatts);
+                tPID.setCoolWatts(coolWatts);
 
                 if (auxPin != null && !auxPin.equals("")) {
                     tPID.setAux(auxPin);
@@ -3176,6 +3792,7 @@ public final class LaunchControl {
      */
     static void setMessage(String message) {
         LaunchControl.message = message;
+        statusChanged();
     }
 
     /**
@@ -3184,6 +3801,7 @@ public final class LaunchControl {
      */
     static void addMessage(String message) {
         LaunchControl.message += "\n" + message;
+        statusChanged();
     }
 
     /**
@@ -3223,6 +3841,7 @@ public final class LaunchControl {
     public static void deletePID(PID tPID) {
         tPID.stop();
         pidList.remove(tPID);
+        ControllerPage.invalidate();
     }
 
     /**
@@ -3271,11 +3890,13 @@ public final class LaunchControl {
     public static void lockPage() {
         LaunchControl.removeNonSetupDevices();
         LaunchControl.pageLock = true;
+        ControllerPage.invalidate();
     }
 
     public static void unlockPage() {
         LaunchControl.listOneWireSys(false);
         LaunchControl.pageLock = false;
+        ControllerPage.invalidate();
     }
 
     public static boolean setTempScales(String scale) {
@@ -3333,6 +3954,7 @@ public final class LaunchControl {
         LaunchControl.recorder = new StatusRecorder(recorderDirectory);
         LaunchControl.recorder.setThreshold(recorderDiff);
         LaunchControl.recorder.start();
+        ControllerPage.invalidate();
     }
 
     public static void disableRecorder() {
@@ -3343,5 +3965,6 @@ public final class LaunchControl {
         LaunchControl.recorderEnabled = false;
         LaunchControl.recorder.stop();
         LaunchControl.recorder = null;
+        ControllerPage.invalidate();
     }
 }
\ No newline at end of file
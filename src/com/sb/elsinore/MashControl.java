@@ -1,7 +1,5 @@
 package com.sb.elsinore;
 
-import java.io.IOException;
-import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.text.DateFormat;
@@ -15,9 +13,6 @@ import java.util.List;
 import java.util.Map.Entry;
 
 import org.joda.time.DateTime;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-
 
 /********************
  * This class is for storing the mash steps.
@@ -143,6 +138,7 @@ public class MashControl implements Runnable {
             if (currentStep != null && currentPID != null) {
                 // Do stuff with the active step
                 Date cDate = new Date();
+                currentStep.updateEnergy(currentPID.getEnergy());
 
                 // Does the times need to be changed?
                 BigDecimal currentTempF = currentPID.getTempProbe().getTempF();
@@ -260,55 +256,53 @@ public class MashControl implements Runnable {
      * @return The String representing the current state.
      */
     public final String getJSONDataString() {
-        StringWriter out = new StringWriter();
-        try {
-            getJSONData().writeJSONString(out);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return out.toString();
+        JsonWriter writer = new JsonWriter(256);
+        writeJSONData(writer);
+        return writer.toString();
     }
 
     /**
-     * Get the current status as a JSONObject.
-     * @return The JSONObject representing the current state.
+     * Write the current state as a JSON array of the steps.
+     * @param writer The writer to add the array to.
      */
-    @SuppressWarnings("unchecked")
-    public final JSONArray getJSONData() {
-        JSONArray masterArray = new JSONArray();
+    public final void writeJSONData(final JsonWriter writer) {
         DateFormat lFormat = new SimpleDateFormat("yyyy/MM/dd'T'HH:mm:ssZ");
-        //masterArray.put("pid", this.getOutputControl());
+        writer.beginArray();
         synchronized (mashStepList) {
-            for (MashStep e : mashStepList) {
-                MashStep step = e;
-                JSONObject mashstep = new JSONObject();
-                mashstep.put("index", e.getPosition());
-                mashstep.put("target_temp", step.getTargetTemp());
-                mashstep.put("target_temp_unit", step.getTempUnit());
-                mashstep.put("duration", step.getDuration());
-                mashstep.put("method", step.getMethod());
-                mashstep.put("type", step.getType());
+            for (MashStep step : mashStepList) {
+                writer.beginObject();
+                writer.name("index").value(step.getPosition());
+                writer.name("target_temp").value(step.getTargetTemp());
+                writer.name("target_temp_unit").value(step.getTempUnit());
+                writer.name("duration").value(step.getDuration());
+                writer.name("method").value(step.getMethod());
+                writer.name("type").value(step.getType());
 
                 if (step.isActive()) {
-                    mashstep.put("active", true);
+                    writer.name("active").value(true);
                 }
 
-                try {
-                    mashstep.put("start_time", lFormat.format(step.getStart()));
-                    mashstep.put("target_time",
-                        lFormat.format(step.getTargetEnd()));
-                    mashstep.put("end_time", lFormat.format(step.getEnd()));
-                } catch (NullPointerException npe) {
-                    // We know that some of these may be null, but don't care
-                    BrewServer.LOG.info("Failed to get a date: "
-                        + npe.getLocalizedMessage());
+                if (step.getEnergy() > 0) {
+                    writer.name("energy").value(
+                            PID.roundEnergy(step.getEnergy()));
+                }
+
+                // Steps that haven't started or finished don't have all the
+                // times, stop at the first one missing
+                Date[] times = {step.getStart(), step.getTargetEnd(),
+                        step.getEnd()};
+                String[] names = {"start_time", "target_time", "end_time"};
+                for (int i = 0; i < times.length; i++) {
+                    if (times[i] == null) {
+                        break;
+                    }
+                    writer.name(names[i]).value(lFormat.format(times[i]));
                 }
 
-                masterArray.add(mashstep);
+                writer.endObject();
             }
         }
-        return masterArray;
+        writer.endArray();
     }
 
     /**
@@ -50,6 +50,16 @@ public class MashStep implements Comparable<MashStep> {
      * Flag to determine if this mash step is active.
      */
     private boolean active = false;
+
+    /**
+     * The PID energy reading when this step started, -1 if not started.
+     */
+    private double energyStart = -1;
+
+    /**
+     * The energy used during this step in watt hours.
+     */
+    private double energy = 0;
     private int position = -1;
     
     public MashStep(int position) {
@@ -177,8 +187,26 @@ public class MashStep implements Comparable<MashStep> {
         return this.endTime;
     }
 
+    /**
+     * @return The energy used during this step in watt hours.
+     */
+    public final double getEnergy() {
+        return this.energy;
+    }
+
     // SETTERS
 
+    /**
+     * Update the energy used by this step.
+     * @param total The current energy reading of the PID in watt hours.
+     */
+    public final void updateEnergy(final double total) {
+        if (this.energyStart < 0) {
+            this.energyStart = total;
+        }
+        this.energy = total - this.energyStart;
+    }
+
     /**
      * Activate the current step.
      */
@@ -0,0 +1,266 @@
+package com.sb.elsinore;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics served at /metrics, in the Prometheus text format.
+ *
+ * The routes keep their own statistics, this adds the JVM and the controller:
+ * how long sensor reads take, how late each PID loop runs and how far the
+ * outputs overrun their on and off times. Everything is recorded into lock
+ * free histograms, so it's cheap enough to leave on.
+ */
+public final class Metrics {
+
+    public static final String SENSOR_READ = "elsinore_sensor_read_seconds";
+    public static final String PID_LAG = "elsinore_pid_loop_lag_seconds";
+    public static final String OUTPUT_JITTER =
+            "elsinore_output_timing_error_seconds";
+
+    /**
+     * The controller histograms: the name, the device label and the help.
+     */
+    private static final String[][] CONTROLLER = {
+        {SENSOR_READ, "sensor", "Time taken to read a temperature sensor."},
+        {PID_LAG, "pid", "How late each PID loop ran after its sleep."},
+        {OUTPUT_JITTER, "output",
+            "How long an output overran a scheduled on or off time."},
+    };
+
+    /**
+     * The bucket edges exported, powers of two in microseconds from 64us to
+     * 16s. They're exact, the histograms have an edge on every power of two.
+     */
+    private static final int[] EXPONENTS = {6, 8, 10, 12, 14, 16, 18, 20, 22,
+        24};
+    private static final String[] EDGES = new String[EXPONENTS.length];
+
+    static {
+        for (int i = 0; i < EXPONENTS.length; i++) {
+            EDGES[i] = BigDecimal.valueOf(1L << EXPONENTS[i])
+                    .movePointLeft(6).toPlainString();
+        }
+    }
+
+    private static final Map<String, ConcurrentHashMap<String,
+            LatencyHistogram>> HISTOGRAMS = new TreeMap<String,
+            ConcurrentHashMap<String, LatencyHistogram>>();
+
+    static {
+        for (String[] metric : CONTROLLER) {
+            HISTOGRAMS.put(metric[0],
+                    new ConcurrentHashMap<String, LatencyHistogram>());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Record a time for a device.
+     * @param metric One of the controller metrics, e.g. SENSOR_READ.
+     * @param device The name of the device.
+     * @param nanos The time in nanoseconds.
+     */
+    public static void record(final String metric, final String device,
+            final long nanos) {
+        ConcurrentHashMap<String, LatencyHistogram> devices =
+                HISTOGRAMS.get(metric);
+        String name = device == null ? "" : device;
+        LatencyHistogram histogram = devices.get(name);
+        if (histogram == null) {
+            LatencyHistogram added = new LatencyHistogram();
+            histogram = devices.putIfAbsent(name, added);
+            if (histogram == null) {
+                histogram = added;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Write every metric.
+     * @param out The text to add to.
+     * @param routes The web server routes.
+     */
+    public static void write(final StringBuilder out,
+            final List<RouteTable.Route> routes) {
+        writeRoutes(out, routes);
+        for (String[] metric : CONTROLLER) {
+            writeHeader(out, metric[0], "histogram", metric[2]);
+            Map<String, LatencyHistogram> devices =
+                    new TreeMap<String, LatencyHistogram>(
+                            HISTOGRAMS.get(metric[0]));
+            for (Map.Entry<String, LatencyHistogram> e : devices.entrySet()) {
+                writeHistogram(out, metric[0], label(metric[1], e.getKey()),
+                        e.getValue());
+            }
+        }
+        writeJvm(out);
+    }
+
+    private static void writeRoutes(final StringBuilder out,
+            final List<RouteTable.Route> routes) {
+        writeHeader(out, "elsinore_http_requests_total", "counter",
+                "Requests by route and status class.");
+        for (RouteTable.Route route : routes) {
+            for (int i = 0; i < 6; i++) {
+                long n = route.getResponses(i);
+                if (n > 0) {
+                    writeSample(out, "elsinore_http_requests_total",
+                            label("route", route.getPath()) + ","
+                            + label("code", i == 0 ? "none" : i + "xx"), n);
+                }
+            }
+        }
+
+        writeHeader(out, "elsinore_http_request_duration_seconds",
+                "histogram", "Time taken to handle a request, by route.");
+        for (RouteTable.Route route : routes) {
+            if (route.getLatency().getCount() > 0) {
+                writeHistogram(out, "elsinore_http_request_duration_seconds",
+                        label("route", route.getPath()), route.getLatency());
+            }
+        }
+
+        writeHeader(out, "elsinore_http_request_bytes_total", "counter",
+                "Request body bytes received, by route.");
+        for (RouteTable.Route route : routes) {
+            if (route.getLatency().getCount() > 0) {
+                writeSample(out, "elsinore_http_request_bytes_total",
+                        label("route", route.getPath()), route.getBytesIn());
+            }
+        }
+
+        writeHeader(out, "elsinore_http_response_bytes_total", "counter",
+                "Response body bytes sent, by route.");
+        for (RouteTable.Route route : routes) {
+            if (route.getLatency().getCount() > 0) {
+                writeSample(out, "elsinore_http_response_bytes_total",
+                        label("route", route.getPath()), route.getBytesOut());
+            }
+        }
+    }
+
+    private static void writeJvm(final StringBuilder out) {
+        MemoryUsage heap =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap =
+                ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        writeHeader(out, "jvm_memory_bytes_used", "gauge",
+                "Memory in use by area.");
+        writeSample(out, "jvm_memory_bytes_used", label("area", "heap"),
+                heap.getUsed());
+        writeSample(out, "jvm_memory_bytes_used", label("area", "nonheap"),
+                nonHeap.getUsed());
+        writeHeader(out, "jvm_memory_bytes_committed", "gauge",
+                "Memory committed by area.");
+        writeSample(out, "jvm_memory_bytes_committed", label("area", "heap"),
+                heap.getCommitted());
+        writeSample(out, "jvm_memory_bytes_committed",
+                label("area", "nonheap"), nonHeap.getCommitted());
+        writeHeader(out, "jvm_memory_bytes_max", "gauge",
+                "Maximum memory by area, -1 if there's no limit.");
+        writeSample(out, "jvm_memory_bytes_max", label("area", "heap"),
+                heap.getMax());
+
+        writeHeader(out, "jvm_gc_collection_seconds", "summary",
+                "Time spent in garbage collection by collector.");
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = label("gc", gc.getName());
+            writeSample(out, "jvm_gc_collection_seconds_count", labels,
+                    gc.getCollectionCount());
+            writeSample(out, "jvm_gc_collection_seconds_sum", labels,
+                    gc.getCollectionTime() / 1e3);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        writeHeader(out, "jvm_threads_current", "gauge", "Live threads.");
+        writeSample(out, "jvm_threads_current", null,
+                threads.getThreadCount());
+        writeHeader(out, "jvm_threads_daemon", "gauge", "Daemon threads.");
+        writeSample(out, "jvm_threads_daemon", null,
+                threads.getDaemonThreadCount());
+        writeHeader(out, "jvm_threads_peak", "gauge",
+                "The most threads live at once.");
+        writeSample(out, "jvm_threads_peak", null,
+                threads.getPeakThreadCount());
+
+        writeHeader(out, "process_uptime_seconds", "gauge",
+                "Time since the JVM started.");
+        writeSample(out, "process_uptime_seconds", null,
+                ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    private static void writeHistogram(final StringBuilder out,
+            final String name, final String labels,
+            final LatencyHistogram histogram) {
+        for (int i = 0; i < EXPONENTS.length; i++) {
+            writeSample(out, name + "_bucket", labels + ","
+                    + label("le", EDGES[i]),
+                    histogram.getCountBelow(EXPONENTS[i]));
+        }
+        // Counted from the buckets, so it's never less than the last edge
+        long count = histogram.getCountBelow(Long.SIZE - 1);
+        writeSample(out, name + "_bucket", labels + "," + label("le", "+Inf"),
+                count);
+        writeSample(out, name + "_sum", labels, histogram.getTotal() / 1e6);
+        writeSample(out, name + "_count", labels, count);
+    }
+
+    private static void writeHeader(final StringBuilder out,
+            final String name, final String type, final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static void writeSample(final StringBuilder out,
+            final String name, final String labels, final long value) {
+        writeName(out, name, labels);
+        out.append(value).append('\n');
+    }
+
+    private static void writeSample(final StringBuilder out,
+            final String name, final String labels, final double value) {
+        writeName(out, name, labels);
+        out.append(value).append('\n');
+    }
+
+    private static void writeName(final StringBuilder out, final String name,
+            final String labels) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+    }
+
+    /**
+     * @return The label, with the value escaped.
+     */
+    private static String label(final String name, final String value) {
+        StringBuilder label = new StringBuilder(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                label.append('\\').append(c);
+            } else if (c == '\n') {
+                label.append("\\n");
+            } else {
+                label.append(c);
+            }
+        }
+        return label.append('"').toString();
+    }
+}
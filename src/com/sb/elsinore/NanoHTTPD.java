@@ -2,29 +2,44 @@ package com.sb.elsinore;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -36,6 +51,21 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -88,6 +118,19 @@ public abstract class NanoHTTPD {
      * block the socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    /**
+     * Milliseconds to wait before accepting again after accept fails.
+     */
+    private static final int ACCEPT_RETRY_DELAY = 1000;
+    /**
+     * How long the selector front end keeps an idle keep-alive connection open (in milliseconds).
+     * Idle connections don't hold a thread, so this can be much longer than SOCKET_READ_TIMEOUT.
+     */
+    public static final int SELECTOR_IDLE_TIMEOUT = 60000;
+    /**
+     * The largest request body accepted by default, in bytes.
+     */
+    public static final long DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
     /**
      * Common mime type for dynamic content: plain text
      */
@@ -105,10 +148,42 @@ public abstract class NanoHTTPD {
     private ServerSocket myServerSocket;
     private Set<Socket> openConnections = new HashSet<Socket>();
     private Thread myThread;
+    /**
+     * Use the NIO selector front end rather than a thread per connection.
+     */
+    private boolean selectorFrontEnd = false;
+    private Selector mySelector;
+    /**
+     * The path of a Unix domain socket to listen on as well as the port, null for none.
+     */
+    private String unixSocketPath;
+    /**
+     * The permissions to give the socket file, null to leave what the umask gives.
+     */
+    private Set<PosixFilePermission> unixSocketPermissions;
+    private ServerSocketChannel myUnixChannel;
+    private Thread myUnixThread;
+    /**
+     * Times out reads on the Unix socket connections, they have no socket timeout of their own.
+     */
+    private ScheduledThreadPoolExecutor unixReadTimeouts;
+    private Set<SocketChannel> openUnixConnections = new HashSet<SocketChannel>();
+    /**
+     * Dynamic responses at least this long are gzipped for clients that accept it, -1 to never compress.
+     */
+    private int gzipThreshold = -1;
+    /**
+     * Requests with a larger body are refused with 413.
+     */
+    private long maxBodySize = DEFAULT_MAX_BODY_SIZE;
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
     private AsyncRunner asyncRunner;
+    /**
+     * Limits on connections and requests, null for none.
+     */
+    private AdmissionControl admission = new AdmissionControl();
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      */
@@ -147,85 +222,937 @@ public abstract class NanoHTTPD {
             } catch (IOException e) {
             }
         }
-    }
+    }
+
+    private static final void safeClose(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Start the server.
+     *
+     * @throws IOException if the socket is in use.
+     */
+    public void start() throws IOException {
+        if (unixSocketPath != null) {
+            startUnixListener();
+        }
+        if (selectorFrontEnd) {
+            startSelector();
+            return;
+        }
+        myServerSocket = new ServerSocket();
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+
+        myThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    try {
+                        final Socket finalAccept = myServerSocket.accept();
+                        if (!admit(finalAccept)) {
+                            continue;
+                        }
+                        registerConnection(finalAccept);
+                        finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
+                        final InputStream inputStream = admission == null ? finalAccept.getInputStream()
+                                : new DeadlineInputStream(finalAccept, finalAccept.getInputStream(), SOCKET_READ_TIMEOUT);
+                        if (inputStream == null) {
+                            safeClose(finalAccept);
+                            unRegisterConnection(finalAccept);
+                        } else {
+                            try {
+                                asyncRunner.exec(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        OutputStream outputStream = null;
+                                        try {
+                                            outputStream = finalAccept.getOutputStream();
+                                            TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                            HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
+                                            while (!finalAccept.isClosed()) {
+                                                session.execute();
+                                            }
+                                        } catch (Exception e) {
+                                            // When the socket is closed by the client, we throw our own SocketException
+                                            // to break the  "keep alive" loop above.
+                                            if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                                e.printStackTrace();
+                                            }
+                                        } finally {
+                                            safeClose(outputStream);
+                                            safeClose(inputStream);
+                                            safeClose(finalAccept);
+                                            unRegisterConnection(finalAccept);
+                                        }
+                                    }
+                                });
+                            } catch (RejectedExecutionException e) {
+                                // Too busy, tell the client and drop it
+                                Response busy = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy");
+                                busy.addHeader("Retry-After", "1");
+                                busy.send(finalAccept.getOutputStream());
+                                safeClose(finalAccept);
+                                unRegisterConnection(finalAccept);
+                            }
+                        }
+                    } catch (IOException e) {
+                    }
+                } while (!myServerSocket.isClosed());
+            }
+        });
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Main Listener");
+        myThread.start();
+    }
+
+    /**
+     * Listen on the Unix domain socket as well as the port, for a reverse proxy on the same machine.
+     * <p/>
+     * <p>Unix domain sockets need Java 16, they're looked up reflectively so the server still builds
+     * for older targets. Each connection gets a thread from the AsyncRunner whichever front end is used,
+     * with the same read timeout and deadlines as the TCP connections.</p>
+     * <p/>
+     * <p>The socket file keeps the permissions the umask gives it unless they're set with
+     * setUnixSocketPermissions(), anyone who can connect to it gets past the proxy's authentication.</p>
+     *
+     * @throws IOException if the socket can't be created.
+     */
+    private void startUnixListener() throws IOException {
+        File file = new File(unixSocketPath);
+        if (file.exists() && !file.isFile() && !file.isDirectory()) {
+            // Left behind by the last run
+            file.delete();
+        }
+        final ServerSocketChannel channel;
+        SocketAddress address;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, unixSocketPath);
+            channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (Exception e) {
+            throw new IOException("Unix domain sockets need Java 16 or later", e);
+        }
+        channel.bind(address);
+        if (unixSocketPermissions != null) {
+            Files.setPosixFilePermissions(file.toPath(), unixSocketPermissions);
+        }
+        myUnixChannel = channel;
+
+        unixReadTimeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NanoHttpd Unix Read Timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        unixReadTimeouts.setRemoveOnCancelPolicy(true);
+
+        myUnixThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (channel.isOpen()) {
+                    final SocketChannel accepted;
+                    try {
+                        accepted = channel.accept();
+                    } catch (IOException e) {
+                        if (!channel.isOpen()) {
+                            break;
+                        }
+                        // Out of file descriptors and the like, don't spin on it
+                        e.printStackTrace();
+                        try {
+                            Thread.sleep(ACCEPT_RETRY_DELAY);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                        continue;
+                    }
+                    final OutputStream outputStream = new ChannelOutputStream(accepted);
+                    Response.Status refusal = admission == null ? null : admission.admit(null);
+                    if (refusal != null) {
+                        Response busy = new Response(refusal, MIME_PLAINTEXT, "Server busy");
+                        busy.addHeader("Retry-After", "1");
+                        busy.send(outputStream);
+                        safeClose(accepted);
+                        continue;
+                    }
+                    registerConnection(accepted);
+                    try {
+                        asyncRunner.exec(new Runnable() {
+                            @Override
+                            public void run() {
+                                UnixInputStream unixInput = new UnixInputStream(accepted, unixReadTimeouts,
+                                        SOCKET_READ_TIMEOUT);
+                                InputStream inputStream = admission == null ? unixInput
+                                        : new DeadlineInputStream(unixInput, SOCKET_READ_TIMEOUT);
+                                try {
+                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream,
+                                            InetAddress.getLoopbackAddress());
+                                    while (accepted.isOpen()) {
+                                        session.execute();
+                                    }
+                                } catch (Exception e) {
+                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                        e.printStackTrace();
+                                    }
+                                } finally {
+                                    safeClose(accepted);
+                                    unRegisterConnection(accepted);
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        Response busy = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy");
+                        busy.addHeader("Retry-After", "1");
+                        busy.send(outputStream);
+                        safeClose(accepted);
+                        unRegisterConnection(accepted);
+                    }
+                }
+            }
+        });
+        myUnixThread.setDaemon(true);
+        myUnixThread.setName("NanoHttpd Unix Listener");
+        myUnixThread.start();
+    }
+
+    /**
+     * Also listen on a Unix domain socket, this must be set before the server is started.
+     *
+     * @param path The path of the socket file, null for none. A socket left there by an earlier run is replaced.
+     */
+    public void setUnixSocketPath(String path) {
+        this.unixSocketPath = path;
+    }
+
+    /**
+     * Set the permissions of the Unix domain socket file, for a proxy running as another user.
+     *
+     * @param permissions The permissions, null to leave what the umask gives.
+     */
+    public void setUnixSocketPermissions(Set<PosixFilePermission> permissions) {
+        this.unixSocketPermissions = permissions;
+    }
+
+    /**
+     * @param mode An octal file mode, for example 0660.
+     * @return The permissions for the mode.
+     */
+    public static Set<PosixFilePermission> toPermissions(int mode) {
+        if (mode < 0 || mode > 0777) {
+            throw new IllegalArgumentException("Not a file mode: " + Integer.toOctalString(mode));
+        }
+        Set<PosixFilePermission> permissions = new HashSet<PosixFilePermission>();
+        // Declared owner read first through others execute, the same order as the mode bits
+        PosixFilePermission[] all = PosixFilePermission.values();
+        for (int i = 0; i < all.length; i++) {
+            if ((mode & (0400 >> i)) != 0) {
+                permissions.add(all[i]);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * @return The path of the Unix domain socket listened on, null if there isn't one.
+     */
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    /**
+     * Check a new connection against the admission limits, answering and closing it if it's refused.
+     *
+     * @return True if the connection was admitted.
+     */
+    private boolean admit(Socket socket) {
+        if (admission == null) {
+            return true;
+        }
+        Response.Status refusal = admission.admit(socket.getInetAddress());
+        if (refusal == null) {
+            return true;
+        }
+        try {
+            Response busy = new Response(refusal, MIME_PLAINTEXT, refusal == Response.Status.TOO_MANY_REQUESTS
+                    ? "Too many connections from this address" : "Server busy");
+            busy.addHeader("Retry-After", "1");
+            busy.send(socket.getOutputStream());
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        safeClose(socket);
+        return false;
+    }
+
+    /**
+     * Set the limits on connections and requests, this must be set before the server is started.
+     *
+     * @param admission The limits, null for none.
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return The limits on connections and requests, null if there are none.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * Start the server with the selector front end.
+     * <p/>
+     * <p>One thread waits on every connection, and a connection is only handed to the
+     * AsyncRunner once a complete request has arrived. Idle keep-alive connections don't
+     * use a thread.</p>
+     *
+     * @throws IOException if the socket is in use.
+     */
+    private void startSelector() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        serverChannel.configureBlocking(false);
+        mySelector = Selector.open();
+        serverChannel.register(mySelector, SelectionKey.OP_ACCEPT);
+        myServerSocket = serverChannel.socket();
+
+        myThread = new Thread(new SelectorFrontEnd(serverChannel, mySelector));
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Selector");
+        myThread.start();
+    }
+
+    /**
+     * Use the NIO selector front end, this must be set before the server is started.
+     *
+     * @param enabled True to multiplex connections on a selector, false for a thread per connection.
+     */
+    public void setSelectorFrontEnd(boolean enabled) {
+        this.selectorFrontEnd = enabled;
+    }
+
+    /**
+     * @return True if the server uses the NIO selector front end.
+     */
+    public boolean isSelectorFrontEnd() {
+        return selectorFrontEnd;
+    }
+
+    /**
+     * Gzip in memory responses of a text type when the client accepts it.
+     *
+     * @param threshold The smallest response to compress in bytes, -1 to never compress.
+     */
+    public void setGzipThreshold(int threshold) {
+        this.gzipThreshold = threshold;
+    }
+
+    /**
+     * @return The smallest response gzipped in bytes, -1 if responses aren't compressed.
+     */
+    public int getGzipThreshold() {
+        return gzipThreshold;
+    }
+
+    /**
+     * Refuse request bodies larger than this, with 413.
+     *
+     * @param maxBodySize The largest body accepted in bytes.
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * @return The largest request body accepted in bytes.
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Gzip some bytes.
+     *
+     * @return The compressed bytes.
+     */
+    public static byte[] gzip(byte[] body, int offset, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(body, offset, length);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Check an Accept-Encoding header for gzip.
+     *
+     * @param acceptEncoding The header value, may be null.
+     * @return True if the client accepts gzip, a q value of 0 refuses it.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.US);
+            if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+                continue;
+            }
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parm = parts[i].trim();
+                if (parm.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(parm.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            return q > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop() {
+        try {
+            safeClose(myServerSocket);
+            if (mySelector != null) {
+                mySelector.wakeup();
+            }
+            if (myUnixChannel != null) {
+                safeClose(myUnixChannel);
+                new File(unixSocketPath).delete();
+            }
+            closeAllConnections();
+            myThread.join();
+            if (myUnixThread != null) {
+                myUnixThread.join();
+            }
+            if (unixReadTimeouts != null) {
+                unixReadTimeouts.shutdownNow();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Front end that waits for requests on a Selector.
+     * <p/>
+     * <p>The selector thread reads each connection until it holds a complete request (the
+     * header and Content-Length bytes of body), then deregisters the channel and hands it
+     * to the AsyncRunner. The worker switches the channel to blocking, runs the request
+     * through a normal HTTPSession and serve(), and gives the connection back to the
+     * selector to wait for the next keep-alive request.</p>
+     */
+    private class SelectorFrontEnd implements Runnable {
+        private static final int SELECT_INTERVAL = 1000;
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        /**
+         * Connections handed back by the workers, to be registered again.
+         */
+        private final ConcurrentLinkedQueue<ChannelConnection> returning = new ConcurrentLinkedQueue<ChannelConnection>();
+        private long lastSweep = System.currentTimeMillis();
+
+        SelectorFrontEnd(ServerSocketChannel serverChannel, Selector selector) {
+            this.serverChannel = serverChannel;
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (serverChannel.isOpen()) {
+                    try {
+                        select();
+                    } catch (IOException e) {
+                        if (serverChannel.isOpen()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChannelConnection) {
+                        close((ChannelConnection) key.attachment());
+                    }
+                }
+                safeClose(selector);
+            }
+        }
+
+        private void select() throws IOException {
+            selector.select(SELECT_INTERVAL);
+
+            List<ChannelConnection> ready = new ArrayList<ChannelConnection>();
+            ChannelConnection returned;
+            while ((returned = returning.poll()) != null) {
+                resume(returned, ready);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    read(key, ready);
+                }
+            }
+
+            if (!ready.isEmpty()) {
+                // Flush the cancelled keys so the workers can put the channels in blocking mode
+                selector.selectNow();
+                selector.selectedKeys().clear();
+                for (ChannelConnection connection : ready) {
+                    dispatch(connection);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SELECT_INTERVAL) {
+                lastSweep = now;
+                closeIdle(now);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                if (!admit(channel.socket())) {
+                    continue;
+                }
+                channel.configureBlocking(false);
+                registerConnection(channel.socket());
+                channel.register(selector, SelectionKey.OP_READ, new ChannelConnection(channel, maxBodySize));
+            }
+        }
+
+        private void read(SelectionKey key, List<ChannelConnection> ready) {
+            ChannelConnection connection = (ChannelConnection) key.attachment();
+            int read;
+            try {
+                read = connection.read();
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                key.cancel();
+                close(connection);
+                return;
+            }
+            if (connection.isReady()) {
+                key.cancel();
+                ready.add(connection);
+            }
+        }
+
+        /**
+         * Register a connection again, or dispatch it straight away if the client has
+         * already pipelined the next request.
+         */
+        private void resume(ChannelConnection connection, List<ChannelConnection> ready) {
+            if (!connection.channel.isOpen()) {
+                close(connection);
+                return;
+            }
+            if (connection.isReady()) {
+                dispatch(connection);
+                return;
+            }
+            try {
+                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void dispatch(final ChannelConnection connection) {
+            if (connection.isTooLarge()) {
+                reply(connection, new Response(Response.Status.PAYLOAD_TOO_LARGE, MIME_PLAINTEXT, "Request body too large"));
+                return;
+            }
+            final boolean streamed = connection.isStreamed();
+            final byte[] request = connection.takeRequest();
+            if (request == null) {
+                reply(connection, new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "BAD REQUEST: Header too large."));
+                return;
+            }
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    handle(connection, request, streamed);
+                }
+            };
+            try {
+                if (admission != null && admission.isPriority(requestPath(request))) {
+                    try {
+                        admission.getPriorityRunner().exec(task);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // Take a place with everything else
+                    }
+                }
+                asyncRunner.exec(task);
+            } catch (RejectedExecutionException e) {
+                // Too busy, tell the client and drop it
+                Response busy = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy");
+                busy.addHeader("Retry-After", "1");
+                reply(connection, busy);
+            }
+        }
+
+        /**
+         * Run a request on a worker thread.
+         *
+         * @param streamed True if only the start of the body was read, the rest is read from the socket.
+         */
+        private void handle(ChannelConnection connection, byte[] request, boolean streamed) {
+            SocketChannel channel = connection.channel;
+            TempFileManager tempFileManager = tempFileManagerFactory.create();
+            try {
+                channel.configureBlocking(true);
+                InputStream inputStream = new ByteArrayInputStream(request);
+                if (streamed) {
+                    // A large body goes to a temporary file like on the thread front end, with its timeouts
+                    Socket socket = channel.socket();
+                    socket.setSoTimeout(SOCKET_READ_TIMEOUT);
+                    inputStream = new SequenceInputStream(inputStream, socket.getInputStream());
+                    if (admission != null) {
+                        inputStream = new DeadlineInputStream(socket, inputStream, SOCKET_READ_TIMEOUT);
+                    }
+                }
+                HTTPSession session = new HTTPSession(tempFileManager, inputStream,
+                        new ChannelOutputStream(channel), channel.socket().getInetAddress());
+                session.setAllowDeferred(true);
+                session.execute();
+                if (session.getDeferred() != null) {
+                    park(connection, session);
+                    return;
+                }
+            } catch (Exception e) {
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            }
+            finish(connection);
+        }
+
+        /**
+         * Leave a connection without a thread until its response completes, then send it from a worker.
+         */
+        private void park(final ChannelConnection connection, final HTTPSession session) {
+            session.getDeferred().onComplete(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        asyncRunner.exec(new Runnable() {
+                            @Override
+                            public void run() {
+                                session.sendDeferred();
+                                finish(connection);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        close(connection);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Give the connection back to the selector for the next request, or close it if the response closed it.
+         */
+        private void finish(ChannelConnection connection) {
+            SocketChannel channel = connection.channel;
+            if (channel.isOpen()) {
+                try {
+                    channel.configureBlocking(false);
+                    connection.lastActive = System.currentTimeMillis();
+                    returning.add(connection);
+                    selector.wakeup();
+                    return;
+                } catch (IOException e) {
+                    // Close it
+                }
+            }
+            close(connection);
+        }
+
+        /**
+         * Send a response from the selector thread and close the connection.
+         */
+        private void reply(ChannelConnection connection, Response response) {
+            try {
+                connection.channel.configureBlocking(true);
+                response.send(new ChannelOutputStream(connection.channel));
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            close(connection);
+        }
+
+        /**
+         * Close the connections that have been idle too long, or are too slow sending a request.
+         */
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof ChannelConnection) {
+                    ChannelConnection connection = (ChannelConnection) key.attachment();
+                    if (now - connection.lastActive > SELECTOR_IDLE_TIMEOUT) {
+                        key.cancel();
+                        close(connection);
+                    } else if (admission != null && connection.requestStart != 0) {
+                        long allowed = admission.getHeaderTimeout();
+                        if (connection.headerEnd() > 0) {
+                            allowed += admission.getBodyTimeout();
+                        }
+                        if (now - connection.requestStart > allowed) {
+                            admission.timedOut();
+                            key.cancel();
+                            close(connection);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void close(ChannelConnection connection) {
+            safeClose(connection.channel);
+            unRegisterConnection(connection.channel.socket());
+        }
+    }
+
+    /**
+     * Writes to a blocking channel, and lets a response write buffers and files to the channel itself.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final WritableByteChannel channel;
+
+        ChannelOutputStream(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        WritableByteChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A connection waiting on the selector, and the bytes read from it so far.
+     */
+    private static class ChannelConnection {
+        private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(ISO_8859_1);
+
+        private final SocketChannel channel;
+        private final long maxBodySize;
+        private ByteBuffer buffer = ByteBuffer.allocate(HTTPSession.BUFSIZE);
+        private volatile long lastActive = System.currentTimeMillis();
+        /**
+         * When the first byte of the request being read arrived, 0 if there isn't one.
+         */
+        private long requestStart = 0;
+        /**
+         * The end of the request header and its Content-Length, found once per request, 0 until then.
+         */
+        private int headerEnd = 0;
+        private long bodyLength = 0;
+
+        ChannelConnection(SocketChannel channel, long maxBodySize) {
+            this.channel = channel;
+            this.maxBodySize = maxBodySize;
+        }
+
+        /**
+         * Read everything that's available.
+         *
+         * @return The number of bytes read, or -1 if the client has closed the connection.
+         */
+        int read() throws IOException {
+            int total = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    if (headerEnd() == 0 || isStreamed() || isTooLarge()) {
+                        // Too large a header or body to hold, dispatch deals with it
+                        break;
+                    }
+                    // Only bodies up to MEMORY_BODY_LIMIT are held, so this is bounded
+                    ByteBuffer larger = ByteBuffer.allocate((int) Math.min(buffer.capacity() * 2, headerEnd + bodyLength));
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    return -1;
+                }
+                if (read == 0) {
+                    break;
+                }
+                total += read;
+            }
+            lastActive = System.currentTimeMillis();
+            if (requestStart == 0 && buffer.position() > 0) {
+                requestStart = lastActive;
+            }
+            return total;
+        }
+
+        /**
+         * @return True if a complete request has been read, the header is too large, or the body is too large to
+         *         hold.
+         */
+        boolean isReady() {
+            return isStreamed() || isTooLarge() || requestLength() != 0;
+        }
+
+        /**
+         * @return True if the body is larger than the server accepts.
+         */
+        boolean isTooLarge() {
+            return headerEnd() > 0 && bodyLength > maxBodySize;
+        }
+
+        /**
+         * @return True if the body is too large to hold in memory, so only its start is taken with the header.
+         */
+        boolean isStreamed() {
+            return headerEnd() > 0 && bodyLength > HTTPSession.MEMORY_BODY_LIMIT && bodyLength <= maxBodySize;
+        }
+
+        /**
+         * Remove the first request from the buffer, anything after it is kept for the next one.
+         *
+         * @return The request, or null if the header doesn't fit in BUFSIZE bytes.
+         */
+        byte[] takeRequest() {
+            int length = isStreamed() ? buffer.position() : requestLength();
+            if (length < 0) {
+                return null;
+            }
+            byte[] request = new byte[length];
+            buffer.flip();
+            buffer.get(request);
+            buffer.compact();
+            headerEnd = 0;
+            bodyLength = 0;
+            // A pipelined request starts its deadline now
+            requestStart = buffer.position() > 0 ? System.currentTimeMillis() : 0;
+            return request;
+        }
 
-    private static final void safeClose(Closeable closeable) {
-        if (closeable != null) {
-            try {
-                closeable.close();
-            } catch (IOException e) {
+        /**
+         * @return The length of the first request, 0 if it hasn't all arrived, -1 if the header is too large.
+         */
+        private int requestLength() {
+            int end = headerEnd();
+            if (end == 0) {
+                return buffer.position() >= HTTPSession.BUFSIZE ? -1 : 0;
             }
+            long length = end + bodyLength;
+            return buffer.position() >= length ? (int) length : 0;
         }
-    }
 
-    /**
-     * Start the server.
-     *
-     * @throws IOException if the socket is in use.
-     */
-    public void start() throws IOException {
-        myServerSocket = new ServerSocket();
-        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        /**
+         * @return The end of the first request's header, 0 if it hasn't all arrived.
+         */
+        private int headerEnd() {
+            if (headerEnd > 0) {
+                return headerEnd;
+            }
+            byte[] buf = buffer.array();
+            int rlen = Math.min(buffer.position(), HTTPSession.BUFSIZE);
+            for (int i = 0; i + 3 < rlen; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    headerEnd = i + 4;
+                    bodyLength = contentLength(headerEnd);
+                    return headerEnd;
+                }
+            }
+            return 0;
+        }
 
-        myThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                do {
-                    try {
-                        final Socket finalAccept = myServerSocket.accept();
-                        registerConnection(finalAccept);
-                        finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        final InputStream inputStream = finalAccept.getInputStream();
-                        if (inputStream == null) {
-                            safeClose(finalAccept);
-                            unRegisterConnection(finalAccept);
-                        } else {
-                            asyncRunner.exec(new Runnable() {
-                                @Override
-                                public void run() {
-                                    OutputStream outputStream = null;
-                                    try {
-                                        outputStream = finalAccept.getOutputStream();
-                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                        while (!finalAccept.isClosed()) {
-                                            session.execute();
-                                        }
-                                    } catch (Exception e) {
-                                        // When the socket is closed by the client, we throw our own SocketException
-                                        // to break the  "keep alive" loop above.
-                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                            e.printStackTrace();
-                                        }
-                                    } finally {
-                                        safeClose(outputStream);
-                                        safeClose(inputStream);
-                                        safeClose(finalAccept);
-                                        unRegisterConnection(finalAccept);
-                                    }
-                                }
-                            });
+        /**
+         * Find the Content-Length in the header bytes, 0 if there isn't a valid one.
+         */
+        private long contentLength(int end) {
+            byte[] buf = buffer.array();
+            int lineStart = 0;
+            while (lineStart < end) {
+                int lineEnd = lineEnd(buf, lineStart, end);
+                if (lineEnd - lineStart > CONTENT_LENGTH.length && startsWithIgnoreCase(buf, lineStart, CONTENT_LENGTH)) {
+                    long length = 0;
+                    boolean digits = false;
+                    for (int i = lineStart + CONTENT_LENGTH.length; i < lineEnd; i++) {
+                        byte b = buf[i];
+                        if (b >= '0' && b <= '9') {
+                            length = length * 10 + (b - '0');
+                            digits = true;
+                            if (length > Integer.MAX_VALUE) {
+                                // Past any limit, and mustn't overflow
+                                return length;
+                            }
+                        } else if (b != ' ' && b != '\t') {
+                            return 0;
                         }
-                    } catch (IOException e) {
                     }
-                } while (!myServerSocket.isClosed());
+                    return digits ? length : 0;
+                }
+                lineStart = nextLine(buf, lineEnd, end);
             }
-        });
-        myThread.setDaemon(true);
-        myThread.setName("NanoHttpd Main Listener");
-        myThread.start();
-    }
+            return 0;
+        }
 
-    /**
-     * Stop the server.
-     */
-    public void stop() {
-        try {
-            safeClose(myServerSocket);
-            closeAllConnections();
-            myThread.join();
-        } catch (Exception e) {
-            e.printStackTrace();
+        private static boolean startsWithIgnoreCase(byte[] buf, int offset, byte[] lower) {
+            for (int i = 0; i < lower.length; i++) {
+                byte b = buf[offset + i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != lower[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -246,7 +1173,25 @@ public abstract class NanoHTTPD {
      *            the {@link Socket} for the connection.
      */
     public synchronized void unRegisterConnection(Socket socket) {
-        openConnections.remove(socket);
+        if (openConnections.remove(socket) && admission != null) {
+            admission.release(socket.getInetAddress());
+        }
+    }
+
+    /**
+     * Registers that a new connection has been set up on the Unix domain socket.
+     */
+    private synchronized void registerConnection(SocketChannel channel) {
+        openUnixConnections.add(channel);
+    }
+
+    /**
+     * Registers that a connection on the Unix domain socket has been closed.
+     */
+    private synchronized void unRegisterConnection(SocketChannel channel) {
+        if (openUnixConnections.remove(channel) && admission != null) {
+            admission.release(null);
+        }
     }
 
     /**
@@ -256,6 +1201,9 @@ public abstract class NanoHTTPD {
         for (Socket socket : openConnections) {
             safeClose(socket);
         }
+        for (SocketChannel channel : openUnixConnections) {
+            safeClose(channel);
+        }
     }
 
     public final int getListeningPort() {
@@ -385,96 +1333,620 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
-    // ------------------------------------------------------------------------------- //
-    //
-    // Temp file handling strategy.
-    //
-    // ------------------------------------------------------------------------------- //
-
     /**
-     * Pluggable strategy for creating and cleaning up temporary files.
-     *
-     * @param tempFileManagerFactory new strategy for handling temp files.
+     * @return The current strategy for handling threads.
+     */
+    public AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
+    // ------------------------------------------------------------------------------- //
+    //
+    // Temp file handling strategy.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Pluggable strategy for creating and cleaning up temporary files.
+     *
+     * @param tempFileManagerFactory new strategy for handling temp files.
+     */
+    public void setTempFileManagerFactory(TempFileManagerFactory tempFileManagerFactory) {
+        this.tempFileManagerFactory = tempFileManagerFactory;
+    }
+
+    /**
+     * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
+     */
+    public enum Method {
+        GET, PUT, POST, DELETE, HEAD, OPTIONS;
+
+        private static final Method[] VALUES = values();
+
+        static Method lookup(String method) {
+            for (Method m : VALUES) {
+                if (m.toString().equalsIgnoreCase(method)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Look up a method straight from the request bytes.
+         */
+        static Method lookup(byte[] buf, int start, int end) {
+            for (Method m : VALUES) {
+                if (equalsIgnoreCase(buf, start, end, m.name())) {
+                    return m;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Pluggable strategy for asynchronously executing requests.
+     */
+    public interface AsyncRunner {
+        void exec(Runnable code);
+    }
+
+    /**
+     * An AsyncRunner that reports how busy it is.
+     * <p/>
+     * <p>exec() may throw a RejectedExecutionException when the runner is full, the
+     * connection is then answered with a 503 and closed.</p>
+     */
+    public interface MonitoredAsyncRunner extends AsyncRunner {
+        /**
+         * @return The number of connections being handled.
+         */
+        int getActiveCount();
+
+        /**
+         * @return The number of connections waiting for a thread.
+         */
+        int getQueuedCount();
+
+        /**
+         * @return The number of connections turned away.
+         */
+        long getRejectedCount();
+    }
+
+    /**
+     * Factory to create temp file managers.
+     */
+    public interface TempFileManagerFactory {
+        TempFileManager create();
+    }
+
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Temp file manager.
+     * <p/>
+     * <p>Temp file managers are created 1-to-1 with incoming requests, to create and cleanup
+     * temporary files created as a result of handling the request.</p>
+     */
+    public interface TempFileManager {
+        TempFile createTempFile() throws Exception;
+
+        void clear();
+    }
+
+    /**
+     * A temp file.
+     * <p/>
+     * <p>Temp files are responsible for managing the actual temporary storage and cleaning
+     * themselves up when no longer needed.</p>
+     */
+    public interface TempFile {
+        OutputStream open() throws Exception;
+
+        void delete() throws Exception;
+
+        String getName();
+    }
+
+    /**
+     * Default threading strategy for NanoHttpd.
+     * <p/>
+     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
+     * to <i>daemon</i> status, and named according to the request number.  The name is
+     * useful when profiling the application.</p>
+     */
+    public static class DefaultAsyncRunner implements MonitoredAsyncRunner {
+        private long requestCount;
+        private final AtomicInteger active = new AtomicInteger();
+
+        @Override
+        public void exec(Runnable code) {
+            ++requestCount;
+            Thread t = new Thread(countActive(code, active));
+            t.setDaemon(true);
+            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
+            t.start();
+        }
+
+        @Override
+        public int getActiveCount() {
+            return active.get();
+        }
+
+        @Override
+        public int getQueuedCount() {
+            return 0;
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return 0;
+        }
+    }
+
+    /**
+     * Threading strategy with a fixed number of worker threads.
+     * <p/>
+     * <p>Connections wait in a bounded queue when all the workers are busy, and are
+     * rejected once the queue is full, so a burst of clients can't create an unbounded
+     * number of threads.</p>
+     */
+    public static class BoundedAsyncRunner implements MonitoredAsyncRunner {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+
+        public BoundedAsyncRunner(int threads, int queueSize) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        private final AtomicLong count = new AtomicLong();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd Pool Worker (#" + count.incrementAndGet() + ")");
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            try {
+                executor.execute(code);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public int getQueuedCount() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+    }
+
+    /**
+     * Threading strategy that runs each connection on a virtual thread.
+     * <p/>
+     * <p>Virtual threads need Java 21, they're looked up reflectively so the server still
+     * builds for older targets. The constructor throws UnsupportedOperationException when
+     * they aren't available.</p>
+     */
+    public static class VirtualThreadAsyncRunner implements MonitoredAsyncRunner {
+        private final ExecutorService executor;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+
+        public VirtualThreadAsyncRunner() {
+            try {
+                executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+            }
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            try {
+                executor.execute(countActive(code, active));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getActiveCount() {
+            return active.get();
+        }
+
+        @Override
+        public int getQueuedCount() {
+            return 0;
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+    }
+
+    /**
+     * Wrap a task so the counter holds the number of tasks running.
      */
-    public void setTempFileManagerFactory(TempFileManagerFactory tempFileManagerFactory) {
-        this.tempFileManagerFactory = tempFileManagerFactory;
+    private static Runnable countActive(final Runnable code, final AtomicInteger active) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                active.incrementAndGet();
+                try {
+                    code.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        };
     }
 
     /**
-     * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
+     * Limits on the connections and requests the server takes on.
+     * <p/>
+     * <p>A connection is refused with a 503 when the server already has the maximum number
+     * open, or a 429 when its client already has its share. Once the first byte of a request
+     * arrives the header has to follow within the header deadline and the body within the
+     * body deadline, so a slow or stuck client can't hold a thread. Only a few requests that
+     * aren't on a priority path are served at once, requests for a priority path skip that
+     * limit, and on the selector front end run on their own threads, so they're never queued
+     * behind bulk traffic.</p>
      */
-    public enum Method {
-        GET, PUT, POST, DELETE, HEAD, OPTIONS;
+    public static class AdmissionControl {
+        public static final int DEFAULT_MAX_CONNECTIONS = 64;
+        public static final int DEFAULT_MAX_PER_CLIENT = 16;
+        public static final int DEFAULT_HEADER_TIMEOUT = 10000;
+        public static final int DEFAULT_BODY_TIMEOUT = 30000;
+
+        private final int maxConnections;
+        private final int maxPerClient;
+        private final int headerTimeout;
+        private final int bodyTimeout;
+        private final Set<String> priorityPaths = new HashSet<String>();
+        /**
+         * Permits for the requests that aren't on a priority path being served.
+         */
+        private final Semaphore bulk;
+        private final BoundedAsyncRunner priorityRunner = new BoundedAsyncRunner(2, 16);
 
-        static Method lookup(String method) {
-            for (Method m : Method.values()) {
-                if (m.toString().equalsIgnoreCase(method)) {
-                    return m;
+        private final AtomicInteger open = new AtomicInteger();
+        private final Map<InetAddress, AtomicInteger> perClient = new HashMap<InetAddress, AtomicInteger>();
+        private final AtomicLong refused = new AtomicLong();
+        private final AtomicLong refusedClient = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private final AtomicLong bulkWaits = new AtomicLong();
+
+        public AdmissionControl() {
+            this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PER_CLIENT, DEFAULT_HEADER_TIMEOUT, DEFAULT_BODY_TIMEOUT);
+        }
+
+        /**
+         * @param maxConnections The most connections open at once.
+         * @param maxPerClient The most connections open at once from one address.
+         * @param headerTimeout The time allowed to send a request header, in milliseconds.
+         * @param bodyTimeout The time allowed to send a request body, in milliseconds.
+         */
+        public AdmissionControl(int maxConnections, int maxPerClient, int headerTimeout, int bodyTimeout) {
+            if (maxConnections < 1 || maxPerClient < 1 || headerTimeout < 1 || bodyTimeout < 1) {
+                throw new IllegalArgumentException("Limits must be positive");
+            }
+            this.maxConnections = maxConnections;
+            this.maxPerClient = maxPerClient;
+            this.headerTimeout = headerTimeout;
+            this.bodyTimeout = bodyTimeout;
+            this.bulk = new Semaphore(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        }
+
+        /**
+         * Serve requests for these paths ahead of everything else, set before the server starts.
+         *
+         * @param paths The paths, matched ignoring case.
+         */
+        public void addPriorityPaths(String... paths) {
+            for (String path : paths) {
+                priorityPaths.add(path.toLowerCase(Locale.ENGLISH));
+            }
+        }
+
+        /**
+         * @param uri The path of a request.
+         * @return True if it's a priority path.
+         */
+        public boolean isPriority(String uri) {
+            return uri != null && priorityPaths.contains(uri.toLowerCase(Locale.ENGLISH));
+        }
+
+        /**
+         * Take a place for a new connection, release() gives it back.
+         *
+         * @param address The client address, null for a local socket where only the total counts.
+         * @return Null if the connection is admitted, otherwise the status to refuse it with.
+         */
+        Response.Status admit(InetAddress address) {
+            if (open.incrementAndGet() > maxConnections) {
+                open.decrementAndGet();
+                refused.incrementAndGet();
+                return Response.Status.SERVICE_UNAVAILABLE;
+            }
+            if (address == null) {
+                return null;
+            }
+            synchronized (perClient) {
+                AtomicInteger count = perClient.get(address);
+                if (count == null) {
+                    count = new AtomicInteger();
+                    perClient.put(address, count);
+                }
+                if (count.get() >= maxPerClient) {
+                    open.decrementAndGet();
+                    refusedClient.incrementAndGet();
+                    return Response.Status.TOO_MANY_REQUESTS;
                 }
+                count.incrementAndGet();
             }
             return null;
         }
-    }
 
-    /**
-     * Pluggable strategy for asynchronously executing requests.
-     */
-    public interface AsyncRunner {
-        void exec(Runnable code);
-    }
+        /**
+         * Give back the place of a closed connection.
+         *
+         * @param address The client address, null for a local socket.
+         */
+        void release(InetAddress address) {
+            open.decrementAndGet();
+            if (address == null) {
+                return;
+            }
+            synchronized (perClient) {
+                AtomicInteger count = perClient.get(address);
+                if (count != null && count.decrementAndGet() <= 0) {
+                    perClient.remove(address);
+                }
+            }
+        }
 
-    /**
-     * Factory to create temp file managers.
-     */
-    public interface TempFileManagerFactory {
-        TempFileManager create();
-    }
+        /**
+         * Wait for a place to serve a request that isn't on a priority path.
+         *
+         * @return False if there wasn't one within the body deadline.
+         */
+        boolean enterBulk() throws InterruptedException {
+            if (bulk.tryAcquire()) {
+                return true;
+            }
+            bulkWaits.incrementAndGet();
+            return bulk.tryAcquire(bodyTimeout, TimeUnit.MILLISECONDS);
+        }
 
-    // ------------------------------------------------------------------------------- //
+        void leaveBulk() {
+            bulk.release();
+        }
 
-    /**
-     * Temp file manager.
-     * <p/>
-     * <p>Temp file managers are created 1-to-1 with incoming requests, to create and cleanup
-     * temporary files created as a result of handling the request.</p>
-     */
-    public interface TempFileManager {
-        TempFile createTempFile() throws Exception;
+        void timedOut() {
+            timedOut.incrementAndGet();
+        }
 
-        void clear();
+        int getHeaderTimeout() {
+            return headerTimeout;
+        }
+
+        int getBodyTimeout() {
+            return bodyTimeout;
+        }
+
+        BoundedAsyncRunner getPriorityRunner() {
+            return priorityRunner;
+        }
+
+        /**
+         * @return The number of connections open.
+         */
+        public int getOpenCount() {
+            return open.get();
+        }
+
+        /**
+         * @return The number of connections refused because the server was full.
+         */
+        public long getRefusedCount() {
+            return refused.get();
+        }
+
+        /**
+         * @return The number of connections refused because their client had too many open.
+         */
+        public long getRefusedClientCount() {
+            return refusedClient.get();
+        }
+
+        /**
+         * @return The number of requests dropped for missing a read deadline.
+         */
+        public long getTimedOutCount() {
+            return timedOut.get();
+        }
+
+        /**
+         * @return The number of requests that waited for another request to finish.
+         */
+        public long getBulkWaitCount() {
+            return bulkWaits.get();
+        }
     }
 
     /**
-     * A temp file.
+     * Reads from a socket, failing once a deadline has passed however slowly the bytes arrive.
      * <p/>
-     * <p>Temp files are responsible for managing the actual temporary storage and cleaning
-     * themselves up when no longer needed.</p>
+     * <p>The socket timeout only limits each read, a client sending a byte every few seconds
+     * would never hit it. With no deadline set, reads wait for the idle timeout.</p>
      */
-    public interface TempFile {
-        OutputStream open() throws Exception;
+    private static class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        private final UnixInputStream unix;
+        private final int idleTimeout;
+        private int socketTimeout;
+        private long deadline = 0;
+        private boolean expired = false;
+
+        DeadlineInputStream(Socket socket, InputStream in, int idleTimeout) {
+            super(in);
+            this.socket = socket;
+            this.unix = null;
+            this.idleTimeout = idleTimeout;
+            this.socketTimeout = idleTimeout;
+        }
+
+        DeadlineInputStream(UnixInputStream in, int idleTimeout) {
+            super(in);
+            this.socket = null;
+            this.unix = in;
+            this.idleTimeout = idleTimeout;
+            this.socketTimeout = idleTimeout;
+        }
 
-        void delete() throws Exception;
+        /**
+         * @param millis The time from now the reads have to finish by, 0 for no deadline.
+         */
+        void setDeadline(int millis) {
+            deadline = millis == 0 ? 0 : System.currentTimeMillis() + millis;
+            expired = false;
+        }
 
-        String getName();
+        /**
+         * @return True if a read failed because the deadline passed.
+         */
+        boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int timeout = idleTimeout;
+            if (deadline != 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    expired = true;
+                    throw new SocketTimeoutException("Read deadline passed");
+                }
+                timeout = (int) Math.min(remaining, idleTimeout);
+            }
+            if (timeout != socketTimeout) {
+                if (socket != null) {
+                    socket.setSoTimeout(timeout);
+                } else {
+                    unix.setTimeout(timeout);
+                }
+                socketTimeout = timeout;
+            }
+            try {
+                return super.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                expired = deadline != 0 && System.currentTimeMillis() >= deadline;
+                throw e;
+            }
+        }
     }
 
     /**
-     * Default threading strategy for NanoHttpd.
+     * Reads from a Unix domain socket with a timeout on each read.
      * <p/>
-     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
-     * to <i>daemon</i> status, and named according to the request number.  The name is
-     * useful when profiling the application.</p>
+     * <p>These channels have no socket to set a timeout on, so a read that runs too long has the
+     * input shut down under it. That ends the read, and it's reported as a SocketTimeoutException,
+     * the same as a TCP read timing out. The output is left open for an error response.</p>
      */
-    public static class DefaultAsyncRunner implements AsyncRunner {
-        private long requestCount;
+    private static class UnixInputStream extends InputStream {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final ScheduledThreadPoolExecutor timeouts;
+        private volatile int timeout;
+        private volatile boolean timedOut = false;
+        private final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                timedOut = true;
+                try {
+                    channel.shutdownInput();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+
+        UnixInputStream(SocketChannel channel, ScheduledThreadPoolExecutor timeouts, int timeout) {
+            this.channel = channel;
+            this.in = Channels.newInputStream(channel);
+            this.timeouts = timeouts;
+            this.timeout = timeout;
+        }
+
+        /**
+         * @param millis The longest each read may wait, 0 for no limit.
+         */
+        void setTimeout(int millis) {
+            this.timeout = millis;
+        }
 
         @Override
-        public void exec(Runnable code) {
-            ++requestCount;
-            Thread t = new Thread(code);
-            t.setDaemon(true);
-            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
-            t.start();
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (timedOut) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            ScheduledFuture<?> watchdog = timeout == 0 ? null
+                    : timeouts.schedule(expire, timeout, TimeUnit.MILLISECONDS);
+            try {
+                int read = in.read(b, off, len);
+                if (timedOut) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return read;
+            } catch (IOException e) {
+                if (timedOut && !(e instanceof SocketTimeoutException)) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                throw e;
+            } finally {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
         }
     }
 
@@ -575,6 +2047,36 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Counts the body bytes sent, may be null.
+         */
+        private AtomicLong sentCounter;
+
+        /**
+         * The status lines, by Status ordinal.
+         */
+        private static final byte[][] STATUS_LINES;
+        private static final byte[] CRLF = "\r\n".getBytes(ISO_8859_1);
+        private static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(ISO_8859_1);
+        private static final byte[] CHUNKED = "Transfer-Encoding: chunked\r\n\r\n".getBytes(ISO_8859_1);
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ISO_8859_1);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(ISO_8859_1);
+        /**
+         * Where a chunk is read to, after room for its size in hex and a CRLF.
+         */
+        private static final int CHUNK_START = 10;
+        private static final Map<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<String, byte[]>();
+        private static final SimpleDateFormat GMT_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        private static volatile DateLine currentDate;
+
+        static {
+            Status[] statuses = Status.values();
+            STATUS_LINES = new byte[statuses.length][];
+            for (Status status : statuses) {
+                STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status.getDescription() + " \r\n").getBytes(ISO_8859_1);
+            }
+            GMT_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+        }
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -623,84 +2125,250 @@ public abstract class NanoHTTPD {
 
         /**
          * Sends given response to the socket.
+         *
+         * The status line and headers are put in a pooled buffer from bytes encoded once, and the start of the body
+         * follows them, so a small response goes out in a single write.
          */
         private void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
+            HeaderBlock block = new HeaderBlock();
             try {
                 if (status == null) {
                     throw new Error("sendResponse(): Status can't be null.");
                 }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
+                block.put(STATUS_LINES[status.ordinal()]);
 
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
+                if (mimeType != null) {
+                    block.put(contentTypeLine(mimeType));
                 }
 
                 if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                    block.put(dateLine());
                 }
 
                 if (header != null) {
-                    for (String key : header.keySet()) {
-                        String value = header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
+                    for (Map.Entry<String, String> e : header.entrySet()) {
+                        block.putHeader(e.getKey(), e.getValue());
                     }
                 }
 
-                pw.print("Connection: keep-alive\r\n");
+                block.put(KEEP_ALIVE);
 
                 if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
+                    sendAsChunked(outputStream, block);
                 } else {
-                    sendAsFixedLength(outputStream, pw);
+                    sendAsFixedLength(outputStream, block);
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                block.release();
+                // Always close the data, streams need to know the client has gone
+                safeClose(data);
+            }
+        }
+
+        private void sendAsChunked(OutputStream outputStream, HeaderBlock block) throws IOException {
+            block.put(CHUNKED);
+            // The headers go now, a stream may have nothing to send for a while
+            outputStream.write(block.buf, 0, block.count);
+            outputStream.flush();
+
+            // Each chunk is read in between room for its size line and its CRLF, and written at once
+            byte[] buff = block.buf;
+            int read;
+            while ((read = data.read(buff, CHUNK_START, buff.length - CHUNK_START - 2)) > 0) {
+                int off = CHUNK_START - 2;
+                buff[off] = '\r';
+                buff[off + 1] = '\n';
+                int size = read;
+                do {
+                    buff[--off] = HEX[size & 0xf];
+                    size >>>= 4;
+                } while (size != 0);
+                buff[CHUNK_START + read] = '\r';
+                buff[CHUNK_START + read + 1] = '\n';
+                outputStream.write(buff, off, CHUNK_START + read + 2 - off);
+                if (sentCounter != null) {
+                    sentCounter.addAndGet(read);
+                }
+            }
+            outputStream.write(LAST_CHUNK);
+        }
+
+        private void sendAsFixedLength(OutputStream outputStream, HeaderBlock block) throws IOException {
+            long pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
+            String length = header.get("Content-Length");
+            if (length != null) {
+                // Already added with the other headers
+                pending = Long.parseLong(length.trim());
+            } else {
+                block.putHeader("Content-Length", Long.toString(pending));
+            }
+            block.put(CRLF);
+
+            if (requestMethod == Method.HEAD || data == null) {
+                outputStream.write(block.buf, 0, block.count);
+                return;
+            }
+            if (sentCounter != null) {
+                sentCounter.addAndGet(pending);
+            }
+            WritableByteChannel channel = null;
+            if (outputStream instanceof ChannelOutputStream) {
+                channel = ((ChannelOutputStream) outputStream).getChannel();
+            }
+            if (data instanceof ByteBufferInputStream) {
+                ByteBuffer buffer = ((ByteBufferInputStream) data).getBuffer();
+                if (buffer.remaining() > pending) {
+                    buffer.limit(buffer.position() + (int) pending);
+                }
+                if (channel instanceof GatheringByteChannel) {
+                    // The headers and the body in one write, direct buffers go to the socket without a copy
+                    ByteBuffer[] buffers = {ByteBuffer.wrap(block.buf, 0, block.count), buffer};
+                    while (buffers[0].hasRemaining() || buffer.hasRemaining()) {
+                        ((GatheringByteChannel) channel).write(buffers);
+                    }
+                    return;
+                }
+                if (buffer.hasArray() && buffer.remaining() > block.buf.length - block.count) {
+                    outputStream.write(block.buf, 0, block.count);
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    return;
+                }
+            }
+            if (channel != null && data instanceof FileInputStream) {
+                outputStream.write(block.buf, 0, block.count);
+                // Let the kernel copy the file to the socket
+                FileChannel file = ((FileInputStream) data).getChannel();
+                long position = file.position();
+                while (pending > 0) {
+                    long sent = file.transferTo(position, pending, channel);
+                    if (sent <= 0) {
+                        break;
+                    }
+                    position += sent;
+                    pending -= sent;
+                }
+                return;
+            }
+
+            // Fill the rest of the header buffer with the body, and carry on through it
+            byte[] buff = block.buf;
+            int off = block.count;
+            while (pending > 0) {
+                if (off == buff.length) {
+                    outputStream.write(buff, 0, off);
+                    off = 0;
+                }
+                int read = data.read(buff, off, (int) Math.min(pending, buff.length - off));
+                if (read <= 0) {
+                    break;
+                }
+                off += read;
+                pending -= read;
             }
+            outputStream.write(buff, 0, off);
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+        /**
+         * @return The Content-Type line for a MIME type, the common ones are only encoded once.
+         */
+        private static byte[] contentTypeLine(String mime) {
+            byte[] line = CONTENT_TYPE_LINES.get(mime);
+            if (line == null) {
+                line = ("Content-Type: " + mime + "\r\n").getBytes(UTF_8);
+                if (CONTENT_TYPE_LINES.size() < 64) {
+                    CONTENT_TYPE_LINES.put(mime, line);
+                }
+            }
+            return line;
+        }
+
+        /**
+         * @return The Date line for now, formatted at most once a second.
+         */
+        private static byte[] dateLine() {
+            long second = System.currentTimeMillis() / 1000;
+            DateLine date = currentDate;
+            if (date == null || date.second != second) {
+                String formatted;
+                synchronized (GMT_FORMAT) {
+                    formatted = GMT_FORMAT.format(new Date(second * 1000));
+                }
+                date = new DateLine(second, ("Date: " + formatted + "\r\n").getBytes(ISO_8859_1));
+                currentDate = date;
+            }
+            return date.line;
+        }
+
+        /**
+         * A formatted Date line and the second it's for.
+         */
+        private static final class DateLine {
+            final long second;
+            final byte[] line;
+
+            DateLine(long second, byte[] line) {
+                this.second = second;
+                this.line = line;
+            }
+        }
+
+        /**
+         * Gzip the body if it's text held in memory and the client accepts gzip.
+         *
+         * @param acceptEncoding The Accept-Encoding request header, may be null.
+         * @param threshold The smallest body to compress in bytes.
+         */
+        private void gzip(String acceptEncoding, int threshold) {
+            if (chunkedTransfer || !(data instanceof ByteArrayInputStream) || header.containsKey("Content-Encoding")
+                    || !isCompressible(mimeType)) {
+                return;
+            }
+
+            try {
+                if (data.available() < threshold) {
+                    return;
+                }
+                // The body depends on Accept-Encoding from here on
+                addHeader("Vary", "Accept-Encoding");
+                if (!acceptsGzip(acceptEncoding)) {
+                    return;
+                }
+
+                byte[] body = new byte[data.available()];
+                int length = Math.max(data.read(body, 0, body.length), 0);
+                byte[] compressed = NanoHTTPD.gzip(body, 0, length);
+                if (compressed.length >= length) {
+                    data = new ByteArrayInputStream(body, 0, length);
+                    return;
+                }
+                data = new ByteArrayInputStream(compressed);
+                addHeader("Content-Encoding", "gzip");
+
+                // The compressed body is equivalent to the original, but not byte for byte
+                String etag = header.get("ETag");
+                if (etag != null && !etag.startsWith("W/")) {
+                    addHeader("ETag", "W/" + etag);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, PrintWriter pw) throws IOException {
-            int pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
-            pw.print("Content-Length: "+pending+"\r\n");
-
-            pw.print("\r\n");
-            pw.flush();
-
-            if (requestMethod != Method.HEAD && data != null) {
-                int BUFFER_SIZE = 16 * 1024;
-                byte[] buff = new byte[BUFFER_SIZE];
-                while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-                    if (read <= 0) {
-                        break;
-                    }
-                    outputStream.write(buff, 0, read);
-
-                    pending -= read;
-                }
+        /**
+         * @param mimeType A MIME type, may be null.
+         * @return True if the type is text that's worth compressing.
+         */
+        public static boolean isCompressible(String mimeType) {
+            if (mimeType == null) {
+                return false;
             }
+            String type = mimeType.toLowerCase(Locale.US);
+            return type.startsWith("text/") || type.startsWith("application/json")
+                    || type.startsWith("application/javascript") || type.startsWith("application/xml")
+                    || type.startsWith("image/svg+xml");
         }
 
         public Status getStatus() {
@@ -735,6 +2403,13 @@ public abstract class NanoHTTPD {
             this.requestMethod = requestMethod;
         }
 
+        /**
+         * @param sentCounter Add the number of body bytes to this as they're sent.
+         */
+        public void setSentCounter(AtomicLong sentCounter) {
+            this.sentCounter = sentCounter;
+        }
+
         public void setChunkedTransfer(boolean chunkedTransfer) {
             this.chunkedTransfer = chunkedTransfer;
         }
@@ -745,8 +2420,9 @@ public abstract class NanoHTTPD {
         public enum Status {
             OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), REQUEST_TIMEOUT(408, "Request Timeout"),
+                PAYLOAD_TOO_LARGE(413, "Request Entity Too Large"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), TOO_MANY_REQUESTS(429, "Too Many Requests"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503,
+                "Service Unavailable");
             private final int requestStatus;
             private final String description;
 
@@ -765,6 +2441,344 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Header names that are sent with nearly every request, matched so they're never decoded.
+     */
+    private static final String[] COMMON_HEADERS = {"host", "connection", "accept", "accept-encoding",
+            "accept-language", "user-agent", "referer", "cookie", "content-length", "content-type",
+            "cache-control", "pragma", "origin", "if-none-match", "if-modified-since", "range",
+            "last-event-id", "x-requested-with", "upgrade-insecure-requests", "dnt"};
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final BufferPool REQUEST_BUFFERS = new BufferPool(HTTPSession.BUFSIZE, 64);
+    private static final BufferPool RESPONSE_BUFFERS = new BufferPool(16 * 1024, 64);
+
+    /**
+     * @return The index of the CR or LF ending the line that starts at start, or end.
+     */
+    private static int lineEnd(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '\r' || buf[i] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return The start of the line after the line ending at lineEnd.
+     */
+    private static int nextLine(byte[] buf, int lineEnd, int end) {
+        int i = lineEnd;
+        if (i < end && buf[i] == '\r') {
+            i++;
+        }
+        if (i < end && buf[i] == '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipSpaces(byte[] buf, int start, int end) {
+        int i = start;
+        while (i < end && (buf[i] == ' ' || buf[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(byte[] buf, int start, int end) {
+        int i = start;
+        while (i < end && buf[i] != ' ' && buf[i] != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        int i = end;
+        while (i > start && (buf[i - 1] == ' ' || buf[i - 1] == '\t')) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * @return The path of a raw request, without the query string.
+     */
+    private static String requestPath(byte[] request) {
+        int lineEnd = lineEnd(request, 0, request.length);
+        int start = skipSpaces(request, tokenEnd(request, skipSpaces(request, 0, lineEnd), lineEnd), lineEnd);
+        int end = tokenEnd(request, start, lineEnd);
+        int query = indexOf(request, start, end, '?');
+        return new String(request, start, (query < 0 ? end : query) - start, ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buf, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int b = buf[i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            int c = s.charAt(i - start);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (b != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The bytes as a string, ASCII unless there are UTF-8 bytes in it.
+     */
+    private static String decode(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] < 0) {
+                return new String(buf, start, end - start, UTF_8);
+            }
+        }
+        return new String(buf, start, end - start, ISO_8859_1);
+    }
+
+    /**
+     * @return The lower case header name, the shared string for a common one.
+     */
+    private static String headerName(byte[] buf, int start, int end) {
+        for (String name : COMMON_HEADERS) {
+            if (equalsIgnoreCase(buf, start, end, name)) {
+                return name;
+            }
+        }
+        return decode(buf, start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Keeps buffers for reuse, so a request doesn't allocate a new one to read its header into.
+     */
+    private static final class BufferPool {
+        private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final int size;
+        private final int max;
+
+        /**
+         * @param size The size of the buffers.
+         * @param max The most buffers to keep, any more given back are left to the GC.
+         */
+        BufferPool(int size, int max) {
+            this.size = size;
+            this.max = max;
+        }
+
+        byte[] take() {
+            byte[] buffer = buffers.poll();
+            if (buffer == null) {
+                return new byte[size];
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        /**
+         * Give a buffer back, it mustn't be used again.
+         */
+        void give(byte[] buffer) {
+            if (buffer.length != size) {
+                // Grown past the pooled size
+                return;
+            }
+            if (pooled.incrementAndGet() <= max) {
+                buffers.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A response's status line and headers, in a pooled buffer the start of the body can follow.
+     */
+    private static final class HeaderBlock {
+        private static final byte[] SEPARATOR = {':', ' '};
+
+        private byte[] buf = RESPONSE_BUFFERS.take();
+        private int count = 0;
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void put(String s) {
+            int length = s.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // Rare in a header, encode the rest properly
+                    put(s.substring(i).getBytes(UTF_8));
+                    return;
+                }
+                buf[count++] = (byte) c;
+            }
+        }
+
+        void putHeader(String name, String value) {
+            put(name);
+            put(SEPARATOR);
+            put(value);
+            put(Response.CRLF);
+        }
+
+        /**
+         * Give the buffer back, the block mustn't be used again.
+         */
+        void release() {
+            RESPONSE_BUFFERS.give(buf);
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer, so a response can send it in one write, or straight from a direct buffer.
+     */
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        /**
+         * @param buffer The bytes to read from its position to its limit, it isn't copied or changed.
+         */
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        /**
+         * @return The bytes not read yet, the stream is used up once this is written out.
+         */
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * A response that isn't ready yet, for requests that wait for something to happen.
+     * <p/>
+     * <p>serve() can return one of these and complete it later from any thread. With the
+     * selector front end the connection doesn't hold a thread while it waits, otherwise the
+     * request thread blocks until it completes.</p>
+     */
+    public static class DeferredResponse extends Response {
+        private Response result = null;
+        private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+        public DeferredResponse() {
+            super(Response.Status.OK, null, (InputStream) null);
+        }
+
+        /**
+         * Complete this response, only the first call has any effect.
+         *
+         * @param response The response to send.
+         * @return True if this call completed the response.
+         */
+        public boolean complete(Response response) {
+            List<Runnable> toRun;
+            synchronized (this) {
+                if (result != null) {
+                    return false;
+                }
+                result = response;
+                notifyAll();
+                toRun = new ArrayList<Runnable>(listeners);
+                listeners.clear();
+            }
+            for (Runnable listener : toRun) {
+                listener.run();
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the response has been completed.
+         */
+        public synchronized boolean isDone() {
+            return result != null;
+        }
+
+        /**
+         * @return The completed response, or null if it hasn't completed.
+         */
+        public synchronized Response getResult() {
+            return result;
+        }
+
+        /**
+         * Wait for the response to complete.
+         */
+        public synchronized Response await() throws InterruptedException {
+            while (result == null) {
+                wait();
+            }
+            return result;
+        }
+
+        /**
+         * Run a task when the response completes, straight away if it already has.
+         */
+        public void onComplete(Runnable listener) {
+            synchronized (this) {
+                if (result == null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+    }
+
     public static final class ResponseException extends Exception {
 
         private final Response.Status status;
@@ -826,6 +2840,10 @@ public abstract class NanoHTTPD {
 
     protected class HTTPSession implements IHTTPSession {
         public static final int BUFSIZE = 8192;
+        /**
+         * Request bodies up to this size are read into memory, larger ones go to a temp file.
+         */
+        public static final int MEMORY_BODY_LIMIT = 64 * 1024;
         private final TempFileManager tempFileManager;
         private final OutputStream outputStream;
         private InputStream inputStream;
@@ -837,22 +2855,30 @@ public abstract class NanoHTTPD {
         private Map<String, String> headers;
         private CookieHandler cookies;
         private String queryParameterString;
+        private boolean allowDeferred = false;
+        private DeferredResponse deferred = null;
+        private String remoteIp = null;
+        /**
+         * The socket stream when it enforces read deadlines, otherwise null.
+         */
+        private DeadlineInputStream deadlines = null;
+        /**
+         * Set when the request body is refused, the connection closes after the response.
+         */
+        private boolean discardConnection = false;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
             this.inputStream = inputStream;
             this.outputStream = outputStream;
+            if (inputStream instanceof DeadlineInputStream) {
+                this.deadlines = (DeadlineInputStream) inputStream;
+            }
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
-            this.tempFileManager = tempFileManager;
-            this.inputStream = inputStream;
-            this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
-
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+            this(tempFileManager, inputStream, outputStream);
+            this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         }
 
         @Override
@@ -862,73 +2888,128 @@ public abstract class NanoHTTPD {
                 // The full header should fit in here.
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
-                splitbyte = 0;
-                rlen = 0;
-                {
-                    int read = -1;
-                    try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
-                    } catch (Exception e) {
-                        safeClose(inputStream);
-                        safeClose(outputStream);
-                        throw new SocketException("NanoHttpd Shutdown");
-                    }
-                    if (read == -1) {
-                        // socket was been closed
-                        safeClose(inputStream);
-                        safeClose(outputStream);
-                        throw new SocketException("NanoHttpd Shutdown");
+                byte[] buf = REQUEST_BUFFERS.take();
+                try {
+                    splitbyte = 0;
+                    rlen = 0;
+                    {
+                        int read = -1;
+                        try {
+                            // Waiting for the next request only has the idle timeout
+                            if (deadlines != null) {
+                                deadlines.setDeadline(0);
+                            }
+                            read = inputStream.read(buf, 0, BUFSIZE);
+                        } catch (Exception e) {
+                            safeClose(inputStream);
+                            safeClose(outputStream);
+                            throw new SocketException("NanoHttpd Shutdown");
+                        }
+                        if (read == -1) {
+                            // socket was been closed
+                            safeClose(inputStream);
+                            safeClose(outputStream);
+                            throw new SocketException("NanoHttpd Shutdown");
+                        }
+                        if (deadlines != null) {
+                            deadlines.setDeadline(admission.getHeaderTimeout());
+                        }
+                        while (read > 0) {
+                            rlen += read;
+                            splitbyte = findHeaderEnd(buf, rlen);
+                            if (splitbyte > 0)
+                                break;
+                            read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                        }
                     }
-                    while (read > 0) {
-                        rlen += read;
-                        splitbyte = findHeaderEnd(buf, rlen);
-                        if (splitbyte > 0)
-                            break;
-                        read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+
+                    if (splitbyte < rlen) {
+                        // The buffer goes back to the pool, so keep what's after the header
+                        byte[] rest = Arrays.copyOfRange(buf, splitbyte, rlen);
+                        inputStream = new SequenceInputStream(new ByteArrayInputStream(rest), inputStream);
                     }
-                }
 
-                if (splitbyte < rlen) {
-                    ByteArrayInputStream splitInputStream = new ByteArrayInputStream(buf, splitbyte, rlen - splitbyte);
-                    SequenceInputStream sequenceInputStream = new SequenceInputStream(splitInputStream, inputStream);
-                    inputStream = sequenceInputStream;
-                }
+                    parms = new HashMap<String, String>();
+                    headers = new HashMap<String, String>(32);
+                    if (remoteIp != null) {
+                        headers.put("remote-addr", remoteIp);
+                        headers.put("http-client-ip", remoteIp);
+                    }
+                    method = null;
+                    uri = null;
+                    queryParameterString = null;
 
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+                    // Decode the header into parms and header java properties
+                    decodeHeader(buf, splitbyte > 0 ? splitbyte : rlen, parms, headers);
+                } finally {
+                    REQUEST_BUFFERS.give(buf);
                 }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
-
-                method = Method.lookup(pre.get("method"));
                 if (method == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
                 }
 
-                uri = pre.get("uri");
-
                 cookies = new CookieHandler(headers);
 
-                // Ok, now do the serve()
-                Response r = serve(this);
+                // Ok, now do the serve(), priority requests don't wait for the others
+                boolean bulk = admission != null && !admission.isPriority(uri);
+                if (bulk) {
+                    try {
+                        if (!admission.enterBulk()) {
+                            throw new ResponseException(Response.Status.SERVICE_UNAVAILABLE, "Server busy");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                }
+                Response r;
+                try {
+                    r = serve(this);
+                } finally {
+                    if (bulk) {
+                        admission.leaveBulk();
+                    }
+                }
+                if (deadlines != null && deadlines.isExpired()) {
+                    // The rest of a slow body can't be told apart from the next request
+                    admission.timedOut();
+                    new Response(Response.Status.REQUEST_TIMEOUT, MIME_PLAINTEXT, "Request body took too long").send(outputStream);
+                    safeClose(outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
+                if (discardConnection) {
+                    discardConnection = false;
+                    send(r);
+                    safeClose(outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                } else if (r instanceof DeferredResponse) {
+                    if (allowDeferred) {
+                        // The caller sends it when it completes
+                        deferred = (DeferredResponse) r;
+                        return;
+                    }
+                    try {
+                        send(((DeferredResponse) r).await());
+                    } catch (InterruptedException e) {
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
                 } else {
-                    cookies.unloadQueue(r);
-                    r.setRequestMethod(method);
-                    r.send(outputStream);
+                    send(r);
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
             } catch (SocketTimeoutException ste) {
+                if (deadlines != null && deadlines.isExpired()) {
+                    // Too slow sending the request, drop it
+                    admission.timedOut();
+                    safeClose(inputStream);
+                    safeClose(outputStream);
+                    throw new SocketException("NanoHttpd Shutdown");
+                }
                 throw ste;
             } catch (IOException ioe) {
                 Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
@@ -943,14 +3024,49 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Send a response to this request.
+         */
+        private void send(Response r) {
+            cookies.unloadQueue(r);
+            r.setRequestMethod(method);
+            if (gzipThreshold >= 0) {
+                r.gzip(headers.get("accept-encoding"), gzipThreshold);
+            }
+            r.send(outputStream);
+        }
+
+        /**
+         * Let execute() return a DeferredResponse without waiting for it.
+         */
+        void setAllowDeferred(boolean allowDeferred) {
+            this.allowDeferred = allowDeferred;
+        }
+
+        /**
+         * @return The DeferredResponse returned by serve(), null if the response has been sent.
+         */
+        DeferredResponse getDeferred() {
+            return deferred;
+        }
+
+        /**
+         * Send the response once a deferred response has completed.
+         */
+        void sendDeferred() {
+            send(deferred.getResult());
+            deferred = null;
+        }
+
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
             RandomAccessFile randomAccessFile = null;
             BufferedReader in = null;
+            byte[] pooled = null;
+            if (deadlines != null) {
+                deadlines.setDeadline(admission.getBodyTimeout());
+            }
             try {
-
-                randomAccessFile = getTmpBucket();
-
                 long size;
                 if (headers.containsKey("content-length")) {
                     size = Integer.parseInt(headers.get("content-length"));
@@ -959,23 +3075,54 @@ public abstract class NanoHTTPD {
                 } else {
                     size = 0;
                 }
+                size = Math.max(size, 0);
+                if (size > maxBodySize) {
+                    // The body won't be read, so the connection can't carry on
+                    discardConnection = true;
+                    throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "Request body too large");
+                }
 
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, 512);
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
+                ByteBuffer fbuf;
+                InputStream bin;
+                if (size <= MEMORY_BODY_LIMIT) {
+                    // Nearly every body is a few form fields, so keep it in memory
+                    byte[] body;
+                    if (size <= BUFSIZE) {
+                        body = pooled = REQUEST_BUFFERS.take();
+                    } else {
+                        body = new byte[(int) size];
+                    }
+                    int length = 0;
+                    int read = 0;
+                    while (length < size && read >= 0) {
+                        read = inputStream.read(body, length, (int) size - length);
+                        if (read > 0) {
+                            length += read;
+                        }
+                    }
+                    fbuf = ByteBuffer.wrap(body, 0, length);
+                    bin = new ByteArrayInputStream(body, 0, length);
+                } else {
+                    randomAccessFile = getTmpBucket();
+
+                    // Now read all the body and write it to f
+                    byte[] buf = pooled = REQUEST_BUFFERS.take();
+                    int read = 0;
+                    while (read >= 0 && size > 0) {
+                        read = inputStream.read(buf, 0, (int) Math.min(size, buf.length));
+                        if (read > 0) {
+                            size -= read;
+                            randomAccessFile.write(buf, 0, read);
+                        }
                     }
-                }
 
-                // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+                    // Get the raw body as a byte []
+                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                    randomAccessFile.seek(0);
+                    bin = new FileInputStream(randomAccessFile.getFD());
+                }
 
                 // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
                 in = new BufferedReader(new InputStreamReader(bin));
 
                 // If the method is POST, there may be parameters
@@ -1024,61 +3171,83 @@ public abstract class NanoHTTPD {
             } finally {
                 safeClose(randomAccessFile);
                 safeClose(in);
+                if (pooled != null) {
+                    REQUEST_BUFFERS.give(pooled);
+                }
             }
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Decodes the sent headers and loads the data into Key/value pairs.
+         * <p/>
+         * <p>The request line and headers are read straight from the bytes, strings are only
+         * made for the values that are kept, and common header names are never decoded.</p>
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
+        private void decodeHeader(byte[] buf, int length, Map<String, String> parms, Map<String, String> headers)
             throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
+            // Read the request line
+            int lineEnd = lineEnd(buf, 0, length);
+            int start = skipSpaces(buf, 0, lineEnd);
+            int end = tokenEnd(buf, start, lineEnd);
+            if (start == end) {
+                if (length == 0) {
                     return;
                 }
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
-
-                pre.put("method", st.nextToken());
+            Method requestMethod = Method.lookup(buf, start, end);
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+            start = skipSpaces(buf, end, lineEnd);
+            end = tokenEnd(buf, start, lineEnd);
+            if (start == end) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
 
-                String uri = st.nextToken();
+            // Decode parameters from the URI
+            int qmi = indexOf(buf, start, end, '?');
+            if (qmi >= 0) {
+                decodeParms(decode(buf, qmi + 1, end), parms);
+                uri = decodeUri(buf, start, qmi);
+            } else {
+                uri = decodeUri(buf, start, end);
+            }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
-
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
+            // If there's another token, it's protocol version,
+            // followed by HTTP headers. Ignore version but parse headers.
+            // NOTE: this now forces header names lowercase since they are
+            // case insensitive and vary by client.
+            if (skipSpaces(buf, end, lineEnd) < lineEnd) {
+                start = nextLine(buf, lineEnd, length);
+                while (start < length) {
+                    lineEnd = lineEnd(buf, start, length);
+                    if (skipSpaces(buf, start, lineEnd) == lineEnd) {
+                        break;
+                    }
+                    int p = indexOf(buf, start, lineEnd, ':');
+                    if (p >= 0) {
+                        int nameStart = skipSpaces(buf, start, p);
+                        int nameEnd = trimEnd(buf, nameStart, p);
+                        int valueStart = skipSpaces(buf, p + 1, lineEnd);
+                        int valueEnd = trimEnd(buf, valueStart, lineEnd);
+                        headers.put(headerName(buf, nameStart, nameEnd), decode(buf, valueStart, valueEnd));
                     }
+                    start = nextLine(buf, lineEnd, length);
                 }
+            }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+            method = requestMethod;
+        }
+
+        /**
+         * @return The path, only percent decoded if it needs to be.
+         */
+        private String decodeUri(byte[] buf, int start, int end) {
+            String path = decode(buf, start, end);
+            if (indexOf(buf, start, end, '%') >= 0 || indexOf(buf, start, end, '+') >= 0) {
+                return decodePercent(path);
             }
+            return path;
         }
 
         /**
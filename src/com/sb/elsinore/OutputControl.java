@@ -3,6 +3,7 @@ import com.sb.elsinore.devices.CompressorDevice;
 import com.sb.elsinore.devices.OutputDevice;
 
 import java.math.BigDecimal;
+import java.util.logging.Level;
 
 import jGPIO.InvalidGPIOException;
 
@@ -78,7 +79,6 @@ public final class OutputControl implements Runnable {
              while (true) {
 
                  try {
-                     BrewServer.LOG.info("Fduty: " + this.fDuty);
                      switch(fDuty.compareTo(BigDecimal.ZERO))
                      {
                          case 0:
@@ -141,11 +141,11 @@ public final class OutputControl implements Runnable {
         BrewServer.LOG.info("Shutting down OC");
         if (getHeater() != null) {
             getHeater().turnOff();
-            getHeater().disable();
+            getHeater().shutdown();
         }
         if (getCooler() != null) {
             getCooler().turnOff();
-            getCooler().disable();
+            getCooler().shutdown();
         }
     }
 
@@ -169,7 +169,9 @@ public final class OutputControl implements Runnable {
             duty = BigDecimal.ZERO;
         }
         this.fDuty = duty;
-        BrewServer.LOG.info("IN: " + duty + " OUT: " + fDuty);
+        if (BrewServer.LOG.isLoggable(Level.FINE)) {
+            BrewServer.LOG.fine("IN: " + duty + " OUT: " + fDuty);
+        }
     }
 
     /**
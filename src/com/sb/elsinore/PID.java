@@ -1,4 +1,5 @@
 package com.sb.elsinore;
+import com.sb.elsinore.devices.CompressorDevice;
 import com.sb.elsinore.devices.OutputDevice;
 import com.sb.util.MathUtil;
 
@@ -11,6 +12,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,6 +24,11 @@ import java.util.regex.Pattern;
  */
 public final class PID implements Runnable {
 
+    /**
+     * The time between runs of the PID loop, in nanoseconds.
+     */
+    private static final long LOOP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
     /**
      * Thousand BigDecimal multiplier.
      */
@@ -31,6 +38,11 @@ public final class PID implements Runnable {
      * The Output control thread.
      */
     private Thread outputThread = null;
+    /**
+     * Watt hours used by outputs that have been replaced or removed, so the
+     * energy used doesn't go backwards when the GPIOs change.
+     */
+    private double retiredEnergy = 0;
     private boolean invertOutput = false;
     private BigDecimal duty_cycle = new BigDecimal(0);
     private BigDecimal calculatedDuty = new BigDecimal(0);
@@ -57,7 +69,9 @@ public final class PID implements Runnable {
             proportional = new BigDecimal(0),
             integral = new BigDecimal(0),
             derivative = new BigDecimal(0),
-            delay = new BigDecimal(0);
+            delay = new BigDecimal(0),
+            min_on = new BigDecimal(0),
+            watts = new BigDecimal(0);
         boolean inverted = false;
 
         /**
@@ -211,6 +225,7 @@ public final class PID implements Runnable {
         if (this.heatGPIO != null && !this.heatGPIO.equals("")) {
             this.outputControl =
                 new OutputControl(fName, heatGPIO, heatSetting.cycle_time);
+            this.outputControl.getHeater().setWatts(heatSetting.watts);
             this.outputThread = new Thread(this.outputControl);
             this.outputThread.start();
         } else {
@@ -233,7 +248,14 @@ public final class PID implements Runnable {
         }
 
         // Main loop
+        long lastLoop = 0;
         while (running) {
+            long loopStart = System.nanoTime();
+            if (lastLoop != 0) {
+                Metrics.record(Metrics.PID_LAG, fName,
+                        loopStart - lastLoop - LOOP_INTERVAL);
+            }
+            lastLoop = loopStart;
             try {
                 synchronized (this.fTemp) {
                     // do the bulk of the work here
@@ -281,7 +303,7 @@ public final class PID implements Runnable {
                 }
 
                 //pause execution for a second
-                Thread.sleep(1000);
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(LOOP_INTERVAL));
             } catch (InterruptedException ex) {
                 System.err.println(ex);
                 Thread.currentThread().interrupt();
@@ -513,6 +535,94 @@ public final class PID implements Runnable {
         }
     }
 
+    /**
+     * @return The power draw of the heating output in watts.
+     */
+    public BigDecimal getHeatWatts() {
+        return heatSetting.watts;
+    }
+
+    /**
+     * Set the power draw of the heating output for the power budget.
+     * @param watts The power draw in watts, 0 to leave it unmanaged.
+     */
+    public void setHeatWatts(BigDecimal watts) {
+        heatSetting.watts = watts;
+        if (this.hasValidHeater()) {
+            this.outputControl.getHeater().setWatts(watts);
+        }
+    }
+
+    /**
+     * @return The power draw of the cooling output in watts.
+     */
+    public BigDecimal getCoolWatts() {
+        return coolSetting.watts;
+    }
+
+    /**
+     * Set the power draw of the cooling output for the power budget.
+     * @param watts The power draw in watts, 0 to leave it unmanaged.
+     */
+    public void setCoolWatts(BigDecimal watts) {
+        coolSetting.watts = watts;
+        if (this.hasValidCooler()) {
+            this.outputControl.getCooler().setWatts(watts);
+        }
+    }
+
+    /**
+     * @return The energy used by the heating and cooling outputs in watt
+     * hours, including outputs that have since been replaced.
+     */
+    public synchronized double getEnergy() {
+        double energy = retiredEnergy;
+        if (this.outputControl != null) {
+            if (this.outputControl.getHeater() != null) {
+                energy += this.outputControl.getHeater().getWattHours();
+            }
+            if (this.outputControl.getCooler() != null) {
+                energy += this.outputControl.getCooler().getWattHours();
+            }
+        }
+        return energy;
+    }
+
+    /**
+     * Get the energy accounting for this PID.
+     * @return A map with the on time (seconds) and energy (Wh) of each
+     * current output, and the total energy including replaced outputs.
+     */
+    public Map<String, Object> getEnergyStatus() {
+        Map<String, Object> energyMap = new HashMap<String, Object>();
+        if (this.hasValidHeater()) {
+            energyMap.put("heat",
+                getDeviceEnergy(this.outputControl.getHeater()));
+        }
+        if (this.hasValidCooler()) {
+            energyMap.put("cool",
+                getDeviceEnergy(this.outputControl.getCooler()));
+        }
+        energyMap.put("energy", roundEnergy(getEnergy()));
+        return energyMap;
+    }
+
+    private Map<String, Object> getDeviceEnergy(OutputDevice device) {
+        Map<String, Object> deviceMap = new HashMap<String, Object>();
+        deviceMap.put("watts", device.getWatts());
+        deviceMap.put("ontime", device.getOnTimeNanos() / 1000000000L);
+        deviceMap.put("energy", roundEnergy(device.getWattHours()));
+        return deviceMap;
+    }
+
+    /**
+     * @param energy The energy to round.
+     * @return The energy rounded to two decimal places.
+     */
+    static BigDecimal roundEnergy(double energy) {
+        return BigDecimal.valueOf(energy).setScale(2, RoundingMode.HALF_UP);
+    }
+
     public void setCoolInverted(boolean inverted) {
         if (this.hasValidCooler()) {
             coolSetting.inverted = inverted;
@@ -560,6 +670,38 @@ public final class PID implements Runnable {
         return coolSetting.delay;
     }
 
+    /**
+     * @return The minimum time the compressor runs for in minutes.
+     */
+    public BigDecimal getCoolMinOn() {
+        return coolSetting.min_on;
+    }
+
+    /**
+     * @param minOn The minimum time the compressor runs for in minutes.
+     */
+    public void setCoolMinOn(BigDecimal minOn) {
+        this.coolSetting.min_on = minOn;
+        if (this.hasValidCooler()
+                && this.outputControl.getCooler() instanceof CompressorDevice) {
+            ((CompressorDevice) this.outputControl.getCooler())
+                .setMinimumRunTime(minOn);
+        }
+    }
+
+    /**
+     * @return The seconds until the compressor can start again, 0 if it's
+     * not a compressor or it isn't locked out.
+     */
+    public long getCoolLockout() {
+        if (this.hasValidCooler()
+                && this.outputControl.getCooler() instanceof CompressorDevice) {
+            return ((CompressorDevice) this.outputControl.getCooler())
+                .getLockout();
+        }
+        return 0;
+    }
+
     /**
      * @return Get the current Temp object
      */
@@ -736,19 +878,32 @@ public final class PID implements Runnable {
      * Used as a shutdown hook to close off everything.
      */
     public void shutdown() {
+        stopOutputs();
+        release();
+
+        if (this.getName() != null && !getName().equals("")) {
+            LaunchControl.savePID(this);
+        }
+    }
+
+    /**
+     * Stop the output thread and turn the outputs off.
+     */
+    public void stopOutputs() {
         if (outputControl != null && outputThread != null) {
             this.outputControl.shuttingDown = true;
             this.outputThread.interrupt();
             this.outputControl.shutdown();
         }
+    }
 
+    /**
+     * Release the GPIOs that are still held.
+     */
+    public void release() {
         if (auxPin != null) {
             this.auxPin.close();
         }
-
-        if (this.getName() != null && !getName().equals("")) {
-            LaunchControl.savePID(this);
-        }
     }
 
     /**
@@ -784,60 +939,65 @@ public final class PID implements Runnable {
     }
 
     /**
-     * @return The current status as a map
+     * Write the current status.
+     * @param writer The writer to add the status object to.
      */
-    public Map<String, Object> getMapStatus() {
-        Map<String, Object> statusMap = new HashMap<String, Object>();
-        statusMap.put("mode", getMode());
+    public void writeStatus(final JsonWriter writer) {
+        writer.beginObject();
+        writer.name("mode").value(getMode());
         // hack to get the real duty out
         if (getMode().contains("auto")) {
-            statusMap.put("actualduty", calculatedDuty);
+            writer.name("actualduty").value(calculatedDuty);
         }
 
         // The Heat settings
-        Map<String, Object> heatMap = new HashMap<String, Object>();
-        heatMap.put("cycle", getHeatCycle());
-        heatMap.put("p", getHeatP());
-        heatMap.put("i", getHeatI());
-        heatMap.put("d", getHeatD());
-        heatMap.put("gpio", getHeatGPIO());
-        heatMap.put("inverted", getHeatInverted());
-        statusMap.put("heat", heatMap);
+        writer.name("heat").beginObject();
+        writer.name("cycle").value(getHeatCycle());
+        writer.name("p").value(getHeatP());
+        writer.name("i").value(getHeatI());
+        writer.name("d").value(getHeatD());
+        writer.name("gpio").value(getHeatGPIO());
+        writer.name("inverted").value(getHeatInverted());
+        writer.name("watts").value(getHeatWatts());
+        writer.endObject();
 
         // The cool settings
-        Map<String, Object> coolMap = new HashMap<String, Object>();
-        coolMap.put("cycle", getCoolCycle());
-        coolMap.put("p", getCoolP());
-        coolMap.put("i", getCoolI());
-        coolMap.put("d", getCoolD());
-        coolMap.put("gpio", getCoolGPIO());
-        coolMap.put("delay", getCoolDelay());
-        coolMap.put("inverted", getCoolInverted());
-        statusMap.put("cool", coolMap);
-
-        statusMap.put("duty", getDuty());
-        statusMap.put("setpoint", getSetPoint());
-        statusMap.put("manualcycle", this.manual_cycle);
-        statusMap.put("min", this.min);
-        statusMap.put("max", this.max);
-        statusMap.put("time", this.minTime);
-
-        statusMap.put("status", getStatus());
+        writer.name("cool").beginObject();
+        writer.name("cycle").value(getCoolCycle());
+        writer.name("p").value(getCoolP());
+        writer.name("i").value(getCoolI());
+        writer.name("d").value(getCoolD());
+        writer.name("gpio").value(getCoolGPIO());
+        writer.name("delay").value(getCoolDelay());
+        writer.name("minon").value(getCoolMinOn());
+        writer.name("lockout").value(getCoolLockout());
+        writer.name("inverted").value(getCoolInverted());
+        writer.name("watts").value(getCoolWatts());
+        writer.endObject();
+
+        writer.name("duty").value(getDuty());
+        writer.name("setpoint").value(getSetPoint());
+        writer.name("manualcycle").value(this.manual_cycle);
+        writer.name("min").value(this.min);
+        writer.name("max").value(this.max);
+        writer.name("time").value(this.minTime);
+
+        writer.name("status").value(getStatus());
+        writer.name("energy").value(roundEnergy(getEnergy()));
 
         if (auxPin != null) {
             // This value should be cached
             // but I don't trust someone to hit it with a different application
-            statusMap.put("auxStatus", auxPin.getValue());
+            writer.name("auxStatus").value(auxPin.getValue());
         }
-
-        return statusMap;
+        writer.endObject();
     }
 
     /**
      * Set the GPIO to a new pin, shutdown the old one first.
      * @param gpio The new GPIO to use
      */
-    public void setHeatGPIO(final String gpio) {
+    public synchronized void setHeatGPIO(final String gpio) {
         // Close down the existing OutputControl
         this.heatGPIO = gpio;
         if (this.outputControl == null) {
@@ -845,29 +1005,34 @@ public final class PID implements Runnable {
                     this.getName(), gpio, this.getHeatCycle());
         }
         if (this.outputControl.getHeater() != null) {
-            this.outputControl.getHeater().disable();
+            retiredEnergy += this.outputControl.getHeater().getWattHours();
+            this.outputControl.getHeater().shutdown();
         }
 
         if (this.heatGPIO != null) {
             this.outputControl.setHeater(new OutputDevice(
                 this.getName(), heatGPIO, this.heatSetting.cycle_time));
+            this.outputControl.getHeater().setWatts(this.heatSetting.watts);
         } else {
             this.outputControl.setHeater(null);
         }
     }
 
-    public void setCoolGPIO(final String gpio) {
+    public synchronized void setCoolGPIO(final String gpio) {
         // Close down the existing OutputControl
         this.coolGPIO = gpio;
         if (this.outputControl == null) {
             this.outputControl = new OutputControl(this.getName(), this.heatGPIO, this.getHeatCycle());
         }
         if (this.outputControl.getCooler() != null) {
-            this.outputControl.getCooler().disable();
+            retiredEnergy += this.outputControl.getCooler().getWattHours();
+            this.outputControl.getCooler().shutdown();
         }
         
         if (gpio != null) {
             this.outputControl.setCool(gpio, this.coolSetting.cycle_time, this.coolSetting.delay);
+            this.outputControl.getCooler().setWatts(this.coolSetting.watts);
+            setCoolMinOn(this.coolSetting.min_on);
         } else {
             this.outputControl.setCooler(null);
         }
@@ -1,8 +1,13 @@
 package com.sb.elsinore;
 
+import com.sb.elsinore.devices.TimerService;
+
 import jGPIO.InvalidGPIOException;
 import jGPIO.OutPin;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A helper class for pump control. not very complex. Designed to control a
  * single GPIO pin with a straight forward on/off functionality
@@ -23,6 +28,36 @@ public class Pump implements Comparable<Pump> {
     private boolean invertOutput = false;
     private int position = -1;
 
+    /**
+     * How often to check a coupled PID that isn't heating, in milliseconds.
+     */
+    private static final long COUPLED_CHECK = 1000;
+    /**
+     * The program on time in milliseconds, 0 if there's no program.
+     */
+    private long programOn = 0;
+    /**
+     * The program off time in milliseconds.
+     */
+    private long programOff = 0;
+    /**
+     * The PID the program is coupled to, it only runs while this is heating.
+     */
+    private String programPID = null;
+    /**
+     * Is the program running.
+     */
+    private boolean programEnabled = false;
+    /**
+     * The next scheduled step of the program.
+     */
+    private ScheduledFuture<?> programTask = null;
+    /**
+     * Bumped each time the program task is cancelled, so a step that
+     * already fired and was waiting for the lock knows it's stale.
+     */
+    private long programGeneration = 0;
+
     /**
      * The Constructor.
      * 
@@ -85,6 +120,7 @@ public class Pump implements Comparable<Pump> {
         } else {
             output.setValue(true);
         }
+        LaunchControl.statusChanged();
     }
 
     /**
@@ -96,6 +132,7 @@ public class Pump implements Comparable<Pump> {
         } else {
             output.setValue(false);
         }
+        LaunchControl.statusChanged();
     }
 
     /**
@@ -137,6 +174,7 @@ public class Pump implements Comparable<Pump> {
     }
     
     public void shutdown() {
+        stopProgram();
         if (output != null) {
             output.close();
         }
@@ -150,4 +188,172 @@ public class Pump implements Comparable<Pump> {
     public boolean getInverted() {
         return this.invertOutput;
     }
+
+    /**
+     * Set the pump program, this doesn't start or stop it.
+     * @param onTime The on time in milliseconds.
+     * @param offTime The off time in milliseconds, 0 to run continuously.
+     * @param pidName The PID to couple to, null to always run.
+     */
+    public synchronized void setProgram(final long onTime, final long offTime,
+            final String pidName) {
+        if (onTime <= 0 || offTime < 0) {
+            throw new IllegalArgumentException(
+                "Pump program times must be positive");
+        }
+        this.programOn = onTime;
+        this.programOff = offTime;
+        if (pidName == null || pidName.equals("")) {
+            this.programPID = null;
+        } else {
+            this.programPID = pidName;
+        }
+
+        // Restart with the new timings
+        if (programEnabled) {
+            startProgram();
+        }
+    }
+
+    /**
+     * Set the pump program as a duty percentage of a cycle.
+     * @param duty The percentage of the cycle to run.
+     * @param cycleTime The cycle time in milliseconds.
+     * @param pidName The PID to couple to, null to always run.
+     */
+    public void setProgramDuty(final double duty, final long cycleTime,
+            final String pidName) {
+        if (duty <= 0 || duty > 100) {
+            throw new IllegalArgumentException(
+                "Pump duty must be between 0 and 100");
+        }
+        long onTime = Math.round(cycleTime * duty / 100);
+        setProgram(onTime, cycleTime - onTime, pidName);
+    }
+
+    /**
+     * @return True if a program has been set.
+     */
+    public synchronized boolean hasProgram() {
+        return this.programOn > 0;
+    }
+
+    /**
+     * @return True if the program is running.
+     */
+    public synchronized boolean isProgramEnabled() {
+        return this.programEnabled;
+    }
+
+    /**
+     * @return The program on time in milliseconds.
+     */
+    public synchronized long getProgramOn() {
+        return this.programOn;
+    }
+
+    /**
+     * @return The program off time in milliseconds.
+     */
+    public synchronized long getProgramOff() {
+        return this.programOff;
+    }
+
+    /**
+     * @return The PID the program is coupled to, or null.
+     */
+    public synchronized String getProgramPID() {
+        return this.programPID;
+    }
+
+    /**
+     * Start running the program on the shared timer.
+     */
+    public synchronized void startProgram() {
+        if (!hasProgram()) {
+            return;
+        }
+        cancelProgramTask();
+        this.programEnabled = true;
+        programStep(true, this.programGeneration);
+    }
+
+    /**
+     * Stop the program and turn off the pump.
+     */
+    public synchronized void stopProgram() {
+        cancelProgramTask();
+        if (this.programEnabled) {
+            this.programEnabled = false;
+            turnOff();
+        }
+    }
+
+    private synchronized void cancelProgramTask() {
+        this.programGeneration++;
+        if (this.programTask != null) {
+            this.programTask.cancel(false);
+            this.programTask = null;
+        }
+    }
+
+    /**
+     * Run one edge of the program and schedule the next one.
+     * @param on True for the on edge.
+     * @param generation The program generation the step was scheduled in.
+     */
+    private synchronized void programStep(final boolean on,
+            final long generation) {
+        if (generation != this.programGeneration) {
+            // Cancelled after it fired, a newer chain has taken over
+            return;
+        }
+        this.programTask = null;
+        if (!this.programEnabled) {
+            return;
+        }
+
+        if (this.programPID != null) {
+            PID pid = LaunchControl.findPID(this.programPID);
+            if (pid == null || !pid.getStatus().equals("heating")) {
+                // Wait for the PID to start heating
+                turnOff();
+                scheduleStep(true, COUPLED_CHECK);
+                return;
+            }
+        }
+
+        if (on || this.programOff == 0) {
+            turnOn();
+            scheduleStep(false, this.programOn);
+        } else {
+            turnOff();
+            scheduleStep(true, this.programOff);
+        }
+    }
+
+    private void scheduleStep(final boolean on, final long delay) {
+        final long generation = this.programGeneration;
+        this.programTask = TimerService.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                programStep(on, generation);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the program settings, times are in seconds.
+     * @param writer The writer to add the program object to.
+     */
+    public synchronized void writeProgramStatus(final JsonWriter writer) {
+        writer.beginObject();
+        writer.name("on").value(this.programOn / 1000d);
+        writer.name("off").value(this.programOff / 1000d);
+        writer.name("enabled").value(this.programEnabled);
+        if (this.programPID != null) {
+            writer.name("pid").value(this.programPID);
+        }
+        writer.endObject();
+    }
 }
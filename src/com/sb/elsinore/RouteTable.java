@@ -0,0 +1,366 @@
+package com.sb.elsinore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.simple.JSONObject;
+
+import com.sb.elsinore.NanoHTTPD.Method;
+import com.sb.elsinore.NanoHTTPD.Response;
+import com.sb.elsinore.NanoHTTPD.Response.Status;
+
+/**
+ * The routes served by BrewServer.
+ *
+ * Exact routes are looked up by their lower case path in a hash map, prefix
+ * routes are matched against a trie, longest prefix first. Each route can be
+ * limited to a set of methods and keeps a latency histogram, the responses
+ * by status class and the body bytes in and out.
+ *
+ * The routes are added while the server is set up, then the table is frozen
+ * and published once, so finding a route never takes a lock.
+ */
+public final class RouteTable {
+
+    /**
+     * Handles a request for a route.
+     */
+    public interface Handler {
+        /**
+         * @param uri The URI requested.
+         * @param method The request method.
+         * @param header The request headers.
+         * @param parms The request parameters.
+         * @param files The uploaded files.
+         * @return The response, or null to fall through to the file system.
+         */
+        Response handle(String uri, Method method, Map<String, String> header,
+                Map<String, String> parms, Map<String, String> files);
+    }
+
+    /**
+     * A registered route and its statistics.
+     */
+    public static final class Route {
+        private final String path;
+        private final Handler handler;
+        private final EnumSet<Method> methods;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        /**
+         * Responses by the first digit of their status code.
+         */
+        private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+
+        Route(final String path, final Handler handler,
+                final Method[] allowed) {
+            this.path = path;
+            this.handler = handler;
+            if (allowed.length == 0) {
+                this.methods = EnumSet.allOf(Method.class);
+            } else {
+                this.methods = EnumSet.noneOf(Method.class);
+                for (Method m : allowed) {
+                    this.methods.add(m);
+                }
+            }
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean allows(final Method method) {
+            return method == null || methods.contains(method);
+        }
+
+        /**
+         * @return True if the route only allows GET and HEAD, so it can't
+         *         change anything.
+         */
+        public boolean isReadOnly() {
+            return EnumSet.of(Method.GET, Method.HEAD).containsAll(methods);
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @param statusClass The first digit of a status code, 1 to 5.
+         * @return The number of responses with that class of status.
+         */
+        public long getResponses(final int statusClass) {
+            return statusClasses.get(statusClass);
+        }
+
+        /**
+         * @return The request body bytes received.
+         */
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        /**
+         * @return The response body bytes sent.
+         */
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        /**
+         * Count a request and its response, the response adds its body
+         * size as it's sent.
+         * @param header The request headers.
+         * @param response The response, may be null.
+         */
+        public void count(final Map<String, String> header,
+                final Response response) {
+            String length = header.get("content-length");
+            if (length != null) {
+                try {
+                    bytesIn.addAndGet(Math.max(0,
+                            Long.parseLong(length.trim())));
+                } catch (NumberFormatException e) {
+                    // Already refused when the body was read
+                }
+            }
+            if (response == null || response.getStatus() == null) {
+                statusClasses.incrementAndGet(0);
+                return;
+            }
+            int code = response.getStatus().getRequestStatus() / 100;
+            statusClasses.incrementAndGet(code > 0 && code < 6 ? code : 0);
+            response.setSentCounter(bytesOut);
+        }
+    }
+
+    /**
+     * A node in the prefix trie.
+     */
+    private static final class Node {
+        private final Map<Character, Node> children;
+        private Route route = null;
+
+        Node() {
+            this.children = new HashMap<Character, Node>();
+        }
+
+        /**
+         * Copy a node and everything under it, with the children unmodifiable.
+         */
+        Node(final Node node) {
+            Map<Character, Node> copy = new HashMap<Character, Node>();
+            for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+                copy.put(child.getKey(), new Node(child.getValue()));
+            }
+            this.children = Collections.unmodifiableMap(copy);
+            this.route = node.route;
+        }
+    }
+
+    /**
+     * The routes once they're frozen.
+     */
+    private static final class Snapshot {
+        private final Map<String, Route> exact;
+        private final Node prefixes;
+
+        Snapshot(final Map<String, Route> exact, final Node prefixes) {
+            this.exact = Collections.unmodifiableMap(
+                    new HashMap<String, Route>(exact));
+            this.prefixes = new Node(prefixes);
+        }
+    }
+
+    /**
+     * The routes being added, until the table is frozen.
+     */
+    private final Map<String, Route> exact = new HashMap<String, Route>();
+    private final Node prefixes = new Node();
+    private volatile Snapshot frozen = null;
+    /**
+     * The statistics for requests no route handled, files and unknown URIs.
+     */
+    private final Route unrouted = new Route("(files)", null, new Method[0]);
+
+    /**
+     * Add an exact route, matched ignoring case.
+     * @param path The path, for example "/getstatus".
+     * @param handler The handler for the route.
+     * @param methods The methods allowed, none for any method.
+     */
+    public synchronized void add(final String path, final Handler handler,
+            final Method... methods) {
+        checkNotFrozen();
+        exact.put(fold(path), new Route(path, handler, methods));
+    }
+
+    /**
+     * Add a prefix route, matched ignoring case.
+     * @param prefix The prefix, for example "/graph-data".
+     * @param handler The handler for the route.
+     * @param methods The methods allowed, none for any method.
+     */
+    public synchronized void addPrefix(final String prefix,
+            final Handler handler, final Method... methods) {
+        checkNotFrozen();
+        Node node = prefixes;
+        for (char c : fold(prefix).toCharArray()) {
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.route = new Route(prefix + "*", handler, methods);
+    }
+
+    /**
+     * Stop adding routes and publish them for find() and getRoutes().
+     */
+    public synchronized void freeze() {
+        checkNotFrozen();
+        frozen = new Snapshot(exact, prefixes);
+    }
+
+    /**
+     * Find the route for a URI, exact routes first then the longest prefix.
+     * @param uri The URI requested.
+     * @return The route, or null if nothing matches.
+     * @throws IllegalStateException If the table hasn't been frozen.
+     */
+    public Route find(final String uri) {
+        Snapshot routes = getFrozen();
+        String key = fold(uri);
+        Route route = routes.exact.get(key);
+        if (route != null) {
+            return route;
+        }
+
+        Node node = routes.prefixes;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+            if (node != null && node.route != null) {
+                route = node.route;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Run the handler for a request.
+     * @param route The route found for the URI, may be null.
+     * @return The response, or null if no route handled the request.
+     */
+    public Response dispatch(final Route route, final String uri,
+            final Method method, final Map<String, String> header,
+            final Map<String, String> parms,
+            final Map<String, String> files) {
+        if (route == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!route.allows(method)) {
+                Response response = new Response(Status.METHOD_NOT_ALLOWED,
+                        NanoHTTPD.MIME_PLAINTEXT, "Method not allowed: "
+                        + method);
+                response.addHeader("Allow", allowHeader(route));
+                return response;
+            }
+            return route.handler.handle(uri, method, header, parms, files);
+        } finally {
+            route.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return The statistics for requests no route handled.
+     */
+    public Route getUnrouted() {
+        return unrouted;
+    }
+
+    /**
+     * @return Every route, sorted by path, with the unrouted requests last.
+     */
+    public List<Route> getRoutes() {
+        Snapshot frozenRoutes = getFrozen();
+        Map<String, Route> sorted = new TreeMap<String, Route>();
+        for (Route route : frozenRoutes.exact.values()) {
+            sorted.put(route.path, route);
+        }
+        addPrefixRoutes(sorted, frozenRoutes.prefixes);
+
+        List<Route> routes = new ArrayList<Route>(sorted.values());
+        routes.add(unrouted);
+        return routes;
+    }
+
+    /**
+     * @return The count and latency of every route that has been used, keyed
+     *         by path, times in microseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for (Route route : getRoutes()) {
+            if (route.latency.getCount() > 0) {
+                stats.put(route.path, route.latency.toJSON());
+            }
+        }
+        return stats;
+    }
+
+    private void addPrefixRoutes(final Map<String, Route> routes,
+            final Node node) {
+        if (node.route != null) {
+            routes.put(node.route.path, node.route);
+        }
+        for (Node child : node.children.values()) {
+            addPrefixRoutes(routes, child);
+        }
+    }
+
+    private Snapshot getFrozen() {
+        Snapshot routes = frozen;
+        if (routes == null) {
+            throw new IllegalStateException("The routes haven't been frozen");
+        }
+        return routes;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen != null) {
+            throw new IllegalStateException(
+                    "Routes can't be added once the table is frozen");
+        }
+    }
+
+    private static String allowHeader(final Route route) {
+        StringBuilder allow = new StringBuilder();
+        for (Method m : route.methods) {
+            if (allow.length() > 0) {
+                allow.append(", ");
+            }
+            allow.append(m.name());
+        }
+        return allow.toString();
+    }
+
+    private static String fold(final String path) {
+        return path.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,197 @@
+package com.sb.elsinore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONObject;
+
+import com.sb.elsinore.NanoHTTPD.ByteBufferInputStream;
+
+/**
+ * Keeps the most used static files in memory.
+ *
+ * Files are keyed by path and checked against their modified time and size
+ * on every request, so a changed file is reloaded straight away. The cache is
+ * bounded by the total bytes held, the least recently used files are dropped
+ * first, and files larger than a quarter of the cache are never held.
+ */
+public final class StaticAssetCache {
+
+    /**
+     * The default size of the cache in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Cache-Control for files with a version or hash in their path, they never
+     * change under the same name.
+     */
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /**
+     * A content hash or a version number between dots or dashes, for example
+     * "app.3f2a9c1d.js" or "raphael.2.1.0.min.js" or "bootstrap-3.0.0/".
+     */
+    private static final Pattern FINGERPRINT = Pattern.compile(
+            ".*[.-]([0-9a-fA-F]{8,}|\\d+\\.\\d+\\.\\d+)[./-].*");
+
+    /**
+     * A file held in memory.
+     */
+    public static final class Asset {
+        private final long lastModified;
+        private final long length;
+        private final ByteBuffer body;
+        private final String etag;
+
+        Asset(final long lastModified, final long length,
+                final ByteBuffer body) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.body = body;
+            this.etag = etagFor(lastModified, length);
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return A new stream over the file, sharing the cached bytes.
+         */
+        public InputStream openStream() {
+            return new ByteBufferInputStream(body);
+        }
+    }
+
+    private final long maxBytes;
+    private final boolean direct;
+    private final LinkedHashMap<String, Asset> assets =
+            new LinkedHashMap<String, Asset>(64, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes The most bytes to hold, 0 to hold nothing.
+     * @param direct True to hold files in direct buffers, which can be
+     *          written to a socket channel without a copy.
+     */
+    public StaticAssetCache(final long maxBytes, final boolean direct) {
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * Get a file from the cache, loading it if it isn't held or has changed.
+     * @param file The file to get.
+     * @return The file, or null if it's too large to hold.
+     * @throws IOException If the file couldn't be read.
+     */
+    public Asset get(final File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (length > maxBytes / 4) {
+            return null;
+        }
+
+        String key = file.getPath();
+        synchronized (this) {
+            Asset asset = assets.get(key);
+            if (asset != null && asset.lastModified == lastModified
+                    && asset.length == length) {
+                hits.incrementAndGet();
+                return asset;
+            }
+        }
+
+        // Read outside the lock, two requests for the same file may both
+        // load it and the last one wins
+        misses.incrementAndGet();
+        Asset asset = load(file, lastModified, length);
+        synchronized (this) {
+            Asset old = assets.put(key, asset);
+            if (old != null) {
+                totalBytes -= old.length;
+            }
+            totalBytes += asset.length;
+
+            Iterator<Asset> eldest = assets.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Asset evicted = eldest.next();
+                eldest.remove();
+                totalBytes -= evicted.length;
+                evictions.incrementAndGet();
+            }
+        }
+        return asset;
+    }
+
+    private Asset load(final File file, final long lastModified,
+            final long length) throws IOException {
+        ByteBuffer body = direct ? ByteBuffer.allocateDirect((int) length)
+                : ByteBuffer.allocate((int) length);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (body.hasRemaining() && channel.read(body) >= 0) {
+                continue;
+            }
+        } finally {
+            in.close();
+        }
+        body.flip();
+        return new Asset(lastModified, body.limit(), body.asReadOnlyBuffer());
+    }
+
+    /**
+     * @param file A file that isn't cached.
+     * @return The ETag for the file's current version, including the quotes.
+     */
+    public static String etagFor(final File file) {
+        return etagFor(file.lastModified(), file.length());
+    }
+
+    private static String etagFor(final long lastModified, final long length) {
+        return "\"" + Long.toHexString(lastModified) + "-"
+                + Long.toHexString(length) + "\"";
+    }
+
+    /**
+     * @param uri The path of a static file.
+     * @return True if the path has a version or hash in it, so the file can
+     *         be cached by the browser forever.
+     */
+    public static boolean isFingerprinted(final String uri) {
+        return FINGERPRINT.matcher(uri).matches();
+    }
+
+    /**
+     * @return The hit and miss counts, and the files and bytes held.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("files", assets.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maxbytes", maxBytes);
+        return stats;
+    }
+}
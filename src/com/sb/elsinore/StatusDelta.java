@@ -0,0 +1,108 @@
+package com.sb.elsinore;
+
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Works out which fields of the status document changed between two
+ * versions.
+ *
+ * A delta mirrors the shape of the document, holding only what changed:
+ * <ul>
+ * <li>Objects list the changed keys, removed keys are listed in "$del".</li>
+ * <li>Arrays list the changed indexes as keys, and the new length in "$len"
+ * if it changed.</li>
+ * <li>Anything else is the new value. An object or array replaced by the
+ * other kind of container is wrapped in {"$set": value}.</li>
+ * </ul>
+ * applyStatusDelta() in pidFunctions.js applies a delta in the browser.
+ */
+final class StatusDelta {
+
+    /**
+     * Returned by diff() when nothing changed.
+     */
+    static final Object UNCHANGED = new Object();
+
+    private StatusDelta() {
+    }
+
+    /**
+     * @param before The old value, as parsed from the status document.
+     * @param after The new value.
+     * @return The delta from before to after, or UNCHANGED.
+     */
+    @SuppressWarnings("unchecked")
+    static Object diff(final Object before, final Object after) {
+        if (before instanceof JSONObject && after instanceof JSONObject) {
+            return diffObject((JSONObject) before, (JSONObject) after);
+        }
+        if (before instanceof JSONArray && after instanceof JSONArray) {
+            return diffArray((JSONArray) before, (JSONArray) after);
+        }
+        if (isContainer(before) && isContainer(after)) {
+            JSONObject set = new JSONObject();
+            set.put("$set", after);
+            return set;
+        }
+        if (before == null ? after == null : before.equals(after)) {
+            return UNCHANGED;
+        }
+        return after;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object diffObject(final JSONObject before,
+            final JSONObject after) {
+        JSONObject delta = new JSONObject();
+        for (Object o : after.entrySet()) {
+            Map.Entry<Object, Object> e = (Map.Entry<Object, Object>) o;
+            if (!before.containsKey(e.getKey())) {
+                delta.put(e.getKey(), e.getValue());
+                continue;
+            }
+            Object change = diff(before.get(e.getKey()), e.getValue());
+            if (change != UNCHANGED) {
+                delta.put(e.getKey(), change);
+            }
+        }
+
+        JSONArray removed = new JSONArray();
+        for (Object key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        if (!removed.isEmpty()) {
+            delta.put("$del", removed);
+        }
+
+        return delta.isEmpty() ? UNCHANGED : delta;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object diffArray(final JSONArray before,
+            final JSONArray after) {
+        JSONObject delta = new JSONObject();
+        for (int i = 0; i < after.size(); i++) {
+            if (i >= before.size()) {
+                delta.put(Integer.toString(i), after.get(i));
+                continue;
+            }
+            Object change = diff(before.get(i), after.get(i));
+            if (change != UNCHANGED) {
+                delta.put(Integer.toString(i), change);
+            }
+        }
+        if (before.size() != after.size()) {
+            delta.put("$len", after.size());
+        }
+        return delta.isEmpty() ? UNCHANGED : delta;
+    }
+
+    private static boolean isContainer(final Object value) {
+        return value instanceof JSONObject || value instanceof JSONArray;
+    }
+}
@@ -0,0 +1,419 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sb.elsinore.NanoHTTPD.DeferredResponse;
+import com.sb.elsinore.NanoHTTPD.Response;
+import com.sb.elsinore.NanoHTTPD.Response.Status;
+
+/**
+ * Pushes the status document to Server-Sent Events clients as it changes.
+ *
+ * A single publisher thread builds each new status snapshot and formats it as
+ * an event once, then offers the same bytes to every client. Each client has
+ * a small queue, a client that falls that far behind is dropped and its
+ * stream ends, the browser reconnects and starts again from the current
+ * status.
+ *
+ * Long-poll requests for /getstatus wait here too, as DeferredResponses
+ * keyed by the version the client has. They're completed with the delta as
+ * soon as a newer version is built, or when their wait runs out.
+ */
+public final class StatusEvents {
+
+    /**
+     * Events queued for a client before it's dropped.
+     */
+    public static final int CLIENT_BUFFER = 8;
+
+    /**
+     * How often a comment is sent to idle clients, in milliseconds.
+     */
+    private static final long KEEP_ALIVE = 15000;
+
+    /**
+     * How long the browser waits before reconnecting, in milliseconds.
+     */
+    private static final int RETRY = 3000;
+
+    /**
+     * The longest a long-poll request can wait, in milliseconds.
+     */
+    public static final long MAX_WAIT = 60000;
+
+    private static final StatusEvents INSTANCE = new StatusEvents();
+
+    private final CopyOnWriteArraySet<EventStream> clients =
+            new CopyOnWriteArraySet<EventStream>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentSkipListMap<Long,
+            ConcurrentLinkedQueue<DeferredResponse>> waiters =
+            new ConcurrentSkipListMap<Long,
+                    ConcurrentLinkedQueue<DeferredResponse>>();
+    private final Object signal = new Object();
+    private boolean changed = false;
+    private Thread publisher = null;
+
+    /**
+     * The last event formatted, guarded by this.
+     */
+    private byte[] lastEvent = null;
+    private long lastVersion = -1;
+
+    /**
+     * Runs the long-poll timeouts, kept off the device timer so a status
+     * build never holds up output timing.
+     */
+    private final ScheduledThreadPoolExecutor timeouts;
+
+    private StatusEvents() {
+        timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("Long-poll Timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Most polls complete early, don't keep their timeouts around
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return The status event publisher.
+     */
+    public static StatusEvents getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Wake up the publisher, the status may have changed.
+     */
+    public void signal() {
+        if (clients.isEmpty() && waiters.isEmpty()) {
+            return;
+        }
+        synchronized (signal) {
+            changed = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return The number of long-poll requests waiting.
+     */
+    public int getWaitingCount() {
+        int count = 0;
+        for (ConcurrentLinkedQueue<DeferredResponse> queue : waiters.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of clients dropped for falling behind.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Open a new event stream, it starts with the current status.
+     * @param lastEventId The Last-Event-ID sent by a reconnecting browser,
+     *          the current status is skipped if the browser already has it.
+     * @return The stream of events, it ends when the client is dropped.
+     */
+    public InputStream openStream(final String lastEventId) {
+        EventStream stream = new EventStream();
+        stream.offer(format(": connected\nretry: " + RETRY + "\n\n"));
+
+        StatusSnapshot snapshot = LaunchControl.getStatusSnapshot();
+        if (!Long.toString(snapshot.getVersion()).equals(lastEventId)) {
+            stream.offer(toEvent(snapshot));
+        }
+
+        clients.add(stream);
+        startPublisher();
+        return stream;
+    }
+
+    /**
+     * Wait for the status to change from the version the client has.
+     * @param since The version the client has.
+     * @param wait The longest to wait in milliseconds, limited to MAX_WAIT.
+     * @return The delta since the version, straight away if the status has
+     *          already changed, otherwise a DeferredResponse that completes
+     *          when it does or the wait runs out.
+     */
+    public Response waitForChange(final long since, final long wait) {
+        if (wait <= 0
+                || LaunchControl.getStatusSnapshot().getVersion() != since) {
+            return deltaResponse(since);
+        }
+
+        final DeferredResponse deferred = new DeferredResponse();
+        ConcurrentLinkedQueue<DeferredResponse> queue = waiters.get(since);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<DeferredResponse>();
+            ConcurrentLinkedQueue<DeferredResponse> existing =
+                    waiters.putIfAbsent(since, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        queue.add(deferred);
+        startPublisher();
+
+        // The status may have changed while this was being added
+        if (LaunchControl.getStatusSnapshot().getVersion() != since) {
+            queue.remove(deferred);
+            deferred.complete(deltaResponse(since));
+            return deferred;
+        }
+
+        final ConcurrentLinkedQueue<DeferredResponse> waiting = queue;
+        final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (deferred.isDone()) {
+                    return;
+                }
+                waiting.remove(deferred);
+                deferred.complete(deltaResponse(since));
+            }
+        }, Math.min(wait, MAX_WAIT), TimeUnit.MILLISECONDS);
+        deferred.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+            }
+        });
+        return deferred;
+    }
+
+    /**
+     * Complete the long-poll requests waiting on versions older than this.
+     */
+    private void releaseWaiters(final long version) {
+        Iterator<Map.Entry<Long, ConcurrentLinkedQueue<DeferredResponse>>> it =
+                waiters.headMap(version).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, ConcurrentLinkedQueue<DeferredResponse>> entry =
+                    it.next();
+            it.remove();
+            DeferredResponse deferred;
+            while ((deferred = entry.getValue().poll()) != null) {
+                if (!deferred.isDone()) {
+                    deferred.complete(deltaResponse(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    private static Response deltaResponse(final long since) {
+        Response response = new Response(Status.OK, "application/json",
+                new ByteArrayInputStream(LaunchControl.getStatusDelta(since)));
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    private synchronized void startPublisher() {
+        if (publisher != null) {
+            return;
+        }
+        publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        });
+        publisher.setName("Status Events");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * Wait for changes and send each new version of the status to every
+     * client.
+     */
+    private void publish() {
+        byte[] keepAlive = format(": keep-alive\n\n");
+        long published = -1;
+        long lastSent = System.currentTimeMillis();
+        while (true) {
+            synchronized (signal) {
+                try {
+                    if (!changed) {
+                        signal.wait(KEEP_ALIVE);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                changed = false;
+            }
+
+            if (clients.isEmpty() && waiters.isEmpty()) {
+                continue;
+            }
+
+            // Rebuilding is skipped if nothing has changed since the last
+            // snapshot, and an unchanged document keeps its version
+            StatusSnapshot snapshot = LaunchControl.getStatusSnapshot();
+            releaseWaiters(snapshot.getVersion());
+            if (clients.isEmpty()) {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            byte[] event;
+            if (snapshot.getVersion() != published) {
+                event = toEvent(snapshot);
+                published = snapshot.getVersion();
+            } else if (now - lastSent >= KEEP_ALIVE) {
+                // Also finds the clients that have gone away
+                event = keepAlive;
+            } else {
+                continue;
+            }
+
+            lastSent = now;
+            for (EventStream client : clients) {
+                client.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Format a snapshot as an event, the last one is reused.
+     */
+    private synchronized byte[] toEvent(final StatusSnapshot snapshot) {
+        byte[] event = lastEvent;
+        if (event != null && snapshot.getVersion() == lastVersion) {
+            return event;
+        }
+
+        String json;
+        try {
+            json = new String(snapshot.getBody(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        // Data lines can't contain new lines
+        StringBuilder text = new StringBuilder();
+        text.append("id: ").append(snapshot.getVersion()).append('\n');
+        text.append("event: status\n");
+        for (String line : json.split("\n", -1)) {
+            text.append("data: ").append(line).append('\n');
+        }
+        text.append('\n');
+
+        event = format(text.toString());
+        lastEvent = event;
+        lastVersion = snapshot.getVersion();
+        return event;
+    }
+
+    private static byte[] format(final String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The events for one client, read by the thread sending its response.
+     */
+    private final class EventStream extends InputStream {
+        private final BlockingQueue<byte[]> queue =
+                new ArrayBlockingQueue<byte[]>(CLIENT_BUFFER);
+        private byte[] pending = new byte[0];
+        private int offset = 0;
+        private volatile boolean closed = false;
+
+        /**
+         * Queue an event, dropping the client if its buffer is full.
+         */
+        void offer(final byte[] event) {
+            if (closed) {
+                return;
+            }
+            if (!queue.offer(event)) {
+                BrewServer.LOG.info("Dropping a slow status event client");
+                dropped.incrementAndGet();
+                close();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            if (read(single, 0, 1) < 0) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (offset >= pending.length) {
+                if (closed) {
+                    return -1;
+                }
+                try {
+                    byte[] next = queue.poll(KEEP_ALIVE * 2,
+                            TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        pending = next;
+                        offset = 0;
+                    }
+                } catch (InterruptedException e) {
+                    close();
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, pending.length - offset);
+            System.arraycopy(pending, offset, b, off, count);
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            clients.remove(this);
+            // Wake up the reader
+            queue.clear();
+            queue.offer(new byte[0]);
+        }
+    }
+}
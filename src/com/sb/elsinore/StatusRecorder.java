@@ -28,6 +28,7 @@ public class StatusRecorder implements Runnable {
     private String recorderDirectory = StatusRecorder.defaultDirectory;
     private HashMap<String, Status> temperatureMap;
     private HashMap<String, Status> dutyMap;
+    private HashMap<String, Status> energyMap;
     boolean writeRawLog = false;
     public static String defaultDirectory = "graph-data/";
     public static String DIRECTORY_PROPERTY = "recorder_directory";
@@ -44,6 +45,7 @@ public class StatusRecorder implements Runnable {
         if (thread == null || !thread.isAlive()) {
             temperatureMap = new HashMap();
             dutyMap = new HashMap();
+            energyMap = new HashMap();
             thread = new Thread(this);
             thread.setDaemon(true);
             thread.start();
@@ -214,6 +216,21 @@ public class StatusRecorder implements Runnable {
                         appendToLog(dutyFile, now + "," + duty + "\r\n");
                         dutyMap.put(name, new Status(duty, now));
                     }
+
+                    if (pid.containsKey("energy")) {
+                        String energy = pid.get("energy").toString();
+                        lastStatus = energyMap.get(name);
+                        if (lastStatus == null) {
+                            lastStatus = new Status("-999", now);
+                        }
+
+                        if (lastStatus.isDifferentEnough(energy)) {
+                            File energyFile = new File(directory + name
+                                    + "-energy.csv");
+                            appendToLog(energyFile, now + "," + energy + "\r\n");
+                            energyMap.put(name, new Status(energy, now));
+                        }
+                    }
                 }
 
             }
@@ -0,0 +1,123 @@
+package com.sb.elsinore;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+
+/**
+ * An immutable copy of the status document served by /getstatus.
+ *
+ * The snapshot is built once per change and the same bytes are sent to every
+ * client. The version only goes up when the document actually changes, so it
+ * doubles as the ETag. The parsed document is kept so clients can be sent
+ * only the fields that changed since the version they have.
+ */
+public final class StatusSnapshot extends CachedBody {
+
+    /**
+     * Changes every time the server starts, so an ETag from before a restart
+     * never matches.
+     */
+    private static final String BOOT_ID =
+            Long.toString(System.currentTimeMillis(), 36);
+
+    private final long version;
+    private final Object tree;
+
+    /**
+     * The deltas from older versions to this one, keyed by the old version.
+     */
+    private final ConcurrentHashMap<Long, byte[]> deltas =
+            new ConcurrentHashMap<Long, byte[]>();
+    private volatile byte[] full = null;
+
+    /**
+     * @param version The version of the status document.
+     * @param body The UTF-8 encoded status document, this isn't copied.
+     * @param tree The parsed status document.
+     */
+    StatusSnapshot(final long version, final byte[] body, final Object tree) {
+        super(body, "\"" + BOOT_ID + "-" + version + "\"");
+        this.version = version;
+        this.tree = tree;
+    }
+
+    /**
+     * @return The version of the status document.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return A copy of the UTF-8 encoded status document.
+     */
+    public byte[] getBody() {
+        return Arrays.copyOf(bytes(), getLength());
+    }
+
+    /**
+     * @param writer A writer holding another status document.
+     * @return True if this snapshot holds the same document.
+     */
+    boolean sameBody(final JsonWriter writer) {
+        return writer.contentEquals(bytes());
+    }
+
+    /**
+     * Get the changes from an older version to this one.
+     * @param since The version the client has.
+     * @param old The snapshot for that version, null if it's too old.
+     * @return {"version": V, "since": N, "delta": {...}} encoded as UTF-8,
+     *         or {"version": V, "full": {...}} if the old version is unknown.
+     */
+    @SuppressWarnings("unchecked")
+    byte[] getDelta(final long since, final StatusSnapshot old) {
+        if (old == null) {
+            return getFull();
+        }
+
+        byte[] delta = deltas.get(since);
+        if (delta == null) {
+            Object change = StatusDelta.UNCHANGED;
+            if (old != this) {
+                change = StatusDelta.diff(old.tree, tree);
+            }
+            JSONObject doc = new JSONObject();
+            doc.put("version", version);
+            doc.put("since", since);
+            doc.put("delta", change == StatusDelta.UNCHANGED
+                    ? new JSONObject() : change);
+            delta = utf8(doc.toJSONString());
+            deltas.put(since, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * @return {"version": V, "full": {...}} encoded as UTF-8.
+     */
+    private byte[] getFull() {
+        byte[] result = full;
+        if (result == null) {
+            byte[] body = bytes();
+            byte[] prefix = utf8("{\"version\":" + version + ",\"full\":");
+            result = new byte[prefix.length + body.length + 1];
+            System.arraycopy(prefix, 0, result, 0, prefix.length);
+            System.arraycopy(body, 0, result, prefix.length, body.length);
+            result[result.length - 1] = '}';
+            full = result;
+        }
+        return result;
+    }
+
+    private static byte[] utf8(final String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -15,9 +15,7 @@ import java.math.MathContext;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.SortedSet;
@@ -195,6 +193,7 @@ public final class Temp implements Runnable {
             if (volumeMeasurement) {
                 updateVolume();
             }
+            LaunchControl.statusChanged();
 
             try {
                 Thread.sleep(500);
@@ -431,11 +430,14 @@ public final class Temp implements Runnable {
         if (badTemp) {
             BrewServer.LOG.warning("Trying to recover " + this.getName());
         }
+        long start = System.nanoTime();
         if (fProbe == null) {
             result = updateTempFromOWFS();
         } else {
             result = updateTempFromFile();
         }
+        Metrics.record(Metrics.SENSOR_READ, getName(),
+                System.nanoTime() - start);
 
         if (result.equals(ERROR_TEMP)) {
             badTemp = true;
@@ -965,24 +967,24 @@ public final class Temp implements Runnable {
     }
 
     /*****
-     * Helper function to return a map of the current status.
-     * @return The current status of the temperature probe.
+     * Helper function to write the current status.
+     * @param writer The writer to add the status object to.
      */
-    public Map<String, Object> getMapStatus() {
-        Map<String, Object> statusMap = new HashMap<String, Object>();
-        statusMap.put("hidden", isHidden());
-        statusMap.put("temp", getTemp());
-        statusMap.put("elapsed", getTime());
-        statusMap.put("scale", getScale());
-        statusMap.put("cutoff", getCutoff());
-        statusMap.put("calibration", getCalibration());
-        statusMap.put("gravity", gravity);
-
-        if (currentError != null) {
-            statusMap.put("error", currentError);
+    public void writeStatus(final JsonWriter writer) {
+        writer.beginObject();
+        writer.name("hidden").value(isHidden());
+        writer.name("temp").value(getTemp());
+        writer.name("elapsed").value(getTime());
+        writer.name("scale").value(getScale());
+        writer.name("cutoff").value(getCutoff());
+        writer.name("calibration").value(getCalibration());
+        writer.name("gravity").value(gravity);
+
+        String error = currentError;
+        if (error != null) {
+            writer.name("error").value(error);
         }
-
-        return statusMap;
+        writer.endObject();
     }
 
     public void shutdown() {
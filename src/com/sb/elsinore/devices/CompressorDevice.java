@@ -3,67 +3,210 @@ package com.sb.elsinore.devices;
 import com.sb.elsinore.BrewServer;
 import jGPIO.InvalidGPIOException;
 import java.math.BigDecimal;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents a compressor based device that needs a pause between
  * run cycles.
+ * The minimum off and on times are enforced with the shared TimerService, so
+ * they're measured on the monotonic clock and the compressor is switched
+ * exactly once when the lockout ends.
  *
  * @author Andy
  */
 public class CompressorDevice extends OutputDevice {
 
-    protected long lastStopTime = -1L;
-    protected long lastStartTime = -1L;
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    protected long lastStopTime = 0L;    // Monotonic nanos
+    protected long lastStartTime = 0L;   // Monotonic nanos
+    protected boolean stopped = false;   // Has the compressor ever stopped
     protected boolean running = false;
-    protected long delayBetweenRuns = 1000 * 60 * 3; // 3 Minutes
+    protected boolean demand = false;    // Does the controller want it on
+    protected long delayBetweenRuns = 3 * MINUTE; // 3 Minutes
+    protected long minimumRunTime = 0L;
+    private ScheduledFuture<?> pendingStart = null;
+    private ScheduledFuture<?> pendingStop = null;
 
     public CompressorDevice(String name, String gpio, BigDecimal cycleTimeSeconds) {
         super(name, gpio, cycleTimeSeconds);
     }
 
-    
+
     /**
      * Run through a cycle and turn the device on/off as appropriate based on the input duty.
+     * The compressor runs when the duty is 100, starting straight away or when the
+     * minimum off time has passed. The calling thread then waits until it's
+     * interrupted by a duty change.
      * @param duty The percentage of time / power to run.  This will only run if the duty
      *              is between 0 and 100 and not null.
      */
     @Override
     public void runCycle(BigDecimal duty) throws InterruptedException, InvalidGPIOException {
         // Run if the duty is not null and is between 0 and 100 inclusive.
-        if (duty != null && 
+        if (duty != null &&
             duty.compareTo(BigDecimal.ZERO) > -1 &&
             duty.compareTo(HUNDRED) < 1) {
             initializeSSR();
+            commandedDuty = duty.doubleValue();
 
-            if (duty.compareTo(HUNDRED) == 0) {
-                if (System.currentTimeMillis() - lastStopTime > delayBetweenRuns) {
-                    if (!running) {
-                        BrewServer.LOG.warning("Starting compressor device.");
-                        lastStartTime = System.currentTimeMillis();
-                    }
-                    running = true;
-                    setValue(true);
-                } else {
-                    BrewServer.LOG.warning("Need to wait before starting compressor again.: "+(delayBetweenRuns - (System.currentTimeMillis() - lastStopTime)));
+            synchronized (this) {
+                if (duty.compareTo(HUNDRED) == 0) {
+                    requestStart();
                 }
+                // Nothing to do until the duty changes, the timers do the rest
+                wait();
             }
-            Thread.sleep(cycleTime.intValue());
         }
     }
 
-    @Override
-    public void turnOff() {
+    /**
+     * Start the compressor, or schedule the start for the end of the lockout.
+     */
+    private synchronized void requestStart() {
+        demand = true;
+        cancelStop();
+
         if (running) {
-            lastStopTime = System.currentTimeMillis();
+            return;
+        }
+
+        long remaining = getLockoutNanos();
+        if (remaining <= 0) {
+            start();
+        } else if (pendingStart == null) {
+            BrewServer.LOG.warning("Need to wait before starting compressor again.: "
+                    + TimeUnit.NANOSECONDS.toMillis(remaining));
+            pendingStart = TimerService.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CompressorDevice.this) {
+                        pendingStart = null;
+                        if (demand && !running) {
+                            start();
+                        }
+                    }
+                }
+            }, remaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void start() {
+        BrewServer.LOG.warning("Starting compressor device.");
+        lastStartTime = TimerService.now();
+        running = true;
+        setValue(true);
+    }
+
+    private synchronized void stop() {
+        if (running) {
+            lastStopTime = TimerService.now();
+            stopped = true;
             BrewServer.LOG.warning("Stopping compressor device.");
-            BrewServer.LOG.warning("Ran for " + (lastStopTime - lastStartTime) / 60000f + " minutes");
+            BrewServer.LOG.warning("Ran for "
+                    + (lastStopTime - lastStartTime) / (float) MINUTE
+                    + " minutes");
         }
         running = false;
         setValue(false);
     }
-    
+
+    private synchronized void cancelStart() {
+        if (pendingStart != null) {
+            pendingStart.cancel(false);
+            pendingStart = null;
+        }
+    }
+
+    private synchronized void cancelStop() {
+        if (pendingStop != null) {
+            pendingStop.cancel(false);
+            pendingStop = null;
+        }
+    }
+
+    /**
+     * Turn off the compressor, once it has run for the minimum time.
+     */
+    @Override
+    public synchronized void turnOff() {
+        commandedDuty = 0;
+        demand = false;
+        cancelStart();
+
+        if (!running) {
+            setValue(false);
+            return;
+        }
+
+        long runRemaining = lastStartTime + minimumRunTime - TimerService.now();
+        if (runRemaining <= 0) {
+            cancelStop();
+            stop();
+        } else if (pendingStop == null) {
+            BrewServer.LOG.warning("Compressor has to run for another "
+                    + TimeUnit.NANOSECONDS.toSeconds(runRemaining) + " seconds");
+            pendingStop = TimerService.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CompressorDevice.this) {
+                        pendingStop = null;
+                        if (!demand) {
+                            stop();
+                        }
+                    }
+                }
+            }, runRemaining, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Turn off straight away, the minimum run time isn't honoured when the
+     * device is being shut down.
+     */
+    @Override
+    public synchronized void disable() {
+        demand = false;
+        cancelStart();
+        cancelStop();
+        stop();
+        super.disable();
+    }
+
+    /**
+     * @return The nanoseconds until the compressor is allowed to start again.
+     */
+    public synchronized long getLockoutNanos() {
+        if (running || !stopped) {
+            return 0;
+        }
+        return Math.max(0, lastStopTime + delayBetweenRuns - TimerService.now());
+    }
+
+    /**
+     * @return The seconds until the compressor is allowed to start again.
+     */
+    public long getLockout() {
+        return TimeUnit.NANOSECONDS.toSeconds(getLockoutNanos());
+    }
+
+    /**
+     * @param delay The minimum off time in minutes.
+     */
     public void setDelay(BigDecimal delay)
     {
-        delayBetweenRuns = delay.longValue() * 1000 * 60;
+        delayBetweenRuns = delay.multiply(BigDecimal.valueOf(MINUTE)).longValue();
+    }
+
+    /**
+     * @param minOn The minimum on time in minutes.
+     */
+    public void setMinimumRunTime(BigDecimal minOn)
+    {
+        if (minOn == null || minOn.signum() < 0) {
+            minOn = BigDecimal.ZERO;
+        }
+        minimumRunTime = minOn.multiply(BigDecimal.valueOf(MINUTE)).longValue();
     }
 }
@@ -1,10 +1,14 @@
 package com.sb.elsinore.devices;
 
 import com.sb.elsinore.BrewServer;
+import com.sb.elsinore.Metrics;
 import com.sb.util.MathUtil;
 import jGPIO.InvalidGPIOException;
 import jGPIO.OutPin;
 import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents a single heating/cooling device that can have a duty
@@ -22,6 +26,18 @@ public class OutputDevice {
     protected OutPin ssr = null;    //The output pin.
     protected String name;    //The name of this device
     private String gpio;    //The gpio pin
+    protected BigDecimal watts = BigDecimal.ZERO;    //The power draw when on
+
+    private static final long OFF = Long.MIN_VALUE;
+    private static final double MICROS_PER_HOUR = 3600d * 1000000d;
+    // Energy accounting, updated on every edge without locking
+    private final AtomicLong onTimeNanos = new AtomicLong();    //Total on time
+    private final AtomicLong wattMicros = new AtomicLong();    //Energy used
+    private final AtomicLong onSince = new AtomicLong(OFF);    //Last on edge
+
+    private final int eventId;    //The ID in the output event log
+    private int lastState = -1;    //The last state set, -1 if unknown
+    protected volatile double commandedDuty = 0;    //The duty being run
 
     public OutputDevice(String name, String gpio, BigDecimal cycleTimeSeconds) {
         // Check for inverted outputs using a property.
@@ -37,6 +53,7 @@ public class OutputDevice {
         }
 
         this.name = name;
+        this.eventId = OutputEventLog.getInstance().register(name);
         setCycleTime(cycleTimeSeconds);
         this.gpio = gpio;
         try {
@@ -47,6 +64,7 @@ public class OutputDevice {
     }
 
     public void disable() {
+        PowerScheduler.getInstance().release(this);
         if (ssr != null) {
             synchronized (ssr) {
                 ssr.close();
@@ -55,7 +73,17 @@ public class OutputDevice {
         }
     }
 
+    /**
+     * Disable the device for good, when it's shut down or replaced.
+     */
+    public void shutdown() {
+        disable();
+        OutputEventLog.getInstance().unregister(eventId);
+    }
+
     public void turnOff() {
+        commandedDuty = 0;
+        PowerScheduler.getInstance().release(this);
         setValue(false);
     }
 
@@ -84,29 +112,76 @@ public class OutputDevice {
             duty.compareTo(BigDecimal.ZERO) > -1 &&
             duty.compareTo(HUNDRED) < 1) {
             initializeSSR();
+            commandedDuty = duty.doubleValue();
 
             duty = MathUtil.divide(duty, HUNDRED);
             BigDecimal onTime = duty.multiply(cycleTime);
+
+            // Let the power scheduler place the on window if we have a load
+            if (watts.signum() > 0) {
+                PowerScheduler scheduler = PowerScheduler.getInstance();
+                PowerScheduler.Window window = scheduler.schedule(this,
+                        watts.longValue(),
+                        TimeUnit.MILLISECONDS.toNanos(onTime.longValue()),
+                        TimeUnit.MILLISECONDS.toNanos(cycleTime.longValue()));
+                if (window != null) {
+                    runWindow(scheduler, window);
+                    return;
+                }
+            }
+
             BigDecimal offTime = cycleTime.subtract(onTime);
-            BrewServer.LOG.info("On: " + onTime
-                    + " Off; " + offTime);
+            if (BrewServer.LOG.isLoggable(Level.FINE)) {
+                BrewServer.LOG.fine("On: " + onTime + " Off; " + offTime);
+            }
 
             if( onTime.intValue() > 0 )
             {
                 setValue(true);
-                Thread.sleep(onTime.intValue());
+                sleep(TimeUnit.MILLISECONDS.toNanos(onTime.intValue()));
             }
 
             if (duty.compareTo(HUNDRED) < 0 && offTime.intValue() > 0 ) {
                 setValue(false);
-                Thread.sleep(offTime.intValue());
+                sleep(TimeUnit.MILLISECONDS.toNanos(offTime.intValue()));
             }
         }
     }
 
+    /**
+     * Follow the scheduled window until its next state change.
+     * The state comes from the shared clock, so being woken up early by a
+     * duty change doesn't restart the cycle.
+     */
+    private void runWindow(PowerScheduler scheduler,
+            PowerScheduler.Window window) throws InterruptedException {
+        long now = scheduler.now();
+        setValue(window.isOn(now));
+        sleep(window.untilNextChange(now));
+    }
+
+    /**
+     * Sleep until the next change of the output, and record how late it
+     * woke up. A sleep cut short by a duty change isn't recorded.
+     * @param nanos The time until the change.
+     */
+    private void sleep(long nanos) throws InterruptedException {
+        long start = System.nanoTime();
+        TimeUnit.NANOSECONDS.sleep(nanos);
+        Metrics.record(Metrics.OUTPUT_JITTER, gpio,
+                System.nanoTime() - start - nanos);
+    }
+
     protected void setValue(boolean value) {
         if (this.ssr != null) {
+            recordEdge(value);
             synchronized (this.ssr) {
+                int state = value ? 1 : 0;
+                if (state != lastState) {
+                    lastState = state;
+                    OutputEventLog.getInstance().record(eventId, value,
+                            commandedDuty);
+                }
                 // invert the output if needed
                 if (this.invertOutput) {
                     value = !value;
@@ -116,6 +191,56 @@ public class OutputDevice {
         }
     }
 
+    /**
+     * Account for the on time at an output edge.
+     * @param on The new logical state of the output.
+     */
+    private void recordEdge(boolean on) {
+        long now = System.nanoTime();
+        if (on) {
+            onSince.compareAndSet(OFF, now);
+        } else {
+            long since = onSince.getAndSet(OFF);
+            if (since != OFF) {
+                addOnTime(now - since);
+            }
+        }
+    }
+
+    /**
+     * Add a finished on period, at the power draw it ran with.
+     * @param nanos The length of the period.
+     */
+    private void addOnTime(long nanos) {
+        onTimeNanos.addAndGet(nanos);
+        wattMicros.addAndGet(Math.round(watts.doubleValue() * nanos / 1000d));
+    }
+
+    /**
+     * @return The total time this device has been on in nanoseconds,
+     * including the current on period.
+     */
+    public long getOnTimeNanos() {
+        long total = onTimeNanos.get();
+        long since = onSince.get();
+        if (since != OFF) {
+            total += System.nanoTime() - since;
+        }
+        return total;
+    }
+
+    /**
+     * @return The energy used by this device in watt hours.
+     */
+    public double getWattHours() {
+        double total = wattMicros.get();
+        long since = onSince.get();
+        if (since != OFF) {
+            total += watts.doubleValue() * (System.nanoTime() - since) / 1000d;
+        }
+        return total / MICROS_PER_HOUR;
+    }
+
     /**
      * @return the name
      */
@@ -146,6 +271,32 @@ public class OutputDevice {
         }
     }
 
+    /**
+     * @return The power draw of this device in watts.
+     */
+    public BigDecimal getWatts() {
+        return this.watts;
+    }
+
+    /**
+     * Set the power draw, used by the power scheduler. 0 leaves this device
+     * unmanaged.
+     * @param newWatts The power draw in watts.
+     */
+    public void setWatts(BigDecimal newWatts) {
+        if (newWatts == null || newWatts.signum() < 0) {
+            newWatts = BigDecimal.ZERO;
+        }
+        // Close the current on period at the old power draw
+        long now = System.nanoTime();
+        long since = onSince.get();
+        if (since != OFF && onSince.compareAndSet(since, now)) {
+            addOnTime(now - since);
+        }
+        this.watts = newWatts;
+        PowerScheduler.getInstance().release(this);
+    }
+
     /**
      * @return the GPIO.
      */
@@ -0,0 +1,264 @@
+package com.sb.elsinore.devices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A record of every output transition, kept in a fixed size ring buffer.
+ *
+ * The buffer is allocated off-heap once, and recording an event only writes
+ * primitives into it, so outputs can be logged at full rate without creating
+ * garbage or going through java.util.logging. Once the buffer is full the
+ * oldest events are overwritten.
+ */
+public final class OutputEventLog {
+
+    /**
+     * Number of events kept, must be a power of two.
+     */
+    public static final int CAPACITY = 4096;
+
+    // Record layout
+    private static final int SEQUENCE = 0;
+    private static final int OUTPUT = 8;
+    private static final int STATE = 12;
+    private static final int NANOS = 16;
+    private static final int WALL = 24;
+    private static final int DUTY = 32;
+    private static final int RECORD_SIZE = 40;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * How long a live stream waits for events before sending a keep alive.
+     */
+    private static final long STREAM_IDLE = 10000;
+
+    private static final OutputEventLog INSTANCE = new OutputEventLog();
+
+    private final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(CAPACITY * RECORD_SIZE);
+
+    /**
+     * The sequence number of the next event.
+     */
+    private long next = 0;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, String> names =
+            new ConcurrentHashMap<Integer, String>();
+
+    private OutputEventLog() {
+    }
+
+    /**
+     * @return The output event log.
+     */
+    public static OutputEventLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register an output to get the ID used in the log.
+     * @param name The name of the output.
+     * @return The ID to record events with.
+     */
+    public int register(final String name) {
+        int id = nextId.getAndIncrement();
+        names.put(id, name == null ? "" : name);
+        return id;
+    }
+
+    /**
+     * Forget an output that has been shut down or replaced, its events are
+     * left out from now on.
+     * @param id The ID the output was registered with.
+     */
+    public void unregister(final int id) {
+        names.remove(id);
+    }
+
+    /**
+     * Record an output transition.
+     * @param output The output ID.
+     * @param state The new state of the output.
+     * @param duty The commanded duty when the transition happened.
+     */
+    public void record(final int output, final boolean state,
+            final double duty) {
+        long nanos = System.nanoTime();
+        long wall = System.currentTimeMillis();
+        synchronized (buffer) {
+            int base = (int) (next & MASK) * RECORD_SIZE;
+            buffer.putLong(base + SEQUENCE, next);
+            buffer.putInt(base + OUTPUT, output);
+            buffer.putInt(base + STATE, state ? 1 : 0);
+            buffer.putLong(base + NANOS, nanos);
+            buffer.putLong(base + WALL, wall);
+            buffer.putDouble(base + DUTY, duty);
+            next++;
+            buffer.notifyAll();
+        }
+    }
+
+    /**
+     * @return The sequence number the next event will get.
+     */
+    public long getNext() {
+        synchronized (buffer) {
+            return next;
+        }
+    }
+
+    /**
+     * Get the recorded events.
+     * @param since The first sequence number to return, older events that
+     *          have been overwritten are skipped.
+     * @param limit The maximum number of events to return, the most recent
+     *          are returned.
+     * @return The events as a JSON Array, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONArray getEvents(final long since, final int limit) {
+        JSONArray events = new JSONArray();
+        synchronized (buffer) {
+            long start = Math.max(since, next - CAPACITY);
+            if (limit > 0) {
+                start = Math.max(start, next - limit);
+            }
+            for (long seq = Math.max(start, 0); seq < next; seq++) {
+                JSONObject event = getEvent(seq);
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Read an event, the caller must hold the buffer lock.
+     * @return The event, or null if its output is no longer registered.
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject getEvent(final long seq) {
+        int base = (int) (seq & MASK) * RECORD_SIZE;
+        int output = buffer.getInt(base + OUTPUT);
+        String name = names.get(output);
+        if (name == null) {
+            return null;
+        }
+        JSONObject event = new JSONObject();
+        event.put("seq", buffer.getLong(base + SEQUENCE));
+        event.put("id", output);
+        event.put("output", name);
+        event.put("state", buffer.getInt(base + STATE) == 1);
+        event.put("nanos", buffer.getLong(base + NANOS));
+        event.put("time", buffer.getLong(base + WALL));
+        event.put("duty", buffer.getDouble(base + DUTY));
+        return event;
+    }
+
+    /**
+     * Open a live stream of events, one JSON object per line.
+     * @param since The first sequence number to send.
+     * @return The stream, it only ends when it is closed.
+     */
+    public InputStream openStream(final long since) {
+        return new EventStream(since);
+    }
+
+    /**
+     * A never ending stream of events as they're recorded.
+     */
+    private final class EventStream extends InputStream {
+        private long position;
+        private byte[] pending = new byte[0];
+        private int offset = 0;
+        private boolean closed = false;
+
+        EventStream(final long since) {
+            this.position = since;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            if (read(single, 0, 1) < 0) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (offset >= pending.length) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, pending.length - offset);
+            System.arraycopy(pending, offset, b, off, count);
+            offset += count;
+            return count;
+        }
+
+        /**
+         * Wait for new events and format them.
+         * @return False if the stream has been closed.
+         */
+        private boolean fill() throws IOException {
+            StringBuilder lines = new StringBuilder();
+            synchronized (buffer) {
+                try {
+                    if (!closed && position >= next) {
+                        buffer.wait(STREAM_IDLE);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (closed) {
+                    return false;
+                }
+
+                // Skip anything that's been overwritten
+                position = Math.max(position, next - CAPACITY);
+                for (; position < next; position++) {
+                    JSONObject event = getEvent(position);
+                    if (event != null) {
+                        lines.append(event.toJSONString());
+                        lines.append('\n');
+                    }
+                }
+            }
+
+            if (lines.length() == 0) {
+                // Keep alive, this also finds clients that have gone away
+                lines.append('\n');
+            }
+            pending = lines.toString().getBytes("UTF-8");
+            offset = 0;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (buffer) {
+                closed = true;
+                buffer.notifyAll();
+            }
+        }
+    }
+}
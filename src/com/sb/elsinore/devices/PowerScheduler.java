@@ -0,0 +1,303 @@
+package com.sb.elsinore.devices;
+
+import com.sb.elsinore.BrewServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brewery wide power budget scheduler.
+ *
+ * Each managed OutputDevice reserves a periodic on-window (an offset and a
+ * length inside its own cycle) against a shared clock. Windows are placed so
+ * that the summed wattage of every window that is on at the same time stays
+ * under the configured budget, staggering the elements instead of letting
+ * them all switch on together. Each device keeps its requested on-time, so
+ * the average duty is unchanged; it's only cut short when the budget is
+ * oversubscribed.
+ */
+public final class PowerScheduler {
+
+    /**
+     * The single scheduler for the brewery.
+     */
+    private static final PowerScheduler INSTANCE = new PowerScheduler();
+
+    /**
+     * Maximum number of repetitions of a window checked for overlaps when
+     * the devices use different cycle times.
+     */
+    private static final int MAX_REPETITIONS = 64;
+
+    /**
+     * The shared clock origin, all windows are phased against this.
+     */
+    private final long epoch = System.nanoTime();
+
+    /**
+     * The configured budget in watts, 0 disables the scheduler.
+     */
+    private long budgetWatts = 0;
+
+    /**
+     * The current reservations, device -> on-window.
+     */
+    private final Map<OutputDevice, Window> windows =
+            new HashMap<OutputDevice, Window>();
+
+    /**
+     * Devices that are currently being curtailed, used to only warn once.
+     */
+    private final Set<OutputDevice> curtailed = new HashSet<OutputDevice>();
+
+    private PowerScheduler() {
+    }
+
+    /**
+     * @return The brewery wide scheduler.
+     */
+    public static PowerScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A periodic on-window, all values are in nanoseconds.
+     */
+    static final class Window {
+        final long cycle;
+        final long offset;
+        final long on;
+        final long watts;
+
+        Window(long cycle, long offset, long on, long watts) {
+            this.cycle = cycle;
+            this.offset = offset;
+            this.on = on;
+            this.watts = watts;
+        }
+
+        /**
+         * @param time The time on the scheduler clock.
+         * @return True if this window is on at the time specified.
+         */
+        boolean isOn(long time) {
+            return floorMod(time - offset, cycle) < on;
+        }
+
+        /**
+         * @param time The time on the scheduler clock.
+         * @return The nanoseconds until this window next changes state.
+         */
+        long untilNextChange(long time) {
+            long pos = floorMod(time - offset, cycle);
+            if (pos < on) {
+                return on - pos;
+            }
+            return cycle - pos;
+        }
+    }
+
+    /**
+     * @return The current budget in watts, 0 if the scheduler is disabled.
+     */
+    public synchronized long getBudget() {
+        return budgetWatts;
+    }
+
+    /**
+     * Set the brewery power budget. All the windows are dropped and will be
+     * rescheduled on the next cycle of each device.
+     * @param watts The new budget in watts, 0 or less to disable.
+     */
+    public synchronized void setBudget(long watts) {
+        if (watts < 0) {
+            watts = 0;
+        }
+        budgetWatts = watts;
+        windows.clear();
+        curtailed.clear();
+        BrewServer.LOG.info("Power budget set to " + watts + "W");
+    }
+
+    /**
+     * @return The current time on the scheduler clock in nanoseconds.
+     */
+    long now() {
+        return System.nanoTime() - epoch;
+    }
+
+    /**
+     * Release the window held by the device, if any.
+     * @param device The device to release.
+     */
+    public synchronized void release(OutputDevice device) {
+        windows.remove(device);
+        curtailed.remove(device);
+    }
+
+    /**
+     * Reserve an on-window for the device.
+     * The current offset is kept if it still fits, otherwise the window is
+     * moved to the position that keeps the draw under the budget.
+     * @param device The device requesting the window.
+     * @param watts The power draw of the device when on.
+     * @param onTime The requested on time per cycle in nanoseconds.
+     * @param cycleTime The cycle length in nanoseconds.
+     * @return The window to follow, or null if the device isn't managed.
+     */
+    synchronized Window schedule(OutputDevice device, long watts,
+            long onTime, long cycleTime) {
+        if (budgetWatts <= 0 || watts <= 0 || cycleTime <= 0) {
+            release(device);
+            return null;
+        }
+
+        if (onTime > cycleTime) {
+            onTime = cycleTime;
+        }
+
+        Window current = windows.get(device);
+        if (onTime <= 0) {
+            release(device);
+            return null;
+        }
+
+        if (current != null && current.cycle == cycleTime
+                && current.on == onTime && current.watts == watts) {
+            return current;
+        }
+
+        List<Window> others = new ArrayList<Window>();
+        long horizon = cycleTime;
+        for (Map.Entry<OutputDevice, Window> entry : windows.entrySet()) {
+            if (entry.getKey() != device) {
+                others.add(entry.getValue());
+                horizon = Math.max(horizon, entry.getValue().cycle);
+            }
+        }
+
+        // Candidate offsets: where we are now, the start of the cycle and
+        // the end of every other window.
+        List<Long> candidates = new ArrayList<Long>();
+        if (current != null && current.cycle == cycleTime) {
+            candidates.add(current.offset);
+        }
+        candidates.add(0L);
+        for (Window w : others) {
+            for (long end = w.offset + w.on; end < w.offset + horizon;
+                    end += w.cycle) {
+                long candidate = floorMod(end, cycleTime);
+                if (!candidates.contains(candidate)) {
+                    candidates.add(candidate);
+                }
+            }
+        }
+
+        long bestOffset = 0;
+        long bestFit = -1;
+        for (Long candidate : candidates) {
+            long fit = fitLength(candidate, onTime, cycleTime, horizon,
+                    watts, others);
+            if (fit > bestFit) {
+                bestFit = fit;
+                bestOffset = candidate;
+                if (fit == onTime) {
+                    break;
+                }
+            }
+        }
+
+        if (bestFit < onTime) {
+            if (curtailed.add(device)) {
+                BrewServer.LOG.warning("Power budget of " + budgetWatts
+                        + "W is oversubscribed, limiting " + device.getName()
+                        + " to " + (bestFit * 100 / cycleTime) + "% duty");
+            }
+        } else {
+            curtailed.remove(device);
+        }
+
+        if (bestFit <= 0) {
+            windows.remove(device);
+            return new Window(cycleTime, 0, 0, watts);
+        }
+
+        Window window = new Window(cycleTime, bestOffset, bestFit, watts);
+        windows.put(device, window);
+        return window;
+    }
+
+    /**
+     * Work out how much of the window can be on without going over budget.
+     * Every repetition of the window within the horizon is checked so devices
+     * with different cycle times don't collide later on.
+     * @return The length of the window that fits from the offset.
+     */
+    private long fitLength(long offset, long onTime, long cycleTime,
+            long horizon, long watts, List<Window> others) {
+        long fit = onTime;
+        long repetitions = Math.min(MAX_REPETITIONS,
+                (horizon + cycleTime - 1) / cycleTime);
+        for (long k = 0; k < repetitions && fit > 0; k++) {
+            long start = offset + k * cycleTime;
+            fit = Math.min(fit, freeRun(start, fit, watts, others));
+        }
+        return fit;
+    }
+
+    /**
+     * @return How long from start the extra watts fit under the budget,
+     * up to length.
+     */
+    private long freeRun(long start, long length, long watts,
+            List<Window> others) {
+        long end = start + length;
+        List<Long> points = new ArrayList<Long>();
+        points.add(start);
+        for (Window w : others) {
+            if (w.on <= 0) {
+                continue;
+            }
+            long k = floorDiv(start - w.offset, w.cycle);
+            for (long s = w.offset + k * w.cycle; s < end; s += w.cycle) {
+                if (s > start) {
+                    points.add(s);
+                }
+                long e = s + w.on;
+                if (e > start && e < end) {
+                    points.add(e);
+                }
+            }
+        }
+        Collections.sort(points);
+
+        for (Long point : points) {
+            long load = watts;
+            for (Window w : others) {
+                if (w.isOn(point)) {
+                    load += w.watts;
+                }
+            }
+            if (load > budgetWatts) {
+                return point - start;
+            }
+        }
+        return length;
+    }
+
+    static long floorDiv(long x, long y) {
+        long r = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            r--;
+        }
+        return r;
+    }
+
+    static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
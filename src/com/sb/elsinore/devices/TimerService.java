@@ -0,0 +1,97 @@
+package com.sb.elsinore.devices;
+
+import com.sb.elsinore.BrewServer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared timer for the output devices.
+ *
+ * Tasks are scheduled on the monotonic clock (System.nanoTime), so they aren't
+ * affected by the wall clock jumping, and run once at the exact instant they
+ * are due rather than being polled for.
+ */
+public final class TimerService {
+
+    /**
+     * The single timer service.
+     */
+    private static final TimerService INSTANCE = new TimerService();
+
+    /**
+     * The executor that runs the timers.
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    private TimerService() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("Device Timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Don't keep cancelled timers around until they would have run
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return The shared timer service.
+     */
+    public static TimerService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The current monotonic time in nanoseconds.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Run a task once after a delay.
+     * @param task The task to run.
+     * @param delay The delay before running.
+     * @param unit The unit of the delay.
+     * @return The future to cancel the task with.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, final long delay,
+            final TimeUnit unit) {
+        return executor.schedule(wrap(task), delay, unit);
+    }
+
+    /**
+     * Run a task once at a monotonic instant.
+     * @param task The task to run.
+     * @param instant The time to run at, as returned by {@link #now()}.
+     * @return The future to cancel the task with.
+     */
+    public ScheduledFuture<?> scheduleAt(final Runnable task,
+            final long instant) {
+        return schedule(task, Math.max(0, instant - now()),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Catch any exceptions so a failing task doesn't cancel itself silently.
+     */
+    private Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    BrewServer.LOG.warning("Device timer failed: "
+                            + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+}
@@ -35,6 +35,7 @@ public class Header implements Renderable {
             .macros().javascript("/templates/static/moment.js")
             .macros().javascript("/templates/static/segment-display.js")
             .macros().javascript("/templates/static/pidFunctions.js")
+            .macros().javascript("/templates/static/graphData.js")
             .macros().javascript("/templates/static/raphael.js")
             .macros().javascript("/templates/static/justgage.js")
             .macros().javascript("/templates/static/tinytimer.min.js")
@@ -0,0 +1,204 @@
+/**
+ * Graph data in the compact formats from /graph-data?format=binary or
+ * format=compact, see getCompactGraphData() in BrewServer.java. The server
+ * only sends numbers, the times are formatted here in the browser's time
+ * zone.
+ */
+
+/**
+ * Fetch the graph data, as the binary blob where the browser can read it.
+ *
+ * @param params The /graph-data parameters, format is added.
+ * @param callback Called with {now, series: [{name, axis, times, values}]},
+ *            the times as Dates.
+ */
+function fetchGraphData(params, callback) {
+	var binary = typeof ArrayBuffer !== 'undefined'
+			&& typeof DataView !== 'undefined';
+	params = $.extend({}, params, {
+		format : binary ? "binary" : "compact"
+	});
+
+	if (!binary) {
+		$.ajax({
+			url : "/graph-data/",
+			type : "GET",
+			dataType : "json",
+			data : params,
+			success : function(data) {
+				callback(decodeCompactGraphData(data));
+			}
+		});
+		return;
+	}
+
+	// jQuery can't return an ArrayBuffer
+	var request = new XMLHttpRequest();
+	request.open("GET", "/graph-data/?" + $.param(params), true);
+	request.responseType = "arraybuffer";
+	request.onload = function() {
+		if (request.status == 200) {
+			callback(decodeBinaryGraphData(request.response));
+		}
+	};
+	request.send();
+}
+
+/**
+ * Turn the compact JSON into Dates and values.
+ */
+function decodeCompactGraphData(data) {
+	var result = {
+		now : new Date(data.now),
+		series : []
+	};
+	$.each(data.series, function(i, series) {
+		var times = [];
+		var time = series.start;
+		for (var j = 0; j < series.t.length; j++) {
+			time += series.t[j];
+			times.push(new Date(time));
+		}
+		result.series.push({
+			name : series.name,
+			axis : series.axis,
+			times : times,
+			values : series.v
+		});
+	});
+	return result;
+}
+
+/**
+ * Read the little-endian binary blob into Dates and values.
+ */
+function decodeBinaryGraphData(buffer) {
+	var view = new DataView(buffer);
+	var offset = 0;
+
+	function readLong() {
+		// Exact, milliseconds since 1970 are well under 2^53
+		var low = view.getUint32(offset, true);
+		var high = view.getInt32(offset + 4, true);
+		offset += 8;
+		return high * 4294967296 + low;
+	}
+
+	if (String.fromCharCode(view.getUint8(0), view.getUint8(1),
+			view.getUint8(2), view.getUint8(3)) != "ELSG"
+			|| view.getUint8(4) != 1) {
+		return {
+			now : new Date(),
+			series : []
+		};
+	}
+	var count = view.getUint16(6, true);
+	offset = 8;
+	var result = {
+		now : new Date(readLong()),
+		series : []
+	};
+
+	for (var i = 0; i < count; i++) {
+		var nameLength = view.getUint16(offset, true);
+		offset += 2;
+		var name = "";
+		for (var j = 0; j < nameLength; j++) {
+			name += "%" + ("0" + view.getUint8(offset + j).toString(16)).slice(-2);
+		}
+		name = decodeURIComponent(name);
+		offset += nameLength;
+		var axis = view.getUint8(offset) == 1 ? "y2" : "y";
+		var points = view.getInt32(offset + 1, true);
+		offset += 5;
+		var time = readLong();
+
+		var times = new Array(points);
+		for (j = 0; j < points; j++) {
+			time += view.getInt32(offset, true);
+			offset += 4;
+			times[j] = new Date(time);
+		}
+		var values = new Array(points);
+		for (j = 0; j < points; j++) {
+			var value = view.getFloat32(offset, true);
+			offset += 4;
+			// Floats carry about 7 digits, don't show the rounding
+			values[j] = isNaN(value) ? null : Math.round(value * 1000) / 1000;
+		}
+		result.series.push({
+			name : name,
+			axis : axis,
+			times : times,
+			values : values
+		});
+	}
+	return result;
+}
+
+/**
+ * Build the c3 chart for decoded graph data, the same chart the JSON from
+ * /graph-data describes.
+ *
+ * @param data From fetchGraphData().
+ * @param bindto The id of the element to draw in.
+ * @param updatesOnly True for just the columns to pass to chart.load().
+ */
+function graphDataChart(data, bindto, updatesOnly) {
+	var columns = [];
+	var xs = {};
+	var axes = {};
+	$.each(data.series, function(i, series) {
+		columns.push(["x" + series.name].concat(series.times));
+		columns.push([series.name].concat(series.values));
+		xs[series.name] = "x" + series.name;
+		axes[series.name] = series.axis;
+	});
+
+	if (updatesOnly) {
+		return {
+			columns : columns
+		};
+	}
+
+	var chart = {
+		data : {
+			columns : columns,
+			xs : xs,
+			axes : axes
+		},
+		axis : {
+			x : {
+				type : "timeseries",
+				tick : {
+					format : "%H:%M:%S"
+				}
+			},
+			y : {
+				show : "true",
+				label : {
+					text : "Temperature",
+					position : "outer-middle"
+				},
+				padding : {
+					top : 0,
+					bottom : 0
+				}
+			},
+			y2 : {
+				show : "true",
+				label : {
+					text : "Duty Cycle %",
+					position : "outer-middle"
+				}
+			}
+		},
+		bindto : "#" + bindto
+	};
+	if (!/_body$/.test(bindto)) {
+		chart.zoom = {
+			enabled : true
+		};
+	}
+	return chart;
+}
@@ -144,250 +144,353 @@ function waitForMsg() {
 	if (window.disableUpdates) {
 		return false;
 	}
+	if (window.EventSource && !window.statusPollOnly) {
+		startStatusEvents();
+		return;
+	}
+	pollStatus();
+}
+
+/**
+ * Stream the status from /events, the server pushes a new status as soon as
+ * it changes. Falls back to polling if the stream can't be opened.
+ */
+function startStatusEvents() {
+	if (window.statusSource) {
+		// Already streaming, catch up on anything skipped while editing
+		if (window.lastStatus) {
+			updateStatus(window.lastStatus);
+		}
+		return;
+	}
+
+	var source = new EventSource('/events');
+	window.statusSource = source;
+	source.addEventListener('status', function(e) {
+		window.statusFailures = 0;
+		window.lastStatus = JSON.parse(e.data);
+		updateStatus(window.lastStatus);
+	});
+	source.onerror = function() {
+		if (source.readyState != EventSource.CLOSED) {
+			// The browser reconnects by itself
+			return;
+		}
+		source.close();
+		window.statusSource = null;
+		window.statusFailures = (window.statusFailures || 0) + 1;
+		if (window.statusFailures >= 3) {
+			window.statusPollOnly = true;
+		}
+		setTimeout(waitForMsg, 1000);
+	};
+}
+
+/**
+ * Long-poll /getstatus, for browsers without EventSource. The server holds
+ * the request until the status changes, and only the fields that changed
+ * since the last poll are sent.
+ */
+function pollStatus() {
+	if (window.disableUpdates || window.statusPolling) {
+		return false;
+	}
+	window.statusPolling = true;
 	jQuery
 			.ajax({
 				type : 'GET',
 				url : '/getstatus',
+				data : {
+					since : window.statusVersion || 0,
+					wait : 25000
+				},
 				dataType : 'json',
 				async : true,
 				cache : false,
-				timeout : 5000,
+				timeout : 35000,
+				complete : function(xhr, textStatus) {
+					window.statusPolling = false;
+					// Straight back in, unless something went wrong
+					setTimeout(pollStatus, textStatus == "success" ? 0 : 1000);
+				},
 				success : function(data) {
-					if (data == null)
+					if (data == null) {
 						return;
-
-					if ("breweryName" in data) {
-						val = data.breweryName;
-						if (val != null && val.length > 0 && val != "") {
-							window.breweryName = val;
-							jQuery("#breweryName").text(val);
-						} else {
-							window.breweryName = "Elsinore";
-							jQuery("#breweryName").text("Elsinore");
-						}
 					}
+					if ("full" in data) {
+						window.statusDoc = data.full;
+					} else {
+						window.statusDoc = applyStatusDelta(window.statusDoc,
+								data.delta);
+					}
+					window.statusVersion = data.version;
+					updateStatus(window.statusDoc);
+				}
+			});
+}
+
+/**
+ * Apply a delta from /getstatus?since= to the status, see StatusDelta.java.
+ */
+function applyStatusDelta(target, delta) {
+	if (delta !== null && typeof delta === 'object' && !$.isArray(delta)
+			&& "$set" in delta) {
+		return delta.$set;
+	}
+	if (target === null || typeof target !== 'object' || delta === null
+			|| typeof delta !== 'object' || $.isArray(delta)) {
+		return delta;
+	}
+
+	$.each(delta, function(key, value) {
+		if (key == "$len") {
+			return;
+		} else if (key == "$del") {
+			$.each(value, function(i, removed) {
+				delete target[removed];
+			});
+		} else {
+			target[key] = applyStatusDelta(target[key], value);
+		}
+	});
+	if ($.isArray(target) && "$len" in delta) {
+		target.length = delta.$len;
+	}
+	return target;
+}
 
-					// Check for an error message
-					if ("message" in data) {
-						val = data.message;
+function updateStatus(data) {
+	if (data == null)
+		return;
 
-						if (val.length > 0) {
-							val += "<br/><button id='clearMessage' class='holo-button modeclass' "
-									+ "onclick='clearStatus(); return false;'>"
-									+ $.i18n.prop("CLEAR") + "</button>";
-							jQuery("#messages-body").html(val);
+	if ("breweryName" in data) {
+		val = data.breweryName;
+		if (val != null && val.length > 0 && val != "") {
+			window.breweryName = val;
+			jQuery("#breweryName").text(val);
+		} else {
+			window.breweryName = "Elsinore";
+			jQuery("#breweryName").text("Elsinore");
+		}
+	}
 
-							if (!$("#messages").is(":visible")) {
-								jQuery("#messages").css('display', 'block');
-								jQuery("#messages").toggleClass("hidden", false);
+	// Check for an error message
+	if ("message" in data) {
+		val = data.message;
+
+		if (val.length > 0) {
+			val += "<br/><button id='clearMessage' class='holo-button modeclass' "
+					+ "onclick='clearStatus(); return false;'>"
+					+ $.i18n.prop("CLEAR") + "</button>";
+			jQuery("#messages-body").html(val);
+
+			if (!$("#messages").is(":visible")) {
+				jQuery("#messages").css('display', 'block');
+				jQuery("#messages").toggleClass("hidden", false);
+			}
+		} else {
+			if ($("#messages").is(":visible")) {
+				jQuery("#messages").toggleClass("hidden", true);;
+			}
+		}
+	}
+
+	if ("brewday" in data) {
+		val = data.brewday;
+		$.each(val, function(timerName, timerStatus) {
+			checkTimer(timerStatus, timerName);
+		});
+
+	}
+
+	if ("mash" in data) {
+		val = data.mash;
+		if (val != 'Unset') {
+
+			val = sortObjectByKey(val);
+
+			$.each(val,
+					function(mashPID, mashDetails) {
+						// Iterate the list of mash Lists
+						addMashTable(mashPID);
+						$.each(mashDetails, function(mashStep,
+								mashData) {
+							if (mashStep != 'pid') {
+								addMashStep(mashStep, mashData,
+										mashPID);
 							}
+						});
+
+						if ($("#mashTable" + mashPID).find(
+								'.success').length > 0) {
+							$("#mashButton-" + mashPID).text(
+									$.i18n.prop("DISABLE"));
 						} else {
-							if ($("#messages").is(":visible")) {
-								jQuery("#messages").toggleClass("hidden", true);;
-							}
+							$("#mashButton-" + mashPID).text(
+									$.i18n.prop("ACTIVATE"));
 						}
-					}
 
-					if ("brewday" in data) {
-						val = data.brewday;
-						$.each(val, function(timerName, timerStatus) {
-							checkTimer(timerStatus, timerName);
-						});
+					});
+		}
+	}
 
-					}
+	if ("pumps" in data) {
+		val = data.pumps;
+		$
+				.each(
+						val,
+						function(pumpName, pumpStatus) {
+							// enable or disable the pump as
+							// required
+							if (pumpStatus) {
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].style.background = "red";
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].innerHTML = pumpName
+										.replace("_", " ")
+										+ " "
+										+ $.i18n
+												.prop("PUMP_ON");
+							} else {
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].style.background = "#666666";
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].innerHTML = pumpName
+										.replace("_", " ")
+										+ " "
+										+ $.i18n
+												.prop("PUMP_OFF");
+							}
+						});
+	}
 
-					if ("mash" in data) {
-						val = data.mash;
-						if (val != 'Unset') {
-
-							val = sortObjectByKey(val);
-
-							$.each(val,
-									function(mashPID, mashDetails) {
-										// Iterate the list of mash Lists
-										addMashTable(mashPID);
-										$.each(mashDetails, function(mashStep,
-												mashData) {
-											if (mashStep != 'pid') {
-												addMashStep(mashStep, mashData,
-														mashPID);
-											}
-										});
-
-										if ($("#mashTable" + mashPID).find(
-												'.success').length > 0) {
-											$("#mashButton-" + mashPID).text(
-													$.i18n.prop("DISABLE"));
-										} else {
-											$("#mashButton-" + mashPID).text(
-													$.i18n.prop("ACTIVATE"));
-										}
+	if (window.disableUpdates) {
+		return false;
+	}
 
-									});
-						}
-					}
+	if ("vessels" in data) {
+		val = data.vessels;
 
-					if ("pumps" in data) {
-						val = data.pumps;
-						$
-								.each(
-										val,
-										function(pumpName, pumpStatus) {
-											// enable or disable the pump as
-											// required
-											if (pumpStatus) {
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].style.background = "red";
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].innerHTML = pumpName
-														.replace("_", " ")
-														+ " "
-														+ $.i18n
-																.prop("PUMP_ON");
-											} else {
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].style.background = "#666666";
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].innerHTML = pumpName
-														.replace("_", " ")
-														+ " "
-														+ $.i18n
-																.prop("PUMP_OFF");
-											}
-										});
-					}
+		if (!("system" in data.vessels)
+				&& !("System" in data.vessels)) {
+			// No System temperature, add a header to add it in.
+			var sysTemp = $("[id=tempProbes] > [id=System]");
+			if (sysTemp.length == 0 && !data.locked) {
+				var sysHtml = '<div id="System" class="holo-content controller panel panel-primary Temp">'
+						+ '<div id="System-title" class="title panel-heading "'
+						+ 'onclick="enableSystem(this);" style="cursor: pointer;">'
+						+ $.i18n.prop("SYSTEM")
+						+ '</div>'
+						+ '</div>';
 
-					if (window.disableUpdates) {
-						return false;
-					}
+				$("[id=tempProbes]").append(sysHtml)
+			}
+			if ($("[id=tempProbes] > [id=System] > div").length == 1
+					&& data.locked) {
+				sysTemp.remove();
+			}
+		}
+		$
+				.each(
+						val,
+						function(vesselName, vesselStatus) {
+
+							// This should always be there
+							if ("name" in vesselStatus) {
+								vesselName = vesselStatus.name;
+								if (vesselName == $.i18n
+										.prop("SYSTEM")
+										&& $('[id=System-tempGauge]').length == 0) {
+									return;
+								}
+							}
 
-					if ("vessels" in data) {
-						val = data.vessels;
-
-						if (!("system" in data.vessels)
-								&& !("System" in data.vessels)) {
-							// No System temperature, add a header to add it in.
-							var sysTemp = $("[id=tempProbes] > [id=System]");
-							if (sysTemp.length == 0 && !data.locked) {
-								var sysHtml = '<div id="System" class="holo-content controller panel panel-primary Temp">'
-										+ '<div id="System-title" class="title panel-heading "'
-										+ 'onclick="enableSystem(this);" style="cursor: pointer;">'
-										+ $.i18n.prop("SYSTEM")
-										+ '</div>'
-										+ '</div>';
-
-								$("[id=tempProbes]").append(sysHtml)
+							if ("tempprobe" in vesselStatus) {
+								updateTempProbe(vesselName,
+										vesselStatus.tempprobe);
 							}
-							if ($("[id=tempProbes] > [id=System] > div").length == 1
-									&& data.locked) {
-								sysTemp.remove();
+
+							if ("pidstatus" in vesselStatus) {
+
+								addMashTable(vesselName);
+
+								updatePIDStatus(vesselName,
+										vesselStatus.pidstatus);
+
+								// Hide the gauge if needs be
+								if (vesselStatus.pidstatus.mode == "off") {
+									$(
+											'div[id^="'
+													+ vesselName
+													+ '-gage"]')
+											.toggleClass("hidden", true);
+								} else {
+									$(
+											'div[id^="'
+													+ vesselName
+													+ '-gage"]')
+											.toggleClass("hidden", false);
+									var duty = vesselStatus.pidstatus.duty;
+									if ("actualduty" in vesselStatus.pidstatus) {
+										duty = vesselStatus.pidstatus.actualduty;
+									}
+
+									if (duty < 0) {
+										if (Gauges[vesselName].config.textMax != "0") {
+											Gauges[vesselName].config.levelColors = [
+													"#0033CC",
+													"#CC00CC",
+													"#a9d70b" ];
+										}
+										Gauges[vesselName]
+												.refreshBoth(
+														duty,
+														-100,
+														"0");
+									} else {
+										if (Gauges[vesselName].config.textMax != "0") {
+											Gauges[vesselName].config.levelColors = [
+													"#a9d70b",
+													"#f9c802",
+													"#ff0000" ];
+										}
+										Gauges[vesselName]
+												.refreshBoth(
+														duty,
+														"0",
+														100);
+									}
+
+								}
+							} else {
+								hidePIDForm(vesselName);
 							}
-						}
-						$
-								.each(
-										val,
-										function(vesselName, vesselStatus) {
-
-											// This should always be there
-											if ("name" in vesselStatus) {
-												vesselName = vesselStatus.name;
-												if (vesselName == $.i18n
-														.prop("SYSTEM")
-														&& $('[id=System-tempGauge]').length == 0) {
-													return;
-												}
-											}
-
-											if ("tempprobe" in vesselStatus) {
-												updateTempProbe(vesselName,
-														vesselStatus.tempprobe);
-											}
-
-											if ("pidstatus" in vesselStatus) {
-
-												addMashTable(vesselName);
-
-												updatePIDStatus(vesselName,
-														vesselStatus.pidstatus);
-
-												// Hide the gauge if needs be
-												if (vesselStatus.pidstatus.mode == "off") {
-													$(
-															'div[id^="'
-																	+ vesselName
-																	+ '-gage"]')
-															.toggleClass("hidden", true);
-												} else {
-													$(
-															'div[id^="'
-																	+ vesselName
-																	+ '-gage"]')
-															.toggleClass("hidden", false);
-													var duty = vesselStatus.pidstatus.duty;
-													if ("actualduty" in vesselStatus.pidstatus) {
-														duty = vesselStatus.pidstatus.actualduty;
-													}
-
-													if (duty < 0) {
-														if (Gauges[vesselName].config.textMax != "0") {
-															Gauges[vesselName].config.levelColors = [
-																	"#0033CC",
-																	"#CC00CC",
-																	"#a9d70b" ];
-														}
-														Gauges[vesselName]
-																.refreshBoth(
-																		duty,
-																		-100,
-																		"0");
-													} else {
-														if (Gauges[vesselName].config.textMax != "0") {
-															Gauges[vesselName].config.levelColors = [
-																	"#a9d70b",
-																	"#f9c802",
-																	"#ff0000" ];
-														}
-														Gauges[vesselName]
-																.refreshBoth(
-																		duty,
-																		"0",
-																		100);
-													}
-
-												}
-											} else {
-												hidePIDForm(vesselName);
-											}
-
-											if ("volume" in vesselStatus) {
-												updateVolumeStatus(vesselName,
-														vesselStatus.volume);
-											} else {
-												jQuery(
-														"#" + vesselName
-																+ "-volume")
-														.text(
-																$.i18n
-																		.prop("NO_VOLUME"));
-											}
-										});
-					}
 
-					if ("locked" in data) {
-						if (window.locked == undefined) {
-							window.locked = !data.locked;
-							toggleEdit(false);
-							window.locked = data.locked;
-						}
-					}
+							if ("volume" in vesselStatus) {
+								updateVolumeStatus(vesselName,
+										vesselStatus.volume);
+							} else {
+								jQuery(
+										"#" + vesselName
+												+ "-volume")
+										.text(
+												$.i18n
+														.prop("NO_VOLUME"));
+							}
+						});
+	}
 
-					vessel = null;
-					data = null;
-					fixWebkitHeightBug();
-				}
-			});
-	setTimeout(waitForMsg, 1000);
+	if ("locked" in data) {
+		if (window.locked == undefined) {
+			window.locked = !data.locked;
+			toggleEdit(false);
+			window.locked = data.locked;
+		}
+	}
 
+	vessel = null;
+	data = null;
+	fixWebkitHeightBug();
 }
 
 function addMashTable(vesselName) {
@@ -2345,32 +2448,24 @@ function embedGraph(vessel) {
 	$("#" + vessel + "-graph_body").height(200);
 	function fetchData() {
 
-		function onDataReceived(series) {
+		function onDataReceived(data) {
 			if (chart == null) {
+				var series = graphDataChart(data, vessel + "-graph_body", false);
 				series["size"] = {};
 				series["size"]["height"] = 150;
 				chart = c3.generate(series);
 			} else {
-				chart.load(series);
+				chart.load(graphDataChart(data, vessel + "-graph_body", true));
 			}
 			window.updateOnly = true;
 		}
 
-		// Normally we call the same URL - a script connected to a
-		// database - but in this case we only have static example
-		// files, so we need to modify the URL.
+		// The times come as numbers, and are formatted here
 		var updateParams = {};
 		updateParams["vessel"] = vessel;
 		updateParams["bindto"] = vessel + "-graph_body";
-		updateParams["updates"] = window.updateOnly;
-		
-		$.ajax({
-			url : "/graph-data/",
-			type : "GET",
-			dataType : "json",
-			data : updateParams,
-			success : onDataReceived
-		});
+
+		fetchGraphData(updateParams, onDataReceived);
 
 		setTimeout(fetchData, 5000);
 